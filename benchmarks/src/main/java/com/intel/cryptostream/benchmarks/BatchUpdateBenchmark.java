@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.Encryptor;
+
+/**
+ * Small records encrypted with one call each against one
+ * {@link CryptoCodec#encryptBatch(Encryptor[], ByteBuffer[], ByteBuffer[])}
+ * call for {@link #RECORDS} records. The score is per record, so the
+ * crossover is the record size where both are equal.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchUpdateBenchmark {
+  static final int RECORDS = 64;
+
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"64", "256", "1024", "4096"})
+  public int recordSize;
+
+  private CryptoCodec codec;
+  private Encryptor[] encryptors;
+  private ByteBuffer[] in;
+  private ByteBuffer[] out;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    codec = BenchmarkUtils.newCodec(codecClass);
+    byte[] key = BenchmarkUtils.newKey(128);
+    encryptors = new Encryptor[RECORDS];
+    in = new ByteBuffer[RECORDS];
+    out = new ByteBuffer[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      encryptors[i] = codec.createEncryptor();
+      encryptors[i].init(key, BenchmarkUtils.newIv());
+      in[i] = ByteBuffer.allocateDirect(recordSize);
+      in[i].put(BenchmarkUtils.randomBytes(recordSize));
+      out[i] = ByteBuffer.allocateDirect(recordSize);
+    }
+  }
+
+  private void clear() {
+    for (int i = 0; i < RECORDS; i++) {
+      in[i].clear();
+      out[i].clear();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public ByteBuffer[] perCall() throws IOException {
+    clear();
+    for (int i = 0; i < RECORDS; i++) {
+      encryptors[i].encrypt(in[i], out[i]);
+    }
+    return out;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public ByteBuffer[] batch() throws IOException {
+    clear();
+    codec.encryptBatch(encryptors, in, out);
+    return out;
+  }
+}
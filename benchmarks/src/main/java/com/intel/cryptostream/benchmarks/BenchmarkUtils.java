@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoOutputStream;
+import com.intel.cryptostream.utils.ReflectionUtils;
+
+/**
+ * Helpers shared by the benchmark suites.
+ */
+public class BenchmarkUtils {
+  /**
+   * Every benchmark operation processes this many bytes, so the reported
+   * ops/s equals MiB/s.
+   */
+  public static final int PAYLOAD_SIZE = 1024 * 1024;
+
+  public static final String JCE_CODEC =
+      "com.intel.cryptostream.JceAesCtrCryptoCodec";
+  public static final String OPENSSL_CODEC =
+      "com.intel.cryptostream.OpensslAesCtrCryptoCodec";
+  public static final String HYBRID_CODEC =
+      "com.intel.cryptostream.HybridAesCtrCryptoCodec";
+  /** Only on JDK 22 or later. */
+  public static final String FFM_CODEC =
+      "com.intel.cryptostream.FfmOpensslAesCtrCryptoCodec";
+
+  private static final Random RANDOM = new Random(0x5eed);
+
+  /** Instantiate the codec the same way the library itself does. */
+  public static CryptoCodec newCodec(String codecClass) throws Exception {
+    return (CryptoCodec) ReflectionUtils.newInstance(
+        ReflectionUtils.getClassByName(codecClass));
+  }
+
+  /** @param keySize key size in bits, 128 or 256 */
+  public static byte[] newKey(int keySize) {
+    return randomBytes(keySize / 8);
+  }
+
+  public static byte[] newIv() {
+    return randomBytes(16);
+  }
+
+  public static byte[] randomBytes(int len) {
+    byte[] bytes = new byte[len];
+    RANDOM.nextBytes(bytes);
+    return bytes;
+  }
+
+  /** Encrypt <code>plain</code> with a fresh {@link CryptoOutputStream}. */
+  public static byte[] encrypt(CryptoCodec codec, int bufferSize, byte[] key,
+      byte[] iv, byte[] plain) throws IOException {
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream(plain.length);
+    CryptoOutputStream out = new CryptoOutputStream(encrypted, codec,
+        bufferSize, key, iv);
+    out.write(plain);
+    out.close();
+    return encrypted.toByteArray();
+  }
+
+  /** Discards everything written to it. */
+  public static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+
+  /**
+   * A {@link NullOutputStream} that is also a {@link WritableByteChannel},
+   * which makes {@link CryptoOutputStream} skip its byte array copy.
+   */
+  public static class NullChannelOutputStream extends NullOutputStream
+      implements WritableByteChannel {
+    @Override
+    public int write(ByteBuffer src) {
+      int n = src.remaining();
+      src.position(src.limit());
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+
+  /**
+   * Serves the same data over and over, so a long-lived stream never reaches
+   * EOF during a measurement iteration.
+   */
+  public static class CyclicInputStream extends InputStream {
+    private final byte[] data;
+    private int pos;
+
+    public CyclicInputStream(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read() {
+      int b = data[pos] & 0xff;
+      pos = (pos + 1) % data.length;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      int n = Math.min(len, data.length - pos);
+      System.arraycopy(data, pos, b, off, n);
+      pos = (pos + n) % data.length;
+      return n;
+    }
+  }
+
+  /**
+   * A {@link CyclicInputStream} that is also a {@link ReadableByteChannel},
+   * which makes {@link com.intel.cryptostream.CryptoInputStream} take its
+   * ByteBuffer read path.
+   */
+  public static class CyclicChannelInputStream extends CyclicInputStream
+      implements ReadableByteChannel {
+    private final ByteBuffer data;
+
+    public CyclicChannelInputStream(byte[] data) {
+      super(data);
+      this.data = ByteBuffer.wrap(data);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if (!data.hasRemaining()) {
+        data.clear();
+      }
+      int n = Math.min(dst.remaining(), data.remaining());
+      int limit = data.limit();
+      data.limit(data.position() + n);
+      dst.put(data);
+      data.limit(limit);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+}
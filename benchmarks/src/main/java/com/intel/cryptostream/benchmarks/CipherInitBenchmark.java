@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.OpensslCipher;
+
+/**
+ * Full {@link OpensslCipher} initializations, key and IV, each followed by
+ * a 64 byte update. On OpenSSL 3 this measures the cost of resolving the
+ * cipher, run it with -t to see the contention between threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherInitBenchmark {
+  @Param({"128", "256"})
+  public int keySize;
+
+  private OpensslCipher cipher;
+  private byte[] key;
+  private byte[] iv;
+  private ByteBuffer in;
+  private ByteBuffer out;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    cipher = OpensslCipher.getInstance("AES/CTR/NoPadding");
+    key = BenchmarkUtils.newKey(keySize);
+    iv = BenchmarkUtils.newIv();
+    in = ByteBuffer.allocateDirect(64);
+    out = ByteBuffer.allocateDirect(64);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    cipher.clean();
+  }
+
+  @Benchmark
+  public ByteBuffer init() throws Exception {
+    cipher.init(OpensslCipher.ENCRYPT_MODE, key, iv);
+    in.clear();
+    out.clear();
+    cipher.update(in, out);
+    return out;
+  }
+}
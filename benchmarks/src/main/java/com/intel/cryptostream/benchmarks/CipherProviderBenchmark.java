@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.security.Provider;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoStreamProvider;
+
+/**
+ * Plain {@link Cipher} AES/CTR/NoPadding throughput of the SunJCE provider,
+ * with its AES intrinsics, against {@link CryptoStreamProvider}. Each
+ * operation processes {@link BenchmarkUtils#PAYLOAD_SIZE} bytes in chunks
+ * of {@link #chunkSize}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherProviderBenchmark {
+  @Param({"SunJCE", CryptoStreamProvider.NAME})
+  public String provider;
+
+  @Param({"128", "256"})
+  public int keySize;
+
+  @Param({"1024", "65536"})
+  public int chunkSize;
+
+  private Cipher cipher;
+  private byte[] in;
+  private byte[] out;
+  private ByteBuffer directIn;
+  private ByteBuffer directOut;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    Provider p = provider.equals(CryptoStreamProvider.NAME) ?
+        new CryptoStreamProvider() : Security.getProvider(provider);
+    cipher = Cipher.getInstance("AES/CTR/NoPadding", p);
+    cipher.init(Cipher.ENCRYPT_MODE,
+        new SecretKeySpec(BenchmarkUtils.newKey(keySize), "AES"),
+        new IvParameterSpec(BenchmarkUtils.newIv()));
+    in = BenchmarkUtils.randomBytes(BenchmarkUtils.PAYLOAD_SIZE);
+    out = new byte[BenchmarkUtils.PAYLOAD_SIZE];
+    directIn = ByteBuffer.allocateDirect(BenchmarkUtils.PAYLOAD_SIZE);
+    directIn.put(in);
+    directOut = ByteBuffer.allocateDirect(BenchmarkUtils.PAYLOAD_SIZE);
+  }
+
+  @Benchmark
+  public byte[] updateArray() throws Exception {
+    for (int off = 0; off < in.length; off += chunkSize) {
+      cipher.update(in, off, chunkSize, out, off);
+    }
+    return out;
+  }
+
+  @Benchmark
+  public ByteBuffer updateDirect() throws Exception {
+    directIn.clear();
+    directOut.clear();
+    while (directIn.hasRemaining()) {
+      directIn.limit(directIn.position() + chunkSize);
+      cipher.update(directIn, directOut);
+    }
+    return directOut;
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoInputStream;
+
+/**
+ * Throughput of {@link CryptoInputStream#read(byte[], int, int)} and
+ * {@link CryptoInputStream#read(ByteBuffer)}. Each operation decrypts
+ * {@link BenchmarkUtils#PAYLOAD_SIZE} bytes, so the score is in MiB/s.
+ * <p/>
+ * The <code>underlying</code> parameter selects whether the wrapped stream is
+ * a plain InputStream or also a ReadableByteChannel, which are the two read
+ * paths of CryptoInputStream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoInputStreamBenchmark {
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"512", "4096", "8192", "65536", "1048576"})
+  public int bufferSize;
+
+  @Param({"128", "256"})
+  public int keySize;
+
+  @Param({"stream", "channel"})
+  public String underlying;
+
+  private byte[] out;
+  private CryptoInputStream in;
+
+  /** The caller's buffer for the ByteBuffer read benchmark. */
+  @State(Scope.Thread)
+  public static class CallerBuffer {
+    @Param({"heap", "direct"})
+    public String allocation;
+
+    ByteBuffer buf;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      buf = "direct".equals(allocation) ?
+          ByteBuffer.allocateDirect(BenchmarkUtils.PAYLOAD_SIZE) :
+            ByteBuffer.allocate(BenchmarkUtils.PAYLOAD_SIZE);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() throws Exception {
+    CryptoCodec codec = BenchmarkUtils.newCodec(codecClass);
+    byte[] key = BenchmarkUtils.newKey(keySize);
+    byte[] iv = BenchmarkUtils.newIv();
+    byte[] encrypted = BenchmarkUtils.encrypt(codec, bufferSize, key, iv,
+        BenchmarkUtils.randomBytes(BenchmarkUtils.PAYLOAD_SIZE));
+    InputStream source = "channel".equals(underlying) ?
+        new BenchmarkUtils.CyclicChannelInputStream(encrypted) :
+          new BenchmarkUtils.CyclicInputStream(encrypted);
+    in = new CryptoInputStream(source, codec, bufferSize, key, iv);
+    out = new byte[BenchmarkUtils.PAYLOAD_SIZE];
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    in.close();
+  }
+
+  @Benchmark
+  public byte[] readByteArray() throws IOException {
+    int off = 0;
+    while (off < out.length) {
+      off += in.read(out, off, out.length - off);
+    }
+    return out;
+  }
+
+  @Benchmark
+  public ByteBuffer readByteBuffer(CallerBuffer caller) throws IOException {
+    ByteBuffer buf = caller.buf;
+    buf.clear();
+    while (buf.hasRemaining()) {
+      in.read(buf);
+    }
+    return buf;
+  }
+}
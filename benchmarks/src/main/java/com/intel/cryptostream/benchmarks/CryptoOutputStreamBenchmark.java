@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoOutputStream;
+
+/**
+ * Throughput of {@link CryptoOutputStream#write(byte[], int, int)} and
+ * {@link CryptoOutputStream#write(ByteBuffer)}. Each operation encrypts
+ * {@link BenchmarkUtils#PAYLOAD_SIZE} bytes into a sink that discards them,
+ * so the score is in MiB/s.
+ * <p/>
+ * The <code>underlying</code> parameter selects whether the sink is a plain
+ * OutputStream or also a WritableByteChannel, which are the two write paths
+ * of CryptoOutputStream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoOutputStreamBenchmark {
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"512", "4096", "8192", "65536", "1048576"})
+  public int bufferSize;
+
+  @Param({"128", "256"})
+  public int keySize;
+
+  @Param({"stream", "channel"})
+  public String underlying;
+
+  private byte[] plain;
+  private CryptoOutputStream out;
+
+  /** The caller's buffer for the ByteBuffer write benchmark. */
+  @State(Scope.Thread)
+  public static class CallerBuffer {
+    @Param({"heap", "direct"})
+    public String allocation;
+
+    ByteBuffer buf;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      byte[] plain = BenchmarkUtils.randomBytes(BenchmarkUtils.PAYLOAD_SIZE);
+      buf = "direct".equals(allocation) ?
+          ByteBuffer.allocateDirect(plain.length) :
+            ByteBuffer.allocate(plain.length);
+      buf.put(plain);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() throws Exception {
+    CryptoCodec codec = BenchmarkUtils.newCodec(codecClass);
+    plain = BenchmarkUtils.randomBytes(BenchmarkUtils.PAYLOAD_SIZE);
+    OutputStream sink = "channel".equals(underlying) ?
+        new BenchmarkUtils.NullChannelOutputStream() :
+          new BenchmarkUtils.NullOutputStream();
+    out = new CryptoOutputStream(sink, codec, bufferSize,
+        BenchmarkUtils.newKey(keySize), BenchmarkUtils.newIv());
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    out.close();
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    out.write(plain, 0, plain.length);
+    out.flush();
+  }
+
+  @Benchmark
+  public void writeByteBuffer(CallerBuffer caller) throws IOException {
+    ByteBuffer buf = caller.buf;
+    buf.clear();
+    out.write(buf);
+    out.flush();
+  }
+}
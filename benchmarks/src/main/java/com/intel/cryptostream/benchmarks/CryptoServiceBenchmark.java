@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoService;
+import com.intel.cryptostream.Encryptor;
+
+/**
+ * Many threads encrypting small messages, each with its own IV: through a
+ * shared {@link CryptoService} against an {@link Encryptor} per thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class CryptoServiceBenchmark {
+  @State(Scope.Benchmark)
+  public static class Shared {
+    @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+    public String codecClass;
+
+    CryptoCodec codec;
+    CryptoService service;
+    byte[] key;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      codec = BenchmarkUtils.newCodec(codecClass);
+      service = new CryptoService(codec);
+      key = BenchmarkUtils.newKey(128);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      System.out.println("batch size p50/p99: " +
+          service.getBatchSizePercentile(50) + "/" +
+          service.getBatchSizePercentile(99) + ", latency p50/p99 ns: " +
+          service.getLatencyPercentile(50) + "/" +
+          service.getLatencyPercentile(99));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Message {
+    @Param({"256", "2048"})
+    public int messageSize;
+
+    ByteBuffer buffer;
+    byte[] iv;
+    Encryptor encryptor;
+    ByteBuffer out;
+
+    @Setup(Level.Trial)
+    public void setUp(Shared shared) throws Exception {
+      buffer = ByteBuffer.allocateDirect(messageSize);
+      buffer.put(BenchmarkUtils.randomBytes(messageSize));
+      buffer.flip();
+      out = ByteBuffer.allocateDirect(messageSize);
+      iv = BenchmarkUtils.newIv();
+      encryptor = shared.codec.createEncryptor();
+    }
+  }
+
+  @Benchmark
+  public ByteBuffer service(Shared shared, Message message) throws Exception {
+    return shared.service.encrypt(shared.key, message.iv, message.buffer)
+        .get();
+  }
+
+  @Benchmark
+  public ByteBuffer encryptorPerThread(Shared shared, Message message)
+      throws Exception {
+    message.encryptor.init(shared.key, message.iv);
+    message.buffer.rewind();
+    message.out.clear();
+    message.encryptor.encrypt(message.buffer, message.out);
+    return message.out;
+  }
+}
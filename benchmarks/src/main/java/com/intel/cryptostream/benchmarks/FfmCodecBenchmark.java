@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.Encryptor;
+
+/**
+ * Time per encrypt call of the JNI OpenSSL codec against the FFM one, on
+ * small and large direct buffers and arrays. Needs JDK 22 or later, run it
+ * with -jvmArgs "--enable-native-access=ALL-UNNAMED
+ * --add-exports java.base/sun.nio.ch=ALL-UNNAMED".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FfmCodecBenchmark {
+  @Param({BenchmarkUtils.OPENSSL_CODEC, BenchmarkUtils.FFM_CODEC})
+  public String codecClass;
+
+  @Param({"64", "1024", "65536"})
+  public int size;
+
+  private Encryptor encryptor;
+  private ByteBuffer directIn;
+  private ByteBuffer directOut;
+  private byte[] in;
+  private byte[] out;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    CryptoCodec codec = BenchmarkUtils.newCodec(codecClass);
+    encryptor = codec.createEncryptor();
+    encryptor.init(BenchmarkUtils.newKey(128), BenchmarkUtils.newIv());
+    in = BenchmarkUtils.randomBytes(size);
+    out = new byte[size];
+    directIn = ByteBuffer.allocateDirect(size);
+    directIn.put(in);
+    directOut = ByteBuffer.allocateDirect(size);
+  }
+
+  @Benchmark
+  public ByteBuffer direct() throws Exception {
+    directIn.clear();
+    directOut.clear();
+    encryptor.encrypt(directIn, directOut);
+    return directOut;
+  }
+
+  @Benchmark
+  public byte[] array() throws Exception {
+    encryptor.encrypt(in, 0, size, out, 0);
+    return out;
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoInputStream;
+import com.intel.cryptostream.CryptoOutputStream;
+import com.intel.cryptostream.MappedCryptoInputStream;
+import com.intel.cryptostream.MappedCryptoOutputStream;
+
+/**
+ * Compares the stream path ({@link CryptoInputStream} over a FileInputStream,
+ * {@link CryptoOutputStream} over a FileOutputStream) with the memory mapped
+ * path ({@link MappedCryptoInputStream}, {@link MappedCryptoOutputStream}) on
+ * a temporary file. Each operation reads or writes the whole file of
+ * {@link #FILE_SIZE} bytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MappedCryptoStreamBenchmark {
+  static final int FILE_SIZE = 16 * BenchmarkUtils.PAYLOAD_SIZE;
+
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"8192", "65536"})
+  public int bufferSize;
+
+  private CryptoCodec codec;
+  private byte[] key;
+  private byte[] iv;
+  private byte[] plain;
+  private byte[] chunk;
+  private File file;
+
+  /** The window settings, only used by the mapped benchmarks. */
+  @State(Scope.Thread)
+  public static class Mapping {
+    @Param({"1048576", "4194304"})
+    public int windowSize;
+
+    @Param({"0", "1", "2"})
+    public int prefetchDepth;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    codec = BenchmarkUtils.newCodec(codecClass);
+    key = BenchmarkUtils.newKey(128);
+    iv = BenchmarkUtils.newIv();
+    plain = BenchmarkUtils.randomBytes(BenchmarkUtils.PAYLOAD_SIZE);
+    chunk = new byte[BenchmarkUtils.PAYLOAD_SIZE];
+    file = File.createTempFile("cryptostream", ".bench");
+    OutputStream out = new CryptoOutputStream(new FileOutputStream(file),
+        codec, bufferSize, key, iv);
+    writeFile(out);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public byte[] readStream() throws IOException {
+    return readFile(new CryptoInputStream(new FileInputStream(file), codec,
+        bufferSize, key, iv));
+  }
+
+  @Benchmark
+  public byte[] readMapped(Mapping mapping) throws IOException {
+    return readFile(new MappedCryptoInputStream(
+        new RandomAccessFile(file, "r").getChannel(), codec, bufferSize,
+        mapping.windowSize, mapping.prefetchDepth, key, iv));
+  }
+
+  @Benchmark
+  public void writeStream() throws IOException {
+    writeFile(new CryptoOutputStream(new FileOutputStream(file), codec,
+        bufferSize, key, iv));
+  }
+
+  @Benchmark
+  public void writeMapped(Mapping mapping) throws IOException {
+    writeFile(new MappedCryptoOutputStream(
+        new RandomAccessFile(file, "rw").getChannel(), codec, bufferSize,
+        mapping.windowSize, key, iv, 0));
+  }
+
+  private byte[] readFile(InputStream in) throws IOException {
+    try {
+      while (in.read(chunk, 0, chunk.length) != -1) {
+        // Keep reading until EOF.
+      }
+    } finally {
+      in.close();
+    }
+    return chunk;
+  }
+
+  private void writeFile(OutputStream out) throws IOException {
+    try {
+      for (int off = 0; off < FILE_SIZE; off += plain.length) {
+        out.write(plain, 0, plain.length);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoOutputStream;
+
+/**
+ * Latency of encrypting one small message: a {@link CryptoOutputStream}
+ * over a {@link ByteArrayOutputStream} against the one-shot
+ * {@link CryptoCodec#encrypt(byte[], byte[], byte[], int, int, byte[], int)}.
+ * The hybrid codec should follow the faster engine at each size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OneShotBenchmark {
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC,
+      BenchmarkUtils.HYBRID_CODEC})
+  public String codecClass;
+
+  @Param({"256", "1024", "16384"})
+  public int messageSize;
+
+  private CryptoCodec codec;
+  private byte[] key;
+  private byte[] iv;
+  private byte[] in;
+  private byte[] out;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    codec = BenchmarkUtils.newCodec(codecClass);
+    key = BenchmarkUtils.newKey(128);
+    iv = BenchmarkUtils.newIv();
+    in = BenchmarkUtils.randomBytes(messageSize);
+    out = new byte[messageSize];
+  }
+
+  @Benchmark
+  public byte[] stream() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(messageSize);
+    CryptoOutputStream cos = new CryptoOutputStream(bos, codec, key, iv);
+    cos.write(in);
+    cos.close();
+    return bos.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] oneShot() throws Exception {
+    codec.encrypt(key, iv, in, 0, in.length, out, 0);
+    return out;
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.Encryptor;
+import com.intel.cryptostream.ParallelCtrEngine;
+
+/**
+ * Throughput of {@link ParallelCtrEngine} against a single
+ * {@link Encryptor} on direct buffers of {@link #SIZE} bytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelCtrEngineBenchmark {
+  static final int SIZE = 64 * BenchmarkUtils.PAYLOAD_SIZE;
+
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"1", "4", "16"})
+  public int threads;
+
+  @Param({"262144", "1048576", "4194304"})
+  public int chunkSize;
+
+  private byte[] key;
+  private byte[] iv;
+  private ByteBuffer in;
+  private ByteBuffer out;
+  private Encryptor encryptor;
+  private ExecutorService executor;
+  private ParallelCtrEngine engine;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    CryptoCodec codec = BenchmarkUtils.newCodec(codecClass);
+    key = BenchmarkUtils.newKey(128);
+    iv = BenchmarkUtils.newIv();
+    in = ByteBuffer.allocateDirect(SIZE);
+    for (int off = 0; off < SIZE; off += BenchmarkUtils.PAYLOAD_SIZE) {
+      in.put(BenchmarkUtils.randomBytes(BenchmarkUtils.PAYLOAD_SIZE));
+    }
+    out = ByteBuffer.allocateDirect(SIZE);
+    encryptor = codec.createEncryptor();
+    executor = Executors.newFixedThreadPool(threads);
+    engine = new ParallelCtrEngine(codec, executor, chunkSize, 8192);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public ByteBuffer singleEncryptor() throws IOException {
+    in.clear();
+    out.clear();
+    encryptor.init(key, iv);
+    encryptor.encrypt(in, out);
+    return out;
+  }
+
+  @Benchmark
+  public ByteBuffer parallelEngine() throws IOException {
+    in.clear();
+    out.clear();
+    engine.encrypt(key, iv, 0, in, out);
+    return out;
+  }
+}
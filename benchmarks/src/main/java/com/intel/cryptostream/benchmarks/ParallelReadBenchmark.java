@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoInputStream;
+import com.intel.cryptostream.ParallelCtrEngine;
+
+/**
+ * Large sequential reads of {@link CryptoInputStream} over an underlying
+ * stream that costs nothing, with the decryption on the calling thread
+ * (threads = 0) or on a {@link ParallelCtrEngine} of threads threads. Each
+ * operation reads {@link #SCAN_SIZE} bytes in reads of {@link #READ_SIZE}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelReadBenchmark {
+  static final int READ_SIZE = 4 * BenchmarkUtils.PAYLOAD_SIZE;
+  static final int SCAN_SIZE = 16 * BenchmarkUtils.PAYLOAD_SIZE;
+
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"0", "4", "16"})
+  public int threads;
+
+  @Param({"stream", "channel"})
+  public String underlying;
+
+  private ExecutorService executor;
+  private CryptoInputStream in;
+  private byte[] array;
+  private ByteBuffer direct;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    CryptoCodec codec = BenchmarkUtils.newCodec(codecClass);
+    byte[] key = BenchmarkUtils.newKey(128);
+    byte[] iv = BenchmarkUtils.newIv();
+    byte[] encrypted = BenchmarkUtils.encrypt(codec, 65536, key, iv,
+        BenchmarkUtils.randomBytes(READ_SIZE));
+    InputStream source = "channel".equals(underlying) ?
+        new BenchmarkUtils.CyclicChannelInputStream(encrypted) :
+          new BenchmarkUtils.CyclicInputStream(encrypted);
+    ParallelCtrEngine engine = null;
+    if (threads > 0) {
+      executor = Executors.newFixedThreadPool(threads);
+      engine = new ParallelCtrEngine(codec, executor,
+          BenchmarkUtils.PAYLOAD_SIZE, 65536);
+    }
+    in = new CryptoInputStream(source, codec, 65536, key, iv, 0, engine);
+    array = new byte[READ_SIZE];
+    direct = ByteBuffer.allocateDirect(READ_SIZE);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    in.close();
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Benchmark
+  public byte[] readByteArray() throws IOException {
+    for (int total = 0; total < SCAN_SIZE; ) {
+      int off = 0;
+      while (off < array.length) {
+        off += in.read(array, off, array.length - off);
+      }
+      total += off;
+    }
+    return array;
+  }
+
+  @Benchmark
+  public ByteBuffer readByteBuffer() throws IOException {
+    for (int total = 0; total < SCAN_SIZE; total += READ_SIZE) {
+      direct.clear();
+      while (direct.hasRemaining()) {
+        in.read(direct);
+      }
+    }
+    return direct;
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoInputStream;
+import com.intel.cryptostream.ReadAheadCryptoInputStream;
+
+/**
+ * Sequential scan of a remote-like stream: each read of the underlying
+ * stream returns {@link #FETCH_SIZE} bytes at most after latencyMs, and the
+ * caller processes the plain text at consumerMBps (0 for no processing).
+ * {@link CryptoInputStream} against {@link ReadAheadCryptoInputStream}, both
+ * with buffers of {@link #FETCH_SIZE} bytes, each operation reads the whole
+ * stream of {@link #STREAM_SIZE} bytes in reads of {@link #READ_SIZE}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadAheadBenchmark {
+  static final int STREAM_SIZE = 16 * BenchmarkUtils.PAYLOAD_SIZE;
+  static final int FETCH_SIZE = BenchmarkUtils.PAYLOAD_SIZE;
+  static final int READ_SIZE = 256 * 1024;
+
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"0", "5", "20"})
+  public int latencyMs;
+
+  @Param({"0", "200"})
+  public int consumerMBps;
+
+  private CryptoCodec codec;
+  private byte[] key;
+  private byte[] iv;
+  private byte[] encrypted;
+  private byte[] chunk;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    codec = BenchmarkUtils.newCodec(codecClass);
+    key = BenchmarkUtils.newKey(128);
+    iv = BenchmarkUtils.newIv();
+    encrypted = BenchmarkUtils.encrypt(codec, FETCH_SIZE, key, iv,
+        BenchmarkUtils.randomBytes(STREAM_SIZE));
+    chunk = new byte[READ_SIZE];
+  }
+
+  @Benchmark
+  public long serial() throws IOException {
+    return scan(new CryptoInputStream(new RemoteInputStream(encrypted,
+        latencyMs), codec, FETCH_SIZE, key, iv));
+  }
+
+  @Benchmark
+  public long readAhead() throws IOException {
+    return scan(new ReadAheadCryptoInputStream(new RemoteInputStream(
+        encrypted, latencyMs), codec, FETCH_SIZE, 4, key, iv));
+  }
+
+  private long scan(InputStream in) throws IOException {
+    long total = 0;
+    int n;
+    while ((n = in.read(chunk, 0, chunk.length)) > 0) {
+      total += n;
+      consume(n);
+    }
+    in.close();
+    return total;
+  }
+
+  /** Spin for the time the caller would process n bytes. */
+  private void consume(int n) {
+    if (consumerMBps == 0) {
+      return;
+    }
+    final long end = System.nanoTime() +
+        n * 1000000000L / (consumerMBps * 1024L * 1024);
+    while (System.nanoTime() < end) {
+      // Busy, like a parser.
+    }
+  }
+
+  /** A stream whose reads take latencyMs each. */
+  static class RemoteInputStream extends ByteArrayInputStream {
+    private final int latencyMs;
+
+    RemoteInputStream(byte[] buf, int latencyMs) {
+      super(buf);
+      this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      if (pos < count && latencyMs > 0) {
+        try {
+          Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return super.read(b, off, Math.min(len, FETCH_SIZE));
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CipherSuite;
+import com.intel.cryptostream.ConfigurationKeys;
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.WarmUpOptions;
+import com.intel.cryptostream.utils.NativeCodeLoader;
+
+/**
+ * Cold start costs, each measured once in a fresh JVM: loading the native
+ * library, which after the first fork finds it already extracted, getting
+ * the JCE codec, which must not load the native library, and the first
+ * stream of a codec with and without
+ * {@link CryptoCodec#warmUp(WarmUpOptions)}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+  @State(Scope.Benchmark)
+  public static class Cold {
+    @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+    public String codecClass;
+
+    CryptoCodec codec;
+    byte[] key;
+    byte[] iv;
+    byte[] plain;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      codec = BenchmarkUtils.newCodec(codecClass);
+      key = BenchmarkUtils.newKey(128);
+      iv = BenchmarkUtils.newIv();
+      plain = BenchmarkUtils.randomBytes(BenchmarkUtils.PAYLOAD_SIZE);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Warm extends Cold {
+    @Setup(Level.Trial)
+    public void warmUp() throws Exception {
+      codec.warmUp(new WarmUpOptions());
+    }
+  }
+
+  @Benchmark
+  public boolean loadNative() {
+    return NativeCodeLoader.isNativeCodeLoaded();
+  }
+
+  @Benchmark
+  public CryptoCodec jceCodec() {
+    System.setProperty(
+        ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CODEC_CLASSES_KEY_PREFIX +
+        CipherSuite.AES_CTR_NOPADDING.getConfigSuffix(),
+        BenchmarkUtils.JCE_CODEC);
+    return CryptoCodec.getInstance(CipherSuite.AES_CTR_NOPADDING);
+  }
+
+  @Benchmark
+  public byte[] firstStreamCold(Cold state) throws Exception {
+    return BenchmarkUtils.encrypt(state.codec, 8192, state.key, state.iv,
+        state.plain);
+  }
+
+  @Benchmark
+  public byte[] firstStreamWarm(Warm state) throws Exception {
+    return BenchmarkUtils.encrypt(state.codec, 8192, state.key, state.iv,
+        state.plain);
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.intel.cryptostream.CryptoCodec;
+import com.intel.cryptostream.CryptoInputStream;
+import com.intel.cryptostream.CryptoOutputStream;
+
+/**
+ * Cost of short-lived streams: each operation opens a stream, moves a small
+ * payload and closes it, so the score is dominated by stream setup and
+ * teardown rather than by the cipher.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class StreamLifecycleBenchmark {
+  @Param({BenchmarkUtils.JCE_CODEC, BenchmarkUtils.OPENSSL_CODEC})
+  public String codecClass;
+
+  @Param({"8192", "65536"})
+  public int bufferSize;
+
+  @Param({"256"})
+  public int payloadSize;
+
+  private CryptoCodec codec;
+  private byte[] key;
+  private byte[] iv;
+  private byte[] plain;
+  private byte[] encrypted;
+  private byte[] out;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    codec = BenchmarkUtils.newCodec(codecClass);
+    key = BenchmarkUtils.newKey(128);
+    iv = BenchmarkUtils.newIv();
+    plain = BenchmarkUtils.randomBytes(payloadSize);
+    encrypted = BenchmarkUtils.encrypt(codec, bufferSize, key, iv, plain);
+    out = new byte[payloadSize];
+  }
+
+  @Benchmark
+  public void writeSmall() throws IOException {
+    CryptoOutputStream cos = new CryptoOutputStream(
+        new BenchmarkUtils.NullOutputStream(), codec, bufferSize, key, iv);
+    cos.write(plain);
+    cos.close();
+  }
+
+  @Benchmark
+  public byte[] readSmall() throws IOException {
+    CryptoInputStream cis = new CryptoInputStream(
+        new BenchmarkUtils.CyclicInputStream(encrypted), codec, bufferSize,
+        key, iv);
+    int off = 0;
+    while (off < out.length) {
+      off += cis.read(out, off, out.length - off);
+    }
+    cis.close();
+    return out;
+  }
+}
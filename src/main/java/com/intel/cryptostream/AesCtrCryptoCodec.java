@@ -40,6 +40,14 @@ public abstract class AesCtrCryptoCodec extends CryptoCodec {
    */
   @Override
   public void calculateIV(byte[] initIV, long counter, byte[] IV) {
+    addCounter(initIV, counter, IV);
+  }
+
+  /**
+   * Static form of {@link #calculateIV(byte[], long, byte[])}, for the
+   * ciphers to reset their IV to a counter.
+   */
+  protected static void addCounter(byte[] initIV, long counter, byte[] IV) {
     Preconditions.checkArgument(initIV.length == AES_BLOCK_SIZE);
     Preconditions.checkArgument(IV.length == AES_BLOCK_SIZE);
 
@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.intel.cryptostream.utils.ReflectionUtils;
+
+/**
+ * The codecs of a cipher suite timed on this host, for the auto mode of
+ * {@link CryptoCodec#getInstance(CipherSuite)}, enabled by
+ * {@link ConfigurationKeys#CRYPTOSTREAM_CRYPTO_CODEC_AUTO_KEY}.
+ * <p/>
+ * Each configured codec, or each codec discovered via
+ * {@link java.util.ServiceLoader} if none is configured, encrypts direct
+ * buffers of a few sizes around the configured buffer size for a few
+ * milliseconds. The fastest codec wins, and the
+ * recommended buffer size is the smallest one within 5% of its best
+ * throughput, so streams don't hold more memory than needed. Codecs that
+ * can't be created are listed with the reason.
+ * <p/>
+ * The calibration runs once per process and cipher suite, see
+ * {@link #get(CipherSuite)}.
+ */
+public final class CodecCalibration {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CodecCalibration.class);
+
+  private static final long WARMUP_NANOS = 10000000L;
+  private static final long MEASURE_NANOS = 2000000L;
+  private static final double BUFFER_SIZE_TOLERANCE = 0.95;
+  private static final int MIN_BUFFER_SIZE = 512;
+
+  private static final ConcurrentMap<String, CodecCalibration> CACHE =
+      new ConcurrentHashMap<String, CodecCalibration>();
+
+  private final CipherSuite cipherSuite;
+  private final Class<? extends CryptoCodec> codecClass;
+  private final int bufferSize;
+  private final Map<String, Map<Integer, Double>> throughputs;
+  private final Map<String, String> failures;
+
+  private CodecCalibration(CipherSuite cipherSuite,
+      Class<? extends CryptoCodec> codecClass, int bufferSize,
+      Map<String, Map<Integer, Double>> throughputs,
+      Map<String, String> failures) {
+    this.cipherSuite = cipherSuite;
+    this.codecClass = codecClass;
+    this.bufferSize = bufferSize;
+    this.throughputs = Collections.unmodifiableMap(throughputs);
+    this.failures = Collections.unmodifiableMap(failures);
+  }
+
+  /**
+   * @return the calibration of the cipher suite, run by the first call and
+   * cached for the process.
+   */
+  public static CodecCalibration get(CipherSuite cipherSuite) {
+    CodecCalibration calibration = CACHE.get(cipherSuite.getName());
+    if (calibration == null) {
+      synchronized (CACHE) {
+        calibration = CACHE.get(cipherSuite.getName());
+        if (calibration == null) {
+          final Map<String, String> failures =
+              new LinkedHashMap<String, String>();
+          List<Class<? extends CryptoCodec>> klasses =
+              CryptoCodec.getCodecClasses(cipherSuite);
+          if (klasses == null) {
+            klasses = CryptoCodec.getServiceCodecClasses(failures);
+          }
+          calibration = calibrate(cipherSuite, klasses, failures);
+          LOG.info("{}", calibration);
+          CACHE.put(cipherSuite.getName(), calibration);
+        }
+      }
+    }
+    return calibration;
+  }
+
+  /** @return the calibration of the cipher suite, null if it didn't run. */
+  static CodecCalibration getCached(CipherSuite cipherSuite) {
+    return CACHE.get(cipherSuite.getName());
+  }
+
+  static CodecCalibration calibrate(CipherSuite cipherSuite,
+      List<Class<? extends CryptoCodec>> klasses,
+      Map<String, String> failures) {
+    final int configured = CryptoStreamUtils.getBufferSize();
+    final int blockSize = cipherSuite.getAlgorithmBlockSize();
+    final List<Integer> sizes = Lists.newArrayList();
+    for (int shift = -2; shift <= 2; shift++) {
+      int size = shift < 0 ? configured >> -shift : configured << shift;
+      size -= size % blockSize;
+      if (size >= MIN_BUFFER_SIZE) {
+        sizes.add(size);
+      }
+    }
+
+    final Map<String, Map<Integer, Double>> throughputs =
+        new LinkedHashMap<String, Map<Integer, Double>>();
+    Class<? extends CryptoCodec> best = null;
+    double bestThroughput = 0;
+    int bestSize = configured;
+    for (Class<? extends CryptoCodec> klass : klasses) {
+      final Map<Integer, Double> results;
+      try {
+        CryptoCodec codec = ReflectionUtils.newInstance(klass);
+        if (!codec.getCipherSuite().getName().equals(cipherSuite.getName())) {
+          failures.put(klass.getName(), "Doesn't meet the cipher suite " +
+              cipherSuite.getName() + ".");
+          continue;
+        }
+        results = measure(codec, sizes);
+      } catch (Throwable t) {
+        Throwable cause = t.getCause() != null ? t.getCause() : t;
+        failures.put(klass.getName(), String.valueOf(cause));
+        continue;
+      }
+      throughputs.put(klass.getName(), results);
+      double max = Collections.max(results.values());
+      if (max > bestThroughput) {
+        bestThroughput = max;
+        best = klass;
+        for (Map.Entry<Integer, Double> e : results.entrySet()) {
+          if (e.getValue() >= max * BUFFER_SIZE_TOLERANCE) {
+            bestSize = e.getKey();
+            break;
+          }
+        }
+      }
+    }
+    return new CodecCalibration(cipherSuite, best, bestSize, throughputs,
+        failures);
+  }
+
+  /** @return MB/s by buffer size, in the order of sizes. */
+  private static Map<Integer, Double> measure(CryptoCodec codec,
+      List<Integer> sizes) throws Exception {
+    final int maxSize = Collections.max(sizes);
+    final byte[] key = new byte[16];
+    final byte[] iv = new byte[codec.getCipherSuite().getAlgorithmBlockSize()];
+    final Random random = new Random();
+    random.nextBytes(key);
+    random.nextBytes(iv);
+    final Encryptor encryptor = codec.createEncryptor();
+    final ByteBuffer in = ByteBuffer.allocateDirect(maxSize);
+    final ByteBuffer out = ByteBuffer.allocateDirect(maxSize);
+    try {
+      encryptor.init(key, iv);
+      run(encryptor, in, out, sizes.get(0), WARMUP_NANOS);
+      final Map<Integer, Double> results = new LinkedHashMap<Integer, Double>();
+      for (int size : sizes) {
+        results.put(size, run(encryptor, in, out, size, MEASURE_NANOS));
+      }
+      return results;
+    } finally {
+      CryptoStreamUtils.freeDB(in);
+      CryptoStreamUtils.freeDB(out);
+      if (encryptor instanceof Closeable) {
+        ((Closeable) encryptor).close();
+      }
+    }
+  }
+
+  /** @return MB/s encrypting size bytes per call for nanos. */
+  private static double run(Encryptor encryptor, ByteBuffer in,
+      ByteBuffer out, int size, long nanos) throws IOException {
+    final long start = System.nanoTime();
+    long bytes = 0;
+    long elapsed;
+    do {
+      in.clear();
+      in.limit(size);
+      out.clear();
+      encryptor.encrypt(in, out);
+      bytes += size;
+    } while ((elapsed = System.nanoTime() - start) < nanos);
+    return bytes * 1000.0 / elapsed;
+  }
+
+  public CipherSuite getCipherSuite() {
+    return cipherSuite;
+  }
+
+  /** @return the fastest codec, null if no codec could be created. */
+  public Class<? extends CryptoCodec> getCodecClass() {
+    return codecClass;
+  }
+
+  /** @return the recommended buffer size for the fastest codec. */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** @return MB/s by codec class name and buffer size. */
+  public Map<String, Map<Integer, Double>> getThroughputs() {
+    return throughputs;
+  }
+
+  /** @return why a codec couldn't be calibrated, by codec class name. */
+  public Map<String, String> getFailures() {
+    return failures;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("Codec calibration for ")
+        .append(cipherSuite.getName()).append(": ");
+    if (codecClass == null) {
+      sb.append("no codec available");
+    } else {
+      sb.append(codecClass.getName()).append(" with buffer size ")
+          .append(bufferSize);
+    }
+    for (Map.Entry<String, Map<Integer, Double>> e : throughputs.entrySet()) {
+      sb.append("\n  ").append(e.getKey()).append(':');
+      for (Map.Entry<Integer, Double> r : e.getValue().entrySet()) {
+        sb.append(' ').append(r.getKey()).append("B=")
+            .append(Math.round(r.getValue())).append("MB/s");
+      }
+    }
+    for (Map.Entry<String, String> e : failures.entrySet()) {
+      sb.append("\n  ").append(e.getKey()).append(": unavailable, ")
+          .append(e.getValue());
+    }
+    return sb.toString();
+  }
+}
@@ -27,6 +27,8 @@ public class ConfigurationKeys {
       "cryptostream.crypto.cipher.suite";
   public static final String CRYPTOSTREAM_CRYPTO_CIPHER_SUITE_DEFAULT = 
       "AES/CTR/NoPadding";
+  public static final String CRYPTOSTREAM_CRYPTO_CODEC_AUTO_KEY =
+      "cryptostream.crypto.codec.auto";
 
   public static final String CRYPTOSTREAM_RANDOM_DEVICE_FILE_PATH_KEY = 
       "cryptostream.random.device.file.path";
@@ -47,6 +49,47 @@ public class ConfigurationKeys {
   public static final String CRYPTOSTREAM_CRYPTO_BUFFER_SIZE_KEY = 
       "cryptostream.crypto.buffer.size";
 
+  public static final int CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_DEFAULT = 64;
+  public static final String CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_KEY = 
+      "cryptostream.crypto.cipher.pool.size";
+
+  public static final long CRYPTOSTREAM_BUFFER_POOL_CAPACITY_DEFAULT = 
+      64L * 1024 * 1024;
+  public static final String CRYPTOSTREAM_BUFFER_POOL_CAPACITY_KEY = 
+      "cryptostream.buffer.pool.capacity";
+
+  public static final int CRYPTOSTREAM_MAPPED_WINDOW_SIZE_DEFAULT = 
+      4 * 1024 * 1024;
+  public static final String CRYPTOSTREAM_MAPPED_WINDOW_SIZE_KEY = 
+      "cryptostream.mapped.window.size";
+  public static final int CRYPTOSTREAM_MAPPED_PREFETCH_DEPTH_DEFAULT = 1;
+  public static final String CRYPTOSTREAM_MAPPED_PREFETCH_DEPTH_KEY = 
+      "cryptostream.mapped.prefetch.depth";
+
+  public static final int CRYPTOSTREAM_READAHEAD_BUFFER_SIZE_DEFAULT = 
+      256 * 1024;
+  public static final String CRYPTOSTREAM_READAHEAD_BUFFER_SIZE_KEY = 
+      "cryptostream.readahead.buffer.size";
+  public static final int CRYPTOSTREAM_READAHEAD_DEPTH_DEFAULT = 4;
+  public static final String CRYPTOSTREAM_READAHEAD_DEPTH_KEY = 
+      "cryptostream.readahead.depth";
+
+  public static final int CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_DEFAULT = 
+      1024 * 1024;
+  public static final String CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_KEY = 
+      "cryptostream.parallel.chunk.size";
+  public static final String CRYPTOSTREAM_PARALLEL_THREADS_KEY = 
+      "cryptostream.parallel.threads";
+  public static final String CRYPTOSTREAM_PARALLEL_READ_KEY = 
+      "cryptostream.parallel.read";
+
+  public static final int CRYPTOSTREAM_SERVICE_BATCH_SIZE_DEFAULT = 64;
+  public static final String CRYPTOSTREAM_SERVICE_BATCH_SIZE_KEY = 
+      "cryptostream.service.batch.size";
+
+  public static final String CRYPTOSTREAM_HYBRID_THRESHOLD_KEY = 
+      "cryptostream.hybrid.threshold";
+
   public static final String CRYPTOSTREAM_LIB_PATH_KEY = "cryptostream.lib.path";
   public static final String CRYPTOSTREAM_LIB_NAME_KEY = "cryptostream.lib.name";
   public static final String CRYPTOSTREAM_TEMPDIR_KEY = "cryptostream.tempdir";
@@ -17,58 +17,185 @@
  */
 package com.intel.cryptostream;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.security.GeneralSecurityException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.intel.cryptostream.utils.ChannelOutputStream;
 import com.intel.cryptostream.utils.ReflectionUtils;
 
 /**
  * Crypto codec class, encapsulates encryptor/decryptor pair.
+ * <p/>
+ * Creating an encryptor or decryptor is expensive (provider lookup for JCE,
+ * a native context for OpenSSL), so the codec keeps bounded pools of them.
+ * Streams borrow with {@link #borrowEncryptor()} and
+ * {@link #borrowDecryptor()}, and give them back on close. The pools hold
+ * at most {@link ConfigurationKeys#CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_KEY}
+ * instances per mode, extra instances are closed if they are
+ * {@link Closeable}, which releases native contexts right away.
  */
 public abstract class CryptoCodec {
   public static Logger LOG = LoggerFactory.getLogger(CryptoCodec.class);
 
+  private final int cipherPoolSize = CryptoStreamUtils.getCipherPoolSize();
+  /** Encryptor pool */
+  private final Queue<Encryptor> encryptorPool =
+      new ConcurrentLinkedQueue<Encryptor>();
+  private final AtomicInteger encryptorPoolSize = new AtomicInteger();
+  /** Decryptor pool */
+  private final Queue<Decryptor> decryptorPool =
+      new ConcurrentLinkedQueue<Decryptor>();
+  private final AtomicInteger decryptorPoolSize = new AtomicInteger();
+  /** Payload of each warm-up round. */
+  private static final int WARM_UP_ROUND_SIZE = 1024 * 1024;
+  /** Shared codecs by cipher suite and configuration. */
+  private static final ConcurrentMap<String, CryptoCodec> INSTANCES =
+      new ConcurrentHashMap<String, CryptoCodec>();
+  /** Ciphers of the one-shot methods, one per thread. */
+  private final ThreadLocal<Encryptor> threadEncryptor =
+      new ThreadLocal<Encryptor>();
+  private final ThreadLocal<Decryptor> threadDecryptor =
+      new ThreadLocal<Decryptor>();
+
   /**
    * Get crypto codec for specified algorithm/mode/padding.
+   * <p/>
+   * The first configured codec that can be created is returned, or in auto
+   * mode the fastest one on this host, see {@link CodecCalibration}. If no
+   * codec is configured for the cipher suite, the codecs are discovered via
+   * {@link ServiceLoader}.
+   * <p/>
+   * Codecs are thread-safe, so the instance is shared: the configuration is
+   * resolved and the codec created once per cipher suite and configuration,
+   * later calls only read the configuration properties.
    * 
-   * @param conf
-   *          the configuration
    * @param cipherSuite
    *          algorithm/mode/padding
    * @return CryptoCodec the codec object. Null value will be returned if no
-   *         crypto codec classes with cipher suite configured.
+   *         crypto codec is available for the cipher suite.
    */
   public static CryptoCodec getInstance(CipherSuite cipherSuite) {
+    final boolean auto = CryptoStreamUtils.isCodecAutoSelected();
+    final String key = cipherSuite.getName() + '|' + auto + '|' +
+        CryptoStreamUtils.getCodecString(cipherSuite);
+    CryptoCodec codec = INSTANCES.get(key);
+    if (codec == null) {
+      synchronized (INSTANCES) {
+        codec = INSTANCES.get(key);
+        if (codec == null) {
+          codec = newInstance(cipherSuite, auto);
+          if (codec != null) {
+            INSTANCES.put(key, codec);
+          }
+        }
+      }
+    }
+    return codec;
+  }
+
+  /** Create the selected codec only, the others are not instantiated. */
+  private static CryptoCodec newInstance(CipherSuite cipherSuite,
+      boolean auto) {
+    if (auto) {
+      Class<? extends CryptoCodec> klass =
+          CodecCalibration.get(cipherSuite).getCodecClass();
+      if (klass != null) {
+        try {
+          return ReflectionUtils.newInstance(klass);
+        } catch (Exception e) {
+          LOG.debug("Calibrated crypto codec {} is not available.",
+              klass.getName());
+        }
+      }
+    }
     List<Class<? extends CryptoCodec>> klasses = getCodecClasses(cipherSuite);
     if (klasses == null) {
-      return null;
+      return loadCodec(cipherSuite);
     }
-    CryptoCodec codec = null;
     for (Class<? extends CryptoCodec> klass : klasses) {
       try {
-        CryptoCodec c = ReflectionUtils.newInstance(klass);
-        if (c.getCipherSuite().getName().equals(cipherSuite.getName())) {
-          if (codec == null) {
-            LOG.debug("Using crypto codec {}.", klass.getName());
-            codec = c;
-          }
-        } else {
-          LOG.debug(
-              "Crypto codec {} doesn't meet the cipher suite {}.",
-              klass.getName(), cipherSuite.getName());
+        CryptoCodec codec = ReflectionUtils.newInstance(klass);
+        if (codec.getCipherSuite().getName().equals(cipherSuite.getName())) {
+          LOG.debug("Using crypto codec {}.", klass.getName());
+          return codec;
         }
+        LOG.debug("Crypto codec {} doesn't meet the cipher suite {}.",
+            klass.getName(), cipherSuite.getName());
       } catch (Exception e) {
         LOG.debug("Crypto codec {} is not available.",
             klass.getName());
       }
     }
-    
-    return codec;
+    return null;
+  }
+
+  /**
+   * @return the first codec discovered via {@link ServiceLoader} meeting
+   * the cipher suite. Providers are instantiated one at a time, in the
+   * order of the META-INF/services files.
+   */
+  private static CryptoCodec loadCodec(CipherSuite cipherSuite) {
+    final Iterator<CryptoCodec> codecs =
+        ServiceLoader.load(CryptoCodec.class).iterator();
+    while (true) {
+      try {
+        if (!codecs.hasNext()) {
+          return null;
+        }
+        CryptoCodec codec = codecs.next();
+        if (codec.getCipherSuite().getName().equals(cipherSuite.getName())) {
+          LOG.debug("Using crypto codec {}.", codec.getClass().getName());
+          return codec;
+        }
+      } catch (ServiceConfigurationError e) {
+        LOG.debug("Crypto codec is not available: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param failures collects why providers couldn't be created.
+   * @return the classes of all the codecs discovered via
+   * {@link ServiceLoader} that could be created.
+   */
+  static List<Class<? extends CryptoCodec>> getServiceCodecClasses(
+      Map<String, String> failures) {
+    final List<Class<? extends CryptoCodec>> result = Lists.newArrayList();
+    final Iterator<CryptoCodec> codecs =
+        ServiceLoader.load(CryptoCodec.class).iterator();
+    while (true) {
+      try {
+        if (!codecs.hasNext()) {
+          return result;
+        }
+        result.add(codecs.next().getClass());
+      } catch (ServiceConfigurationError e) {
+        failures.put(e.getMessage(), String.valueOf(e.getCause()));
+      }
+    }
   }
 
   /**
@@ -78,13 +205,13 @@ public abstract class CryptoCodec {
    * @param conf
    *          the configuration
    * @return CryptoCodec the codec object Null value will be returned if no
-   *         crypto codec classes with cipher suite configured.
+   *         crypto codec is available for the cipher suite.
    */
   public static CryptoCodec getInstance() {
     return getInstance(CryptoStreamUtils.getCryptoSuite());
   }
 
-  private static List<Class<? extends CryptoCodec>> getCodecClasses(
+  static List<Class<? extends CryptoCodec>> getCodecClasses(
       CipherSuite cipherSuite) {
     List<Class<? extends CryptoCodec>> result = Lists.newArrayList();
     String codecString = CryptoStreamUtils.getCodecString(cipherSuite);
@@ -125,6 +252,439 @@ public abstract class CryptoCodec {
    */
   public abstract Decryptor createDecryptor() throws GeneralSecurityException;
   
+  /**
+   * Borrow an encryptor from the pool, or create one if the pool is empty.
+   * The encryptor must be initialized before use, and given back with
+   * {@link #returnEncryptor(Encryptor)}.
+   * @return Encryptor the encryptor
+   */
+  public Encryptor borrowEncryptor() throws GeneralSecurityException {
+    Encryptor encryptor = encryptorPool.poll();
+    if (encryptor == null) {
+      return createEncryptor();
+    }
+    encryptorPoolSize.decrementAndGet();
+    return encryptor;
+  }
+
+  /**
+   * Give back an encryptor, it's closed if the pool is full.
+   * @param encryptor the encryptor, may be null
+   */
+  public void returnEncryptor(Encryptor encryptor) {
+    if (encryptor == null) {
+      return;
+    }
+    if (encryptorPoolSize.incrementAndGet() <= cipherPoolSize) {
+      encryptorPool.add(encryptor);
+    } else {
+      encryptorPoolSize.decrementAndGet();
+      release(encryptor);
+    }
+  }
+
+  /**
+   * Borrow a decryptor from the pool, or create one if the pool is empty.
+   * The decryptor must be initialized before use, and given back with
+   * {@link #returnDecryptor(Decryptor)}.
+   * @return Decryptor the decryptor
+   */
+  public Decryptor borrowDecryptor() throws GeneralSecurityException {
+    Decryptor decryptor = decryptorPool.poll();
+    if (decryptor == null) {
+      return createDecryptor();
+    }
+    decryptorPoolSize.decrementAndGet();
+    return decryptor;
+  }
+
+  /**
+   * Give back a decryptor, it's closed if the pool is full.
+   * @param decryptor the decryptor, may be null
+   */
+  public void returnDecryptor(Decryptor decryptor) {
+    if (decryptor == null) {
+      return;
+    }
+    if (decryptorPoolSize.incrementAndGet() <= cipherPoolSize) {
+      decryptorPool.add(decryptor);
+    } else {
+      decryptorPoolSize.decrementAndGet();
+      release(decryptor);
+    }
+  }
+
+  /**
+   * Encrypt a batch of independent buffers: inBuffers[i] into outBuffers[i]
+   * with encryptors[i], in order, as
+   * {@link Encryptor#encrypt(ByteBuffer, ByteBuffer)} does. An encryptor may
+   * appear more than once. Codecs may process the whole batch in a single
+   * native call, which pays off for many small buffers.
+   */
+  public void encryptBatch(Encryptor[] encryptors, ByteBuffer[] inBuffers,
+      ByteBuffer[] outBuffers) throws IOException {
+    checkBatch(encryptors, inBuffers, outBuffers);
+    for (int i = 0; i < encryptors.length; i++) {
+      encryptors[i].encrypt(inBuffers[i], outBuffers[i]);
+    }
+  }
+
+  /**
+   * Decrypt a batch of independent buffers: inBuffers[i] into outBuffers[i]
+   * with decryptors[i], in order.
+   * @see #encryptBatch(Encryptor[], ByteBuffer[], ByteBuffer[])
+   */
+  public void decryptBatch(Decryptor[] decryptors, ByteBuffer[] inBuffers,
+      ByteBuffer[] outBuffers) throws IOException {
+    checkBatch(decryptors, inBuffers, outBuffers);
+    for (int i = 0; i < decryptors.length; i++) {
+      decryptors[i].decrypt(inBuffers[i], outBuffers[i]);
+    }
+  }
+
+  protected static void checkBatch(Object[] ciphers, ByteBuffer[] inBuffers,
+      ByteBuffer[] outBuffers) {
+    Preconditions.checkArgument(ciphers.length == inBuffers.length &&
+        ciphers.length == outBuffers.length,
+        "Batch arrays must have the same length.");
+  }
+
+  /**
+   * Encrypt len bytes of input with a key and an IV in one call, without a
+   * stream. Each thread reuses its own encryptor, so for a small message
+   * the cost is close to the raw cipher cost; with OpenSSL the IV is set and
+   * the data encrypted in a single native call when the key is unchanged.
+   * The input and the output may be the same array.
+   */
+  public void encrypt(byte[] key, byte[] iv, byte[] input, int inputOffset,
+      int len, byte[] output, int outputOffset) throws IOException {
+    checkOneShot(input, inputOffset, len, output, outputOffset);
+    final Encryptor encryptor = getThreadEncryptor();
+    encryptor.init(key, iv);
+    encryptor.encrypt(input, inputOffset, len, output, outputOffset);
+  }
+
+  /**
+   * Decrypt len bytes of input with a key and an IV in one call.
+   * @see #encrypt(byte[], byte[], byte[], int, int, byte[], int)
+   */
+  public void decrypt(byte[] key, byte[] iv, byte[] input, int inputOffset,
+      int len, byte[] output, int outputOffset) throws IOException {
+    checkOneShot(input, inputOffset, len, output, outputOffset);
+    final Decryptor decryptor = getThreadDecryptor();
+    decryptor.init(key, iv);
+    decryptor.decrypt(input, inputOffset, len, output, outputOffset);
+  }
+
+  /**
+   * Encrypt the remaining bytes of inBuffer into outBuffer with a key and
+   * an IV in one call. Direct and heap buffers are both accepted, a mix of
+   * them is staged through the {@link DirectBufferPool}. Upon return the
+   * positions are advanced as with
+   * {@link Encryptor#encrypt(ByteBuffer, ByteBuffer)}.
+   * @see #encrypt(byte[], byte[], byte[], int, int, byte[], int)
+   */
+  public void encrypt(byte[] key, byte[] iv, ByteBuffer inBuffer,
+      ByteBuffer outBuffer) throws IOException {
+    checkOneShot(inBuffer, outBuffer);
+    final Encryptor encryptor = getThreadEncryptor();
+    encryptor.init(key, iv);
+    final int len = inBuffer.remaining();
+    if (len == 0) {
+      return;
+    }
+    if (inBuffer.hasArray() && outBuffer.hasArray()) {
+      encryptor.encrypt(inBuffer.array(),
+          inBuffer.arrayOffset() + inBuffer.position(), len,
+          outBuffer.array(), outBuffer.arrayOffset() + outBuffer.position());
+      inBuffer.position(inBuffer.limit());
+      outBuffer.position(outBuffer.position() + len);
+    } else if (inBuffer.isDirect() && outBuffer.isDirect()) {
+      encryptor.encrypt(inBuffer, outBuffer);
+    } else {
+      final DirectBufferPool pool = DirectBufferPool.getInstance();
+      final ByteBuffer staging = pool.getBuffer(len);
+      ByteBuffer second = null;
+      try {
+        if (inBuffer.isDirect()) {
+          encryptor.encrypt(inBuffer, staging);
+          staging.flip();
+          outBuffer.put(staging);
+        } else if (outBuffer.isDirect()) {
+          staging.put(inBuffer);
+          staging.flip();
+          encryptor.encrypt(staging, outBuffer);
+        } else {
+          // Two heap buffers, one without an accessible array, e.g. read-only.
+          staging.put(inBuffer);
+          staging.flip();
+          second = encryptor.isInPlaceSupported() ? null : pool.getBuffer(len);
+          final ByteBuffer result = second != null ? second :
+              staging.duplicate();
+          encryptor.encrypt(staging, result);
+          result.flip();
+          outBuffer.put(result);
+        }
+      } finally {
+        pool.returnBuffer(second);
+        pool.returnBuffer(staging);
+      }
+    }
+  }
+
+  /**
+   * Decrypt the remaining bytes of inBuffer into outBuffer with a key and
+   * an IV in one call.
+   * @see #encrypt(byte[], byte[], ByteBuffer, ByteBuffer)
+   */
+  public void decrypt(byte[] key, byte[] iv, ByteBuffer inBuffer,
+      ByteBuffer outBuffer) throws IOException {
+    checkOneShot(inBuffer, outBuffer);
+    final Decryptor decryptor = getThreadDecryptor();
+    decryptor.init(key, iv);
+    final int len = inBuffer.remaining();
+    if (len == 0) {
+      return;
+    }
+    if (inBuffer.hasArray() && outBuffer.hasArray()) {
+      decryptor.decrypt(inBuffer.array(),
+          inBuffer.arrayOffset() + inBuffer.position(), len,
+          outBuffer.array(), outBuffer.arrayOffset() + outBuffer.position());
+      inBuffer.position(inBuffer.limit());
+      outBuffer.position(outBuffer.position() + len);
+    } else if (inBuffer.isDirect() && outBuffer.isDirect()) {
+      decryptor.decrypt(inBuffer, outBuffer);
+    } else {
+      final DirectBufferPool pool = DirectBufferPool.getInstance();
+      final ByteBuffer staging = pool.getBuffer(len);
+      ByteBuffer second = null;
+      try {
+        if (inBuffer.isDirect()) {
+          decryptor.decrypt(inBuffer, staging);
+          staging.flip();
+          outBuffer.put(staging);
+        } else if (outBuffer.isDirect()) {
+          staging.put(inBuffer);
+          staging.flip();
+          decryptor.decrypt(staging, outBuffer);
+        } else {
+          // Two heap buffers, one without an accessible array, e.g. read-only.
+          staging.put(inBuffer);
+          staging.flip();
+          second = decryptor.isInPlaceSupported() ? null : pool.getBuffer(len);
+          final ByteBuffer result = second != null ? second :
+              staging.duplicate();
+          decryptor.decrypt(staging, result);
+          result.flip();
+          outBuffer.put(result);
+        }
+      } finally {
+        pool.returnBuffer(second);
+        pool.returnBuffer(staging);
+      }
+    }
+  }
+
+  private static void checkOneShot(byte[] input, int inputOffset, int len,
+      byte[] output, int outputOffset) {
+    Preconditions.checkPositionIndexes(inputOffset, inputOffset + len,
+        input.length);
+    Preconditions.checkPositionIndexes(outputOffset, outputOffset + len,
+        output.length);
+  }
+
+  private static void checkOneShot(ByteBuffer inBuffer, ByteBuffer outBuffer) {
+    Preconditions.checkArgument(outBuffer.remaining() >= inBuffer.remaining(),
+        "Output buffer is not sufficient.");
+  }
+
+  private Encryptor getThreadEncryptor() throws IOException {
+    Encryptor encryptor = threadEncryptor.get();
+    if (encryptor == null) {
+      try {
+        encryptor = createEncryptor();
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+      threadEncryptor.set(encryptor);
+    }
+    return encryptor;
+  }
+
+  private Decryptor getThreadDecryptor() throws IOException {
+    Decryptor decryptor = threadDecryptor.get();
+    if (decryptor == null) {
+      try {
+        decryptor = createDecryptor();
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+      threadDecryptor.set(decryptor);
+    }
+    return decryptor;
+  }
+
+  /**
+   * Pay the one-time costs of the first streams before live traffic:
+   * <ul>
+   * <li>the codec pools are filled with initialized encryptors and
+   * decryptors, for a native codec this has loaded the library and
+   * resolved its symbols, and creates the native contexts;</li>
+   * <li>the {@link DirectBufferPool} is filled with buffers;</li>
+   * <li>synthetic traffic goes through {@link CryptoOutputStream} and
+   * {@link CryptoInputStream}, alternately over plain streams and channels,
+   * with small and large reads and writes, so the JIT compiles those paths.
+   * </li>
+   * </ul>
+   */
+  public void warmUp(WarmUpOptions options) throws IOException {
+    final byte[] key = new byte[16];
+    final byte[] iv = new byte[getCipherSuite().getAlgorithmBlockSize()];
+    generateSecureRandom(key);
+    generateSecureRandom(iv);
+
+    final Encryptor[] encryptors = new Encryptor[options.getCiphers()];
+    final Decryptor[] decryptors = new Decryptor[options.getCiphers()];
+    try {
+      for (int i = 0; i < encryptors.length; i++) {
+        encryptors[i] = borrowEncryptor();
+        encryptors[i].init(key, iv);
+        decryptors[i] = borrowDecryptor();
+        decryptors[i].init(key, iv);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    } finally {
+      for (int i = 0; i < encryptors.length; i++) {
+        returnEncryptor(encryptors[i]);
+        returnDecryptor(decryptors[i]);
+      }
+    }
+
+    final DirectBufferPool pool = DirectBufferPool.getInstance();
+    final ByteBuffer[] buffers = new ByteBuffer[options.getBuffers()];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.getBuffer(options.getBufferSize());
+    }
+    for (ByteBuffer buffer : buffers) {
+      pool.returnBuffer(buffer);
+    }
+
+    if (options.getTrafficBytes() > 0) {
+      warmUpStreams(options.getTrafficBytes(), options.getBufferSize(), key,
+          iv);
+    }
+  }
+
+  private void warmUpStreams(long trafficBytes, int bufferSize, byte[] key,
+      byte[] iv) throws IOException {
+    final byte[] data = new byte[(int) Math.max(1,
+        Math.min(WARM_UP_ROUND_SIZE, trafficBytes / 2))];
+    new Random().nextBytes(data);
+    final int[] sizes = {1, 100, bufferSize / 2 + 1, 2 * bufferSize + 3};
+    final byte[] b = new byte[sizes[sizes.length - 1]];
+    final ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+    try {
+      boolean channel = false;
+      for (long done = 0; done < trafficBytes; done += 2L * data.length) {
+        final ByteArrayOutputStream bos =
+            new ByteArrayOutputStream(data.length);
+        final CryptoOutputStream out = new CryptoOutputStream(channel ?
+            new ChannelOutputStream(Channels.newChannel(bos)) : bos,
+            this, bufferSize, key, iv);
+        try {
+          int i = 0;
+          for (int off = 0; off < data.length; ) {
+            final int len = Math.min(sizes[i++ % sizes.length],
+                data.length - off);
+            if (len == 1) {
+              out.write(data[off]);
+            } else {
+              out.write(data, off, len);
+            }
+            off += len;
+          }
+        } finally {
+          out.close();
+        }
+
+        final byte[] encrypted = bos.toByteArray();
+        final CryptoInputStream in = new CryptoInputStream(channel ?
+            new ChannelInputStream(encrypted) :
+            new ByteArrayInputStream(encrypted), this, bufferSize, key, iv);
+        try {
+          int i = 0;
+          int n;
+          do {
+            final int len = sizes[i++ % sizes.length];
+            if (len == 1) {
+              n = in.read();
+            } else if (channel) {
+              direct.clear();
+              direct.limit(len);
+              n = in.read(direct);
+            } else {
+              n = in.read(b, 0, len);
+            }
+          } while (n >= 0);
+        } finally {
+          in.close();
+        }
+        channel = !channel;
+      }
+    } finally {
+      CryptoStreamUtils.freeDB(direct);
+    }
+  }
+
+  /** An in-memory stream CryptoInputStream reads as a channel. */
+  private static class ChannelInputStream extends ByteArrayInputStream
+      implements ReadableByteChannel {
+    ChannelInputStream(byte[] buf) {
+      super(buf);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) {
+      if (pos >= count) {
+        return -1;
+      }
+      final int n = Math.min(dst.remaining(), count - pos);
+      dst.put(buf, pos, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+
+  /** Close the pooled encryptors and decryptors. */
+  public void clearPools() {
+    Encryptor encryptor;
+    while ((encryptor = encryptorPool.poll()) != null) {
+      encryptorPoolSize.decrementAndGet();
+      release(encryptor);
+    }
+    Decryptor decryptor;
+    while ((decryptor = decryptorPool.poll()) != null) {
+      decryptorPoolSize.decrementAndGet();
+      release(decryptor);
+    }
+  }
+
+  private static void release(Object cipher) {
+    if (cipher instanceof Closeable) {
+      try {
+        ((Closeable) cipher).close();
+      } catch (IOException e) {
+        LOG.debug("Failed to close {}.", cipher, e);
+      }
+    }
+  }
+
   /**
    * This interface is only for Counter (CTR) mode. Generally the Encryptor
    * or Decryptor calculates the IV and maintain encryption context internally. 
@@ -0,0 +1,506 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * CryptoFileChannel is a {@link FileChannel} over an encrypted file. AES CTR
+ * mode lets any byte range be encrypted and decrypted independently, the
+ * counter and padding are derived from the file position:
+ * <p/>
+ * counter = base + pos/(algorithm blocksize);
+ * padding = pos%(algorithm blocksize);
+ * <p/>
+ * The positional {@link #read(ByteBuffer, long)} and
+ * {@link #write(ByteBuffer, long)} are thread-safe: each call borrows an
+ * encryptor or decryptor from the codec pools and direct buffers
+ * from the {@link DirectBufferPool}, so several threads can read and write
+ * disjoint regions concurrently. The relative read and write methods
+ * serialize on the channel position.
+ * <p/>
+ * The file format is the same as {@link CryptoOutputStream} and
+ * {@link CryptoInputStream} with the same key and iv, they can be mixed.
+ */
+public class CryptoFileChannel extends FileChannel {
+  private final FileChannel channel;
+  private final CryptoCodec codec;
+  private final int bufferSize;
+  private final byte[] key;
+  private final byte[] initIV;
+  private final boolean append;
+
+  /** Channel position, guarded by positionLock. */
+  private long position = 0;
+  private final Object positionLock = new Object();
+
+
+  public CryptoFileChannel(FileChannel channel, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv) throws IOException {
+    this(channel, codec, bufferSize, key, iv, false);
+  }
+
+  /**
+   * @param append if true, every relative write goes to the end of the file,
+   * like a channel obtained from FileOutputStream opened in append mode.
+   */
+  public CryptoFileChannel(FileChannel channel, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv, boolean append)
+      throws IOException {
+    Preconditions.checkNotNull(channel);
+    CryptoStreamUtils.checkCodec(codec);
+    this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
+    this.channel = channel;
+    this.codec = codec;
+    this.key = key.clone();
+    this.initIV = iv.clone();
+    this.append = append;
+    this.position = append ? channel.size() : channel.position();
+  }
+
+  public CryptoFileChannel(FileChannel channel, CryptoCodec codec,
+      byte[] key, byte[] iv) throws IOException {
+    this(channel, codec, CryptoStreamUtils.getBufferSize(), key, iv);
+  }
+
+  public FileChannel getWrappedChannel() {
+    return channel;
+  }
+
+  /**
+   * Positional read. Reads the cipher text at position, decrypts it and puts
+   * the plain text into dst. Doesn't change the position of this channel.
+   * @return int the number of bytes read, or -1 if position is at or beyond
+   * the end of the file.
+   */
+  @Override
+  public int read(ByteBuffer dst, long position) throws IOException {
+    Preconditions.checkArgument(position >= 0, "Negative position.");
+    checkOpen();
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    final Decryptor decryptor = getDecryptor();
+    final boolean inPlace = decryptor.isInPlaceSupported();
+    ByteBuffer inBuffer = getBuffer();
+    ByteBuffer outBuffer = inPlace ? inBuffer.duplicate() : getBuffer();
+    try {
+      updateCipher(decryptor, position);
+      byte padding = getPadding(position);
+
+      int total = 0;
+      while (dst.hasRemaining()) {
+        inBuffer.clear();
+        inBuffer.position(padding);
+        final int toRead = Math.min(dst.remaining(), inBuffer.remaining());
+        inBuffer.limit(padding + toRead);
+        final int n = readFully(inBuffer, position + total);
+        if (n <= 0) {
+          break;
+        }
+
+        inBuffer.flip();
+        outBuffer.clear();
+        decryptor.decrypt(inBuffer, outBuffer);
+        outBuffer.flip();
+        outBuffer.position(padding);
+        dst.put(outBuffer);
+        total += n;
+
+        if (decryptor.isContextReset()) {
+          /*
+           * Some implementations can't maintain context so a re-init is
+           * necessary after each decryption call.
+           */
+          updateCipher(decryptor, position + total);
+          padding = getPadding(position + total);
+        } else {
+          padding = 0;
+        }
+        if (n < toRead) { // EOF
+          break;
+        }
+      }
+
+      return total == 0 ? -1 : total;
+    } finally {
+      returnBuffer(inBuffer);
+      if (!inPlace) {
+        returnBuffer(outBuffer);
+      }
+      returnDecryptor(decryptor);
+    }
+  }
+
+  /**
+   * Positional write. Encrypts all bytes remaining in src and writes the
+   * cipher text at position. Doesn't change the position of this channel.
+   * If position is beyond the end of the file, the file is grown and the
+   * gap is unspecified.
+   * @return int the number of bytes written.
+   */
+  @Override
+  public int write(ByteBuffer src, long position) throws IOException {
+    Preconditions.checkArgument(position >= 0, "Negative position.");
+    checkOpen();
+    final int len = src.remaining();
+    if (len == 0) {
+      return 0;
+    }
+
+    final Encryptor encryptor = getEncryptor();
+    final boolean inPlace = encryptor.isInPlaceSupported();
+    ByteBuffer inBuffer = getBuffer();
+    ByteBuffer outBuffer = inPlace ? inBuffer.duplicate() : getBuffer();
+    try {
+      updateCipher(encryptor, position);
+      byte padding = getPadding(position);
+
+      int total = 0;
+      while (total < len) {
+        inBuffer.clear();
+        inBuffer.position(padding);
+        final int n = Math.min(len - total, inBuffer.remaining());
+        final int limit = src.limit();
+        src.limit(src.position() + n);
+        inBuffer.put(src);
+        src.limit(limit);
+
+        inBuffer.flip();
+        outBuffer.clear();
+        encryptor.encrypt(inBuffer, outBuffer);
+        outBuffer.flip();
+        outBuffer.position(padding);
+        writeFully(outBuffer, position + total);
+        total += n;
+
+        if (encryptor.isContextReset()) {
+          /*
+           * Some implementations can't maintain context so a re-init is
+           * necessary after each encryption call.
+           */
+          updateCipher(encryptor, position + total);
+          padding = getPadding(position + total);
+        } else {
+          padding = 0;
+        }
+      }
+
+      return total;
+    } finally {
+      returnBuffer(inBuffer);
+      if (!inPlace) {
+        returnBuffer(outBuffer);
+      }
+      returnEncryptor(encryptor);
+    }
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    synchronized (positionLock) {
+      final int n = read(dst, position);
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts, int offset, int length)
+      throws IOException {
+    if (offset < 0 || length < 0 || offset > dsts.length - length) {
+      throw new IndexOutOfBoundsException();
+    }
+    synchronized (positionLock) {
+      long total = 0;
+      for (int i = offset; i < offset + length; i++) {
+        if (!dsts[i].hasRemaining()) {
+          continue;
+        }
+        final int n = read(dsts[i]);
+        if (n < 0) {
+          return total == 0 ? -1 : total;
+        }
+        total += n;
+        if (dsts[i].hasRemaining()) {
+          break;
+        }
+      }
+      return total;
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    synchronized (positionLock) {
+      if (append) {
+        position = channel.size();
+      }
+      final int n = write(src, position);
+      position += n;
+      return n;
+    }
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length)
+      throws IOException {
+    if (offset < 0 || length < 0 || offset > srcs.length - length) {
+      throw new IndexOutOfBoundsException();
+    }
+    synchronized (positionLock) {
+      long total = 0;
+      for (int i = offset; i < offset + length; i++) {
+        total += write(srcs[i]);
+      }
+      return total;
+    }
+  }
+
+  @Override
+  public long position() throws IOException {
+    checkOpen();
+    synchronized (positionLock) {
+      return append ? channel.size() : position;
+    }
+  }
+
+  @Override
+  public FileChannel position(long newPosition) throws IOException {
+    Preconditions.checkArgument(newPosition >= 0, "Negative position.");
+    checkOpen();
+    synchronized (positionLock) {
+      position = newPosition;
+    }
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Truncate the file. Cipher text and plain text have a 1:1 mapping, so
+   * this is the underlying file truncation.
+   */
+  @Override
+  public FileChannel truncate(long size) throws IOException {
+    Preconditions.checkArgument(size >= 0, "Negative size.");
+    checkOpen();
+    synchronized (positionLock) {
+      channel.truncate(size);
+      if (position > size) {
+        position = size;
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public void force(boolean metaData) throws IOException {
+    channel.force(metaData);
+  }
+
+  /** Decrypt and write to target, the bytes are copied through a buffer. */
+  @Override
+  public long transferTo(long position, long count,
+      WritableByteChannel target) throws IOException {
+    Preconditions.checkArgument(position >= 0 && count >= 0);
+    ByteBuffer buf = getBuffer();
+    try {
+      long total = 0;
+      while (total < count) {
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), count - total));
+        final int n = read(buf, position + total);
+        if (n <= 0) {
+          break;
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+          target.write(buf);
+        }
+        total += n;
+      }
+      return total;
+    } finally {
+      returnBuffer(buf);
+    }
+  }
+
+  /** Read from src and encrypt, the bytes are copied through a buffer. */
+  @Override
+  public long transferFrom(ReadableByteChannel src, long position,
+      long count) throws IOException {
+    Preconditions.checkArgument(position >= 0 && count >= 0);
+    ByteBuffer buf = getBuffer();
+    try {
+      long total = 0;
+      while (total < count) {
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), count - total));
+        final int n = src.read(buf);
+        if (n <= 0) {
+          break;
+        }
+        buf.flip();
+        write(buf, position + total);
+        total += n;
+      }
+      return total;
+    } finally {
+      returnBuffer(buf);
+    }
+  }
+
+  /** The mapped bytes would be the cipher text, so mapping is unsupported. */
+  @Override
+  public MappedByteBuffer map(MapMode mode, long position, long size)
+      throws IOException {
+    throw new UnsupportedOperationException(
+        "Memory mapping an encrypted channel is not supported.");
+  }
+
+  @Override
+  public FileLock lock(long position, long size, boolean shared)
+      throws IOException {
+    return channel.lock(position, size, shared);
+  }
+
+  @Override
+  public FileLock tryLock(long position, long size, boolean shared)
+      throws IOException {
+    return channel.tryLock(position, size, shared);
+  }
+
+  @Override
+  protected void implCloseChannel() throws IOException {
+    channel.close();
+  }
+
+  /** Read the cipher text at position until buf is full or EOF. */
+  private int readFully(ByteBuffer buf, long position) throws IOException {
+    int total = 0;
+    while (buf.hasRemaining()) {
+      final int n = channel.read(buf, position + total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  /** Write all the cipher text in buf at position. */
+  private void writeFully(ByteBuffer buf, long position) throws IOException {
+    int total = 0;
+    while (buf.hasRemaining()) {
+      total += channel.write(buf, position + total);
+    }
+  }
+
+  private long getCounter(long position) {
+    return position / codec.getCipherSuite().getAlgorithmBlockSize();
+  }
+
+  private byte getPadding(long position) {
+    return (byte)(position % codec.getCipherSuite().getAlgorithmBlockSize());
+  }
+
+  /** Reset the encryptor to the counter of position, keeping its key. */
+  private void updateCipher(Encryptor encryptor, long position)
+      throws IOException {
+    encryptor.reset(getCounter(position));
+  }
+
+  /** Reset the decryptor to the counter of position, keeping its key. */
+  private void updateCipher(Decryptor decryptor, long position)
+      throws IOException {
+    decryptor.reset(getCounter(position));
+  }
+
+  private void checkOpen() throws IOException {
+    if (!isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  /** Get direct buffer from the shared pool */
+  private ByteBuffer getBuffer() {
+    return DirectBufferPool.getInstance().getBuffer(bufferSize);
+  }
+
+  /** Return direct buffer to the shared pool */
+  private void returnBuffer(ByteBuffer buf) {
+    DirectBufferPool.getInstance().returnBuffer(buf);
+  }
+
+  /**
+   * Borrow encryptor from the codec pool, initialized with the key and the
+   * initial IV.
+   */
+  private Encryptor getEncryptor() throws IOException {
+    final Encryptor encryptor;
+    try {
+      encryptor = codec.borrowEncryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    encryptor.init(key, initIV);
+    return encryptor;
+  }
+
+  /** Return encryptor to the codec pool */
+  private void returnEncryptor(Encryptor encryptor) {
+    codec.returnEncryptor(encryptor);
+  }
+
+  /**
+   * Borrow decryptor from the codec pool, initialized with the key and the
+   * initial IV.
+   */
+  private Decryptor getDecryptor() throws IOException {
+    final Decryptor decryptor;
+    try {
+      decryptor = codec.borrowDecryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    decryptor.init(key, initIV);
+    return decryptor;
+  }
+
+  /** Return decryptor to the codec pool */
+  private void returnDecryptor(Decryptor decryptor) {
+    codec.returnDecryptor(decryptor);
+  }
+}
@@ -17,14 +17,14 @@
  */
 package com.intel.cryptostream;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.security.GeneralSecurityException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.google.common.base.Preconditions;
 
@@ -38,9 +38,21 @@ import com.google.common.base.Preconditions;
  * padding = pos%(algorithm blocksize); 
  * <p/>
  * The underlying stream offset is maintained as state.
+ * <p/>
+ * Positioned reads ({@link #read(long, ByteBuffer)} and friends) do not touch
+ * that state. They borrow a decryptor and buffers from the pools of this 
+ * stream and can be issued concurrently by many threads, provided the 
+ * underlying stream is {@link PositionedReadable} or a 
+ * {@link FileInputStream}.
+ * <p/>
+ * With a {@link ParallelCtrEngine}, enabled by
+ * {@link ConfigurationKeys#CRYPTOSTREAM_PARALLEL_READ_KEY} or given to the
+ * constructor, reads of more than its chunk size that go straight into the
+ * caller's buffer, i.e. large array reads, channel reads and positioned
+ * reads, are decrypted on several cores. The result is the same.
  */
 public class CryptoInputStream extends FilterInputStream implements 
-    ReadableByteChannel {
+    ReadableByteChannel, PositionedReadable {
   private final byte[] oneByteBuf = new byte[1];
   private final CryptoCodec codec;
   private final Decryptor decryptor;
@@ -74,15 +86,10 @@ public class CryptoInputStream extends FilterInputStream implements
   private boolean closed;
   private final byte[] key;
   private final byte[] initIV;
-  private byte[] iv;
   private final boolean isReadableByteChannel;
   
-  /** DirectBuffer pool */
-  private final Queue<ByteBuffer> bufferPool = 
-      new ConcurrentLinkedQueue<ByteBuffer>();
-  /** Decryptor pool */
-  private final Queue<Decryptor> decryptorPool = 
-      new ConcurrentLinkedQueue<Decryptor>();
+  /** Decrypts large reads on several cores, null if disabled. */
+  private final ParallelCtrEngine parallelEngine;
   
   public CryptoInputStream(InputStream in, CryptoCodec codec, 
       int bufferSize, byte[] key, byte[] iv) throws IOException {
@@ -91,18 +98,31 @@ public class CryptoInputStream extends FilterInputStream implements
   
   public CryptoInputStream(InputStream in, CryptoCodec codec,
       int bufferSize, byte[] key, byte[] iv, long streamOffset) throws IOException {
+    this(in, codec, bufferSize, key, iv, streamOffset,
+        CryptoStreamUtils.isParallelReadEnabled() ?
+            new ParallelCtrEngine(codec) : null);
+  }
+  
+  /**
+   * @param parallelEngine decrypts the large reads, null to decrypt all
+   * reads on the calling thread.
+   */
+  public CryptoInputStream(InputStream in, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv, long streamOffset,
+      ParallelCtrEngine parallelEngine) throws IOException {
     super(in);
     CryptoStreamUtils.checkCodec(codec);
+    this.parallelEngine = parallelEngine;
     this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
     this.codec = codec;
     this.key = key.clone();
     this.initIV = iv.clone();
-    this.iv = iv.clone();
     this.streamOffset = streamOffset;
     isReadableByteChannel = in instanceof ReadableByteChannel;
-    inBuffer = ByteBuffer.allocateDirect(this.bufferSize);
-    outBuffer = ByteBuffer.allocateDirect(this.bufferSize);
     decryptor = getDecryptor();
+    inBuffer = getBuffer();
+    outBuffer = decryptor.isInPlaceSupported() ? inBuffer.duplicate() :
+        getBuffer();
     resetStreamOffset(streamOffset);
   }
   
@@ -142,6 +162,24 @@ public class CryptoInputStream extends FilterInputStream implements
       int n = Math.min(len, remaining);
       outBuffer.get(b, off, n);
       return n;
+    } else if (len >= bufferSize && padding == 0) {
+      /*
+       * Large reads go straight into b and are decrypted in place, without
+       * the copies through the direct buffers.
+       */
+      final int n = in.read(b, off, len);
+      if (n <= 0) {
+        return n;
+      }
+      if (isParallel(n)) {
+        parallelEngine.decrypt(key, initIV, streamOffset, b, off, n, b, off);
+        resetStreamOffset(streamOffset + n);
+        return n;
+      }
+      streamOffset += n;
+      decryptor.decrypt(b, off, n, b, off);
+      padding = afterDecryption(decryptor, inBuffer, streamOffset);
+      return n;
     } else {
       int n = 0;
       
@@ -176,7 +214,7 @@ public class CryptoInputStream extends FilterInputStream implements
       
       streamOffset += n; // Read n bytes
       decrypt(decryptor, inBuffer, outBuffer, padding);
-      padding = afterDecryption(decryptor, inBuffer, streamOffset, iv);
+      padding = afterDecryption(decryptor, inBuffer, streamOffset);
       n = Math.min(len, outBuffer.remaining());
       outBuffer.get(b, off, n);
       return n;
@@ -233,7 +271,7 @@ public class CryptoInputStream extends FilterInputStream implements
    * decryptor should be updated and recalculate padding if needed. 
    */
   private byte afterDecryption(Decryptor decryptor, ByteBuffer inBuffer, 
-      long position, byte[] iv) throws IOException {
+      long position) throws IOException {
     byte padding = 0;
     if (decryptor.isContextReset()) {
       /*
@@ -242,7 +280,7 @@ public class CryptoInputStream extends FilterInputStream implements
        * some implementations can't maintain context so a re-init is necessary 
        * after each decryption call.
        */
-      updateDecryptor(decryptor, position, iv);
+      updateDecryptor(decryptor, position);
       padding = getPadding(position);
       inBuffer.position(padding);
     }
@@ -257,12 +295,10 @@ public class CryptoInputStream extends FilterInputStream implements
     return (byte)(position % codec.getCipherSuite().getAlgorithmBlockSize());
   }
   
-  /** Calculate the counter and iv, update the decryptor. */
-  private void updateDecryptor(Decryptor decryptor, long position, byte[] iv) 
+  /** Reset the decryptor to the counter of position, keeping its key. */
+  private void updateDecryptor(Decryptor decryptor, long position) 
       throws IOException {
-    final long counter = getCounter(position);
-    codec.calculateIV(initIV, counter, iv);
-    decryptor.init(key, iv);
+    decryptor.reset(getCounter(position));
   }
   
   /**
@@ -275,7 +311,7 @@ public class CryptoInputStream extends FilterInputStream implements
     inBuffer.clear();
     outBuffer.clear();
     outBuffer.limit(0);
-    updateDecryptor(decryptor, offset, iv);
+    updateDecryptor(decryptor, offset);
     padding = getPadding(offset);
     inBuffer.position(padding); // Set proper position for input data.
   }
@@ -288,6 +324,7 @@ public class CryptoInputStream extends FilterInputStream implements
     
     super.close();
     freeBuffers();
+    returnDecryptor(decryptor);
     closed = true;
   }
 
@@ -344,7 +381,11 @@ public class CryptoInputStream extends FilterInputStream implements
 
       final int pos = buf.position();
       final int n = ((ReadableByteChannel) in).read(buf);
-      if (n > 0) {
+      if (n > 0 && isParallel(n)) {
+        parallelEngine.decrypt(key, initIV, streamOffset, slice(buf, pos, n),
+            slice(buf, pos, n));
+        resetStreamOffset(streamOffset + n);
+      } else if (n > 0) {
         streamOffset += n; // Read n bytes
         decrypt(buf, n, pos);
       }
@@ -366,8 +407,8 @@ public class CryptoInputStream extends FilterInputStream implements
           buf.position(buf.position() + n);
         }
       } else {
-        byte[] tmp = new byte[buf.remaining()];
-        n = read(tmp);
+        final byte[] tmp = getTmpBuf();
+        n = read(tmp, 0, Math.min(buf.remaining(), tmp.length));
         if (n > 0) {
           buf.put(tmp, 0, n);
         }
@@ -376,6 +417,24 @@ public class CryptoInputStream extends FilterInputStream implements
     }
   }
 
+  /**
+   * Whether n bytes are decrypted by {@link #parallelEngine}. Reads within
+   * a chunk are not worth the tasks. The engine may decrypt a direct buffer
+   * into itself, which needs a decryptor working in place.
+   */
+  private boolean isParallel(int n) {
+    return parallelEngine != null && n > parallelEngine.getChunkSize() &&
+        decryptor.isInPlaceSupported();
+  }
+  
+  /** @return a view of the n bytes of buf from start. */
+  private static ByteBuffer slice(ByteBuffer buf, int start, int n) {
+    final ByteBuffer dup = buf.duplicate();
+    dup.limit(start + n);
+    dup.position(start);
+    return dup;
+  }
+  
   /**
    * Decrypt all data in buf: total n bytes from given start position.
    * Output is also buf and same start position.
@@ -398,12 +457,222 @@ public class CryptoInputStream extends FilterInputStream implements
         len += outBuffer.remaining();
         buf.put(outBuffer);
       } finally {
-        padding = afterDecryption(decryptor, inBuffer, streamOffset - (n - len), iv);
+        padding = afterDecryption(decryptor, inBuffer, streamOffset - (n - len));
       }
     }
     buf.position(pos);
   }
   
+  /**
+   * Positioned read. It is thread-safe and does not change the offset of 
+   * this stream.
+   * @param position the decrypted data position to read from.
+   * @param buffer the buffer into which the decrypted data is read.
+   * @param offset the buffer offset.
+   * @param length the maximum number of decrypted data bytes to read.
+   * @return int the number of decrypted data bytes read into the buffer, or
+   * -1 at the end of the stream.
+   * @throws IOException
+   */
+  public int read(long position, byte[] buffer, int offset, int length)
+      throws IOException {
+    if (buffer == null) {
+      throw new NullPointerException();
+    } else if (offset < 0 || length < 0 || length > buffer.length - offset) {
+      throw new IndexOutOfBoundsException();
+    }
+    checkStream();
+    if (length == 0) {
+      return 0;
+    }
+    final int n = readFromUnderlyingStream(position,
+        ByteBuffer.wrap(buffer, offset, length));
+    if (n > 0) {
+      decrypt(position, buffer, offset, n);
+    }
+    return n;
+  }
+  
+  /**
+   * Positioned ByteBuffer read. It is thread-safe and does not change the 
+   * offset of this stream. The cipher text is read into buf and decrypted 
+   * in place.
+   */
+  @Override
+  public int read(long position, ByteBuffer buf) throws IOException {
+    checkStream();
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    if (buf.hasArray()) {
+      final int n = read(position, buf.array(),
+          buf.arrayOffset() + buf.position(), buf.remaining());
+      if (n > 0) {
+        buf.position(buf.position() + n);
+      }
+      return n;
+    }
+    final int start = buf.position();
+    final int n = readFromUnderlyingStream(position, buf);
+    if (n > 0) {
+      decrypt(position, buf, n, start);
+    }
+    return n;
+  }
+  
+  /**
+   * Positioned read fully. It is thread-safe and does not change the offset
+   * of this stream.
+   */
+  public void readFully(long position, byte[] buffer, int offset, int length)
+      throws IOException {
+    if (buffer == null) {
+      throw new NullPointerException();
+    } else if (offset < 0 || length < 0 || length > buffer.length - offset) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (length > 0) {
+      final int n = read(position, buffer, offset, length);
+      if (n < 0) {
+        throw new EOFException("Premature EOF from inputStream");
+      }
+      position += n;
+      offset += n;
+      length -= n;
+    }
+  }
+  
+  public void readFully(long position, byte[] buffer) throws IOException {
+    readFully(position, buffer, 0, buffer.length);
+  }
+  
+  /**
+   * Positioned ByteBuffer read fully. It is thread-safe and does not change 
+   * the offset of this stream.
+   */
+  public void readFully(long position, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      final int n = read(position, buf);
+      if (n < 0) {
+        throw new EOFException("Premature EOF from inputStream");
+      }
+      position += n;
+    }
+  }
+  
+  /** Positioned read data from underlying stream. */
+  private int readFromUnderlyingStream(long position, ByteBuffer buf) 
+      throws IOException {
+    if (in instanceof PositionedReadable) {
+      return ((PositionedReadable) in).read(position, buf);
+    } else if (in instanceof FileInputStream) {
+      return ((FileInputStream) in).getChannel().read(buf, position);
+    } else {
+      throw new UnsupportedOperationException(
+          "This stream does not support positioned read.");
+    }
+  }
+  
+  /**
+   * Decrypt n bytes in buf starting at start, the cipher text of stream 
+   * position. Output is also buf and same start position. A decryptor and
+   * buffers are borrowed from the pools, so this method is thread-safe.
+   * If the decryptor works in place, buf is decrypted without buffers.
+   * Upon return, buf.position() is start + n and buf.limit() is unchanged.
+   */
+  private void decrypt(long position, ByteBuffer buf, int n, int start) 
+      throws IOException {
+    if (isParallel(n)) {
+      parallelEngine.decrypt(key, initIV, position, slice(buf, start, n),
+          slice(buf, start, n));
+      buf.position(start + n);
+      return;
+    }
+    final Decryptor decryptor = getDecryptor();
+    try {
+      updateDecryptor(decryptor, position);
+      byte padding = getPadding(position);
+      if (decryptor.isInPlaceSupported()) {
+        skipPadding(decryptor, padding);
+        final int limit = buf.limit();
+        buf.position(start);
+        buf.limit(start + n);
+        decryptor.decrypt(buf);
+        buf.limit(limit);
+      } else {
+        decrypt(decryptor, padding, position, buf, n, start);
+      }
+    } finally {
+      returnDecryptor(decryptor);
+    }
+  }
+  
+  /** Decrypt buf through pooled direct buffers. */
+  private void decrypt(Decryptor decryptor, byte padding, long position,
+      ByteBuffer buf, int n, int start) throws IOException {
+    ByteBuffer inBuffer = getBuffer();
+    ByteBuffer outBuffer = getBuffer();
+    try {
+      inBuffer.position(padding); // Set proper position for input data.
+      
+      final int limit = buf.limit();
+      int len = 0;
+      while (len < n) {
+        buf.position(start + len);
+        buf.limit(start + len + Math.min(n - len, inBuffer.remaining()));
+        inBuffer.put(buf);
+        // Do decryption
+        try {
+          decrypt(decryptor, inBuffer, outBuffer, padding);
+          buf.position(start + len);
+          buf.limit(limit);
+          len += outBuffer.remaining();
+          buf.put(outBuffer);
+        } finally {
+          padding = afterDecryption(decryptor, inBuffer, position + len);
+        }
+      }
+    } finally {
+      returnBuffer(inBuffer);
+      returnBuffer(outBuffer);
+    }
+  }
+  
+  /**
+   * Consume the key stream of the padding, so the decryptor is at the
+   * position itself instead of the start of its block.
+   */
+  private static void skipPadding(Decryptor decryptor, byte padding)
+      throws IOException {
+    if (padding > 0) {
+      final byte[] skip = new byte[padding];
+      decryptor.decrypt(skip, 0, padding, skip, 0);
+    }
+  }
+  
+  /**
+   * Decrypt n bytes of buffer in place, the cipher text of stream position.
+   * The array is decrypted by the decryptor directly, the key stream of the
+   * padding is consumed first. This method is thread-safe.
+   */
+  private void decrypt(long position, byte[] buffer, int offset, int n)
+      throws IOException {
+    if (isParallel(n)) {
+      parallelEngine.decrypt(key, initIV, position, buffer, offset, n, buffer,
+          offset);
+      return;
+    }
+    Decryptor decryptor = null;
+    try {
+      decryptor = getDecryptor();
+      updateDecryptor(decryptor, position);
+      skipPadding(decryptor, getPadding(position));
+      decryptor.decrypt(buffer, offset, n, buffer, offset);
+    } finally {
+      returnDecryptor(decryptor);
+    }
+  }
+  
   @Override
   public int available() throws IOException {
     checkStream();
@@ -436,34 +705,43 @@ public class CryptoInputStream extends FilterInputStream implements
     }
   }
 
-  /** Forcibly free the direct buffers. */
+  /** Return the direct buffers to the shared pool. */
   private void freeBuffers() {
-    CryptoStreamUtils.freeDB(inBuffer);
-    CryptoStreamUtils.freeDB(outBuffer);
-    cleanBufferPool();
+    returnBuffer(inBuffer);
+    if (!decryptor.isInPlaceSupported()) {
+      returnBuffer(outBuffer);
+    }
   }
   
-  /** Clean direct buffer pool */
-  private void cleanBufferPool() {
-    ByteBuffer buf;
-    while ((buf = bufferPool.poll()) != null) {
-      CryptoStreamUtils.freeDB(buf);
-    }
+  /** Get direct buffer from the shared pool */
+  private ByteBuffer getBuffer() {
+    return DirectBufferPool.getInstance().getBuffer(bufferSize);
+  }
+  
+  /** Return direct buffer to the shared pool */
+  private void returnBuffer(ByteBuffer buf) {
+    DirectBufferPool.getInstance().returnBuffer(buf);
   }
   
-  /** Get decryptor from pool */
+  /**
+   * Borrow decryptor from the codec pool, initialized with the key and the
+   * initial IV.
+   */
   private Decryptor getDecryptor() throws IOException {
-    Decryptor decryptor = decryptorPool.poll();
-    if (decryptor == null) {
-      try {
-        decryptor = codec.createDecryptor();
-      } catch (GeneralSecurityException e) {
-        throw new IOException(e);
-      }
+    final Decryptor decryptor;
+    try {
+      decryptor = codec.borrowDecryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
     }
-    
+    decryptor.init(key, initIV);
     return decryptor;
   }
+  
+  /** Return decryptor to the codec pool */
+  private void returnDecryptor(Decryptor decryptor) {
+    codec.returnDecryptor(decryptor);
+  }
 
   @Override
   public boolean isOpen() {
@@ -21,6 +21,7 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
 
 import com.google.common.base.Preconditions;
@@ -35,8 +36,12 @@ import com.google.common.base.Preconditions;
  * padding = pos%(algorithm blocksize); 
  * <p/>
  * The underlying stream offset is maintained as state.
+ * <p/>
+ * If the underlying stream is also a {@link WritableByteChannel}, the
+ * encrypted direct buffer is written to it without copying to a byte array.
  */
-public class CryptoOutputStream extends FilterOutputStream {
+public class CryptoOutputStream extends FilterOutputStream implements
+    WritableByteChannel {
   private final byte[] oneByteBuf = new byte[1];
   private final CryptoCodec codec;
   private final Encryptor encryptor;
@@ -50,7 +55,8 @@ public class CryptoOutputStream extends FilterOutputStream {
   
   /**
    * Encrypted data buffer. The data starts at outBuffer.position() and ends at 
-   * outBuffer.limit();
+   * outBuffer.limit(); It is a view of {@link #inBuffer} if the encryptor
+   * works in place.
    */
   private ByteBuffer outBuffer;
   private long streamOffset = 0; // Underlying stream offset.
@@ -64,7 +70,7 @@ public class CryptoOutputStream extends FilterOutputStream {
   private boolean closed;
   private final byte[] key;
   private final byte[] initIV;
-  private byte[] iv;
+  private final boolean isWritableByteChannel;
   
   public CryptoOutputStream(OutputStream out, CryptoCodec codec, 
       int bufferSize, byte[] key, byte[] iv) throws IOException {
@@ -80,15 +86,17 @@ public class CryptoOutputStream extends FilterOutputStream {
     this.codec = codec;
     this.key = key.clone();
     this.initIV = iv.clone();
-    this.iv = iv.clone();
-    inBuffer = ByteBuffer.allocateDirect(this.bufferSize);
-    outBuffer = ByteBuffer.allocateDirect(this.bufferSize);
+    isWritableByteChannel = out instanceof WritableByteChannel;
     this.streamOffset = streamOffset;
     try {
-      encryptor = codec.createEncryptor();
+      encryptor = codec.borrowEncryptor();
     } catch (GeneralSecurityException e) {
       throw new IOException(e);
     }
+    inBuffer = DirectBufferPool.getInstance().getBuffer(this.bufferSize);
+    outBuffer = encryptor.isInPlaceSupported() ? inBuffer.duplicate() :
+        DirectBufferPool.getInstance().getBuffer(this.bufferSize);
+    encryptor.init(key, initIV);
     updateEncryptor();
   }
   
@@ -111,7 +119,8 @@ public class CryptoOutputStream extends FilterOutputStream {
    * Encryption is buffer based.
    * If there is enough room in {@link #inBuffer}, then write to this buffer.
    * If {@link #inBuffer} is full, then do encryption and write data to the
-   * underlying stream.
+   * underlying stream. When {@link #inBuffer} is empty, chunks of
+   * bufferSize bytes are encrypted from b straight into a byte array.
    * @param b the data.
    * @param off the start offset in the data.
    * @param len the number of bytes to write.
@@ -127,6 +136,14 @@ public class CryptoOutputStream extends FilterOutputStream {
       throw new IndexOutOfBoundsException();
     }
     while (len > 0) {
+      if (len >= bufferSize && inBuffer.position() == 0 &&
+          !isWritableByteChannel) {
+        // Large aligned writes skip the direct buffers.
+        encrypt(b, off, bufferSize);
+        off += bufferSize;
+        len -= bufferSize;
+        continue;
+      }
       final int remaining = inBuffer.remaining();
       if (len < remaining) {
         inBuffer.put(b, off, len);
@@ -140,6 +157,36 @@ public class CryptoOutputStream extends FilterOutputStream {
     }
   }
   
+  /**
+   * ByteBuffer write. All <code>src.remaining()</code> bytes are consumed, 
+   * and src can be either a heap or a direct buffer.
+   * @param src the data.
+   * @return int the number of bytes written, which is always the number of
+   * bytes remaining in src before the call.
+   * @throws IOException
+   */
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    checkStream();
+    final int len = src.remaining();
+    int toWrite = len;
+    while (toWrite > 0) {
+      final int remaining = inBuffer.remaining();
+      if (toWrite < remaining) {
+        inBuffer.put(src);
+        toWrite = 0;
+      } else {
+        final int limit = src.limit();
+        src.limit(src.position() + remaining);
+        inBuffer.put(src);
+        src.limit(limit);
+        toWrite -= remaining;
+        encrypt();
+      }
+    }
+    return len;
+  }
+  
   /**
    * Do the encryption, input is {@link #inBuffer} and output is 
    * {@link #outBuffer}.
@@ -165,13 +212,20 @@ public class CryptoOutputStream extends FilterOutputStream {
     }
     final int len = outBuffer.remaining();
     
-    /*
-     * If underlying stream supports {@link ByteBuffer} write in future, needs
-     * refine here. 
-     */
-    final byte[] tmp = getTmpBuf();
-    outBuffer.get(tmp, 0, len);
-    out.write(tmp, 0, len);
+    if (isWritableByteChannel) {
+      /*
+       * The underlying stream accepts ByteBuffer, write the direct buffer 
+       * to it directly and avoid the bytes copy.
+       */
+      final WritableByteChannel channel = (WritableByteChannel) out;
+      while (outBuffer.hasRemaining()) {
+        channel.write(outBuffer);
+      }
+    } else {
+      final byte[] tmp = getTmpBuf();
+      outBuffer.get(tmp, 0, len);
+      out.write(tmp, 0, len);
+    }
     
     streamOffset += len;
     if (encryptor.isContextReset()) {
@@ -185,6 +239,20 @@ public class CryptoOutputStream extends FilterOutputStream {
     }
   }
   
+  /**
+   * Encrypt len bytes of b into the temporary array and write them to the
+   * underlying stream. {@link #inBuffer} must be empty without padding.
+   */
+  private void encrypt(byte[] b, int off, int len) throws IOException {
+    final byte[] tmp = getTmpBuf();
+    encryptor.encrypt(b, off, len, tmp, 0);
+    out.write(tmp, 0, len);
+    streamOffset += len;
+    if (encryptor.isContextReset()) {
+      updateEncryptor();
+    }
+  }
+  
   /** Update the {@link #encryptor}: calculate counter and {@link #padding}. */
   private void updateEncryptor() throws IOException {
     final long counter =
@@ -192,8 +260,7 @@ public class CryptoOutputStream extends FilterOutputStream {
     padding =
         (byte)(streamOffset % codec.getCipherSuite().getAlgorithmBlockSize());
     inBuffer.position(padding); // Set proper position for input data.
-    codec.calculateIV(initIV, counter, iv);
-    encryptor.init(key, iv);
+    encryptor.reset(counter);
   }
   
   private byte[] tmpBuf;
@@ -213,6 +280,7 @@ public class CryptoOutputStream extends FilterOutputStream {
     try {
       super.close();
       freeBuffers();
+      codec.returnEncryptor(encryptor);
     } finally {
       closed = true;
     }
@@ -241,9 +309,16 @@ public class CryptoOutputStream extends FilterOutputStream {
     }
   }
   
-  /** Forcibly free the direct buffers. */
+  /** Return the direct buffers to the shared pool. */
   private void freeBuffers() {
-    CryptoStreamUtils.freeDB(inBuffer);
-    CryptoStreamUtils.freeDB(outBuffer);
+    DirectBufferPool.getInstance().returnBuffer(inBuffer);
+    if (!encryptor.isInPlaceSupported()) {
+      DirectBufferPool.getInstance().returnBuffer(outBuffer);
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
   }
 }
@@ -0,0 +1,392 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * CryptoService encrypts and decrypts many small independent buffers, e.g.
+ * RPC messages, submitted by many threads. It is thread-safe.
+ * <p/>
+ * Requests go into a lock-free queue. The submitting thread that finds no
+ * other thread combining becomes the combiner: it drains the requests
+ * queued so far in batches of up to
+ * {@link ConfigurationKeys#CRYPTOSTREAM_SERVICE_BATCH_SIZE_KEY} requests and
+ * runs each batch through
+ * {@link CryptoCodec#encryptBatch(Encryptor[], ByteBuffer[], ByteBuffer[])}
+ * with ciphers borrowed from the codec pool. With the OpenSSL codec a batch
+ * whose keys are already in the pooled contexts costs one native call, and
+ * the number of native contexts is bounded by the batch size. Requests
+ * added while combining are left to a background thread, so a caller never
+ * works for longer than one pass over the queue. The other threads return
+ * right away, their futures are completed by the combiner.
+ * <p/>
+ * Buffers are processed in place, their position and limit are unchanged.
+ */
+public class CryptoService {
+  private static final ExecutorService executor =
+      Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("cryptostream-service-%d").build());
+
+  private final CryptoCodec codec;
+  private final int batchSize;
+  private final Queue<Request> queue = new ConcurrentLinkedQueue<Request>();
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicBoolean combining = new AtomicBoolean();
+  private final Histogram batchSizes = new Histogram();
+  private final Histogram latencies = new Histogram();
+  private final Runnable combineTask = new Runnable() {
+    @Override
+    public void run() {
+      combine();
+    }
+  };
+
+  private static class Request {
+    final boolean encrypt;
+    final byte[] key;
+    final byte[] iv;
+    final ByteBuffer buffer;
+    final long submitTime = System.nanoTime();
+    final SettableFuture<ByteBuffer> future = SettableFuture.create();
+
+    Request(boolean encrypt, byte[] key, byte[] iv, ByteBuffer buffer) {
+      this.encrypt = encrypt;
+      this.key = key;
+      this.iv = iv;
+      this.buffer = buffer;
+    }
+  }
+
+  public CryptoService(CryptoCodec codec) {
+    this(codec, CryptoStreamUtils.getServiceBatchSize());
+  }
+
+  public CryptoService(CryptoCodec codec, int batchSize) {
+    CryptoStreamUtils.checkCodec(codec);
+    Preconditions.checkArgument(batchSize > 0, "Invalid batch size.");
+    this.codec = codec;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Encrypt the remaining bytes of buffer in place.
+   * @return the future of buffer, completed when it is encrypted.
+   */
+  public ListenableFuture<ByteBuffer> encrypt(byte[] key, byte[] iv,
+      ByteBuffer buffer) {
+    return submit(new Request(true, key, iv, buffer));
+  }
+
+  /**
+   * Decrypt the remaining bytes of buffer in place.
+   * @return the future of buffer, completed when it is decrypted.
+   */
+  public ListenableFuture<ByteBuffer> decrypt(byte[] key, byte[] iv,
+      ByteBuffer buffer) {
+    return submit(new Request(false, key, iv, buffer));
+  }
+
+  private ListenableFuture<ByteBuffer> submit(Request request) {
+    Preconditions.checkNotNull(request.key);
+    Preconditions.checkNotNull(request.iv);
+    Preconditions.checkNotNull(request.buffer);
+    queueDepth.incrementAndGet();
+    queue.add(request);
+    combine();
+    return request.future;
+  }
+
+  /**
+   * Process the requests queued so far if no other thread does. The queue
+   * is checked again after giving up the combiner role, and a request added
+   * meanwhile is handed to the background thread rather than left behind.
+   */
+  private void combine() {
+    if (!combining.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      final Request[] batch = new Request[batchSize];
+      int pending = queueDepth.get();
+      int n;
+      while (pending > 0 && (n = drain(batch)) > 0) {
+        pending -= n;
+        batchSizes.record(n);
+        process(batch, n);
+      }
+    } finally {
+      combining.set(false);
+    }
+    if (!queue.isEmpty()) {
+      executor.execute(combineTask);
+    }
+  }
+
+  private int drain(Request[] batch) {
+    int n = 0;
+    Request request;
+    while (n < batch.length && (request = queue.poll()) != null) {
+      queueDepth.decrementAndGet();
+      batch[n++] = request;
+    }
+    return n;
+  }
+
+  private void process(Request[] batch, int n) {
+    final List<Request> encrypts = new ArrayList<Request>(n);
+    final List<Request> decrypts = new ArrayList<Request>(n);
+    for (int i = 0; i < n; i++) {
+      (batch[i].encrypt ? encrypts : decrypts).add(batch[i]);
+      batch[i] = null;
+    }
+    if (!encrypts.isEmpty()) {
+      processEncrypts(encrypts);
+    }
+    if (!decrypts.isEmpty()) {
+      processDecrypts(decrypts);
+    }
+  }
+
+  private void processEncrypts(List<Request> requests) {
+    final List<Request> batched = new ArrayList<Request>(requests.size());
+    final List<Encryptor> encryptors =
+        new ArrayList<Encryptor>(requests.size());
+    try {
+      for (Request request : requests) {
+        Encryptor encryptor = null;
+        try {
+          encryptor = codec.borrowEncryptor();
+          encryptor.init(request.key, request.iv);
+          if (!isBatchable(request, encryptor.isInPlaceSupported())) {
+            processArray(encryptor, null, request);
+            continue;
+          }
+        } catch (Exception e) {
+          codec.returnEncryptor(encryptor);
+          fail(request, e);
+          continue;
+        }
+        batched.add(request);
+        encryptors.add(encryptor);
+      }
+      if (!batched.isEmpty()) {
+        final ByteBuffer[] in = inputs(batched);
+        try {
+          codec.encryptBatch(
+              encryptors.toArray(new Encryptor[encryptors.size()]),
+              in, outputs(in));
+          complete(batched);
+        } catch (Exception e) {
+          fail(batched, e);
+        }
+      }
+    } finally {
+      for (Encryptor encryptor : encryptors) {
+        codec.returnEncryptor(encryptor);
+      }
+    }
+  }
+
+  private void processDecrypts(List<Request> requests) {
+    final List<Request> batched = new ArrayList<Request>(requests.size());
+    final List<Decryptor> decryptors =
+        new ArrayList<Decryptor>(requests.size());
+    try {
+      for (Request request : requests) {
+        Decryptor decryptor = null;
+        try {
+          decryptor = codec.borrowDecryptor();
+          decryptor.init(request.key, request.iv);
+          if (!isBatchable(request, decryptor.isInPlaceSupported())) {
+            processArray(null, decryptor, request);
+            continue;
+          }
+        } catch (Exception e) {
+          codec.returnDecryptor(decryptor);
+          fail(request, e);
+          continue;
+        }
+        batched.add(request);
+        decryptors.add(decryptor);
+      }
+      if (!batched.isEmpty()) {
+        final ByteBuffer[] in = inputs(batched);
+        try {
+          codec.decryptBatch(
+              decryptors.toArray(new Decryptor[decryptors.size()]),
+              in, outputs(in));
+          complete(batched);
+        } catch (Exception e) {
+          fail(batched, e);
+        }
+      }
+    } finally {
+      for (Decryptor decryptor : decryptors) {
+        codec.returnDecryptor(decryptor);
+      }
+    }
+  }
+
+  /** Direct buffers go into the batch, heap buffers use the array API. */
+  private static boolean isBatchable(Request request, boolean inPlace)
+      throws IOException {
+    if (request.buffer.isDirect() && inPlace) {
+      return true;
+    }
+    if (!request.buffer.hasArray()) {
+      throw new IOException("Buffer is neither direct nor array backed, " +
+          "or the cipher can't work in place.");
+    }
+    return false;
+  }
+
+  /** Process a heap buffer by itself and return the cipher to the pool. */
+  private void processArray(Encryptor encryptor, Decryptor decryptor,
+      Request request) throws IOException {
+    final ByteBuffer buffer = request.buffer;
+    final int off = buffer.arrayOffset() + buffer.position();
+    if (encryptor != null) {
+      encryptor.encrypt(buffer.array(), off, buffer.remaining(),
+          buffer.array(), off);
+      codec.returnEncryptor(encryptor);
+    } else {
+      decryptor.decrypt(buffer.array(), off, buffer.remaining(),
+          buffer.array(), off);
+      codec.returnDecryptor(decryptor);
+    }
+    complete(request);
+  }
+
+  private static ByteBuffer[] inputs(List<Request> requests) {
+    final ByteBuffer[] in = new ByteBuffer[requests.size()];
+    for (int i = 0; i < in.length; i++) {
+      in[i] = requests.get(i).buffer.duplicate();
+    }
+    return in;
+  }
+
+  private static ByteBuffer[] outputs(ByteBuffer[] in) {
+    final ByteBuffer[] out = new ByteBuffer[in.length];
+    for (int i = 0; i < in.length; i++) {
+      out[i] = in[i].duplicate();
+    }
+    return out;
+  }
+
+  private void complete(List<Request> requests) {
+    for (Request request : requests) {
+      complete(request);
+    }
+  }
+
+  private void complete(Request request) {
+    latencies.record(System.nanoTime() - request.submitTime);
+    request.future.set(request.buffer);
+  }
+
+  private static void fail(List<Request> requests, Throwable t) {
+    for (Request request : requests) {
+      fail(request, t);
+    }
+  }
+
+  private static void fail(Request request, Throwable t) {
+    request.future.setException(t instanceof GeneralSecurityException ?
+        new IOException(t) : t);
+  }
+
+  /** @return the number of requests waiting for a combiner. */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /** @return the number of batches processed. */
+  public long getBatches() {
+    return batchSizes.getCount();
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return the batch size at percentile, rounded up to a power of two.
+   */
+  public long getBatchSizePercentile(double percentile) {
+    return batchSizes.getPercentile(percentile);
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return the nanoseconds between submission and completion at
+   * percentile, rounded up to a power of two.
+   */
+  public long getLatencyPercentile(double percentile) {
+    return latencies.getPercentile(percentile);
+  }
+
+  /** Lock-free histogram with a bucket per power of two. */
+  private static class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    void record(long value) {
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(
+          Math.max(value, 1) - 1));
+    }
+
+    long getCount() {
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        count += buckets.get(i);
+      }
+      return count;
+    }
+
+    long getPercentile(double percentile) {
+      Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+          "Invalid percentile.");
+      final long count = getCount();
+      if (count == 0) {
+        return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return i == 63 ? Long.MAX_VALUE : 1L << i;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.security.Provider;
+import java.security.Security;
+
+import com.intel.cryptostream.random.OpensslSecureRandom;
+import com.intel.cryptostream.random.OpensslSecureRandomSpi;
+
+/**
+ * JCA provider exposing the OpenSSL engines to code using
+ * {@link javax.crypto.Cipher} and {@link java.security.SecureRandom}
+ * directly:
+ * <ul>
+ * <li>Cipher AES/CTR/NoPadding, see {@link OpensslAesCtrCipherSpi}.</li>
+ * <li>SecureRandom OpensslSecureRandom, see
+ * {@link OpensslSecureRandomSpi}.</li>
+ * </ul>
+ * Services are only registered if the native code is loaded, so with the
+ * provider at the first position the JVM falls back to the next providers
+ * otherwise. Install it with {@link #install()}, or with
+ * <code>security.provider.1=com.intel.cryptostream.CryptoStreamProvider</code>
+ * in the java.security file.
+ * <p/>
+ * JDKs enforcing signed JCE providers need the jar to be signed.
+ */
+public final class CryptoStreamProvider extends Provider {
+  private static final long serialVersionUID = -4218302948213957102L;
+
+  public static final String NAME = "CryptoStream";
+
+  public CryptoStreamProvider() {
+    super(NAME, 1.0, "CryptoStream provider (OpenSSL AES-CTR and " +
+        "SecureRandom)");
+    if (OpensslCipher.getLoadingFailureReason() == null) {
+      put("Cipher." + CipherSuite.AES_CTR_NOPADDING.getName(),
+          OpensslAesCtrCipherSpi.class.getName());
+      put("Cipher." + CipherSuite.AES_CTR_NOPADDING.getName() +
+          " SupportedKeyFormats", "RAW");
+    }
+    if (OpensslSecureRandom.isNativeCodeLoaded()) {
+      put("SecureRandom.OpensslSecureRandom",
+          OpensslSecureRandomSpi.class.getName());
+      put("SecureRandom.OpensslSecureRandom ThreadSafe", "true");
+    }
+  }
+
+  /**
+   * Install the provider at the first position, if it is not installed yet.
+   * @return boolean whether the provider was installed by this call.
+   */
+  public static synchronized boolean install() {
+    if (Security.getProvider(NAME) != null) {
+      return false;
+    }
+    Security.insertProviderAt(new CryptoStreamProvider(), 1);
+    return true;
+  }
+}
@@ -22,18 +22,40 @@ import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_LIB_PATH_KEY
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_TEMPDIR_KEY;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_BUFFER_SIZE_DEFAULT;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_BUFFER_SIZE_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_BUFFER_POOL_CAPACITY_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_BUFFER_POOL_CAPACITY_KEY;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_SYSTEM_PROPERTIES_FILE;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CIPHER_SUITE_DEFAULT;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CIPHER_SUITE_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CODEC_AUTO_KEY;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CODEC_CLASSES_KEY_PREFIX;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_CRYPTO_JCE_PROVIDER_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_HYBRID_THRESHOLD_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_MAPPED_PREFETCH_DEPTH_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_MAPPED_PREFETCH_DEPTH_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_MAPPED_WINDOW_SIZE_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_MAPPED_WINDOW_SIZE_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_READAHEAD_BUFFER_SIZE_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_READAHEAD_BUFFER_SIZE_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_READAHEAD_DEPTH_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_READAHEAD_DEPTH_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_PARALLEL_READ_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_PARALLEL_THREADS_KEY;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_JAVA_SECURE_RANDOM_ALGORITHM_DEFAULT;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_JAVA_SECURE_RANDOM_ALGORITHM_KEY;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_RANDOM_DEVICE_FILE_PATH_DEFAULT;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_RANDOM_DEVICE_FILE_PATH_KEY;
 import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_SECURE_RANDOM_IMPL_KEY;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_SERVICE_BATCH_SIZE_DEFAULT;
+import static com.intel.cryptostream.ConfigurationKeys.CRYPTOSTREAM_SERVICE_BATCH_SIZE_KEY;
 
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Properties;
@@ -45,6 +67,7 @@ import com.intel.cryptostream.utils.ReflectionUtils;
 
 public class CryptoStreamUtils {
   private static final int MIN_BUFFER_SIZE = 512;
+  private static final int PAGE_SIZE = 4096;
   
   static {
     loadSnappySystemProperties();
@@ -82,26 +105,228 @@ public class CryptoStreamUtils {
     }
   }
 
-  /** Forcibly free the direct buffer. */
+  /**
+   * Forcibly free the direct buffer. A view of another buffer is left
+   * alone, its memory is freed with the buffer it was created from.
+   */
   public static void freeDB(ByteBuffer buffer) {
-    if (buffer instanceof sun.nio.ch.DirectBuffer) {
-      final sun.misc.Cleaner bufferCleaner =
-          ((sun.nio.ch.DirectBuffer) buffer).cleaner();
-      bufferCleaner.clean();
+    if (!buffer.isDirect()) {
+      return;
+    }
+    try {
+      if (BufferCleaner.INVOKE_CLEANER != null) {
+        BufferCleaner.INVOKE_CLEANER.invoke(BufferCleaner.UNSAFE, buffer);
+      } else if (BufferCleaner.CLEANER != null) {
+        Object cleaner = BufferCleaner.CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          BufferCleaner.CLEAN.invoke(cleaner);
+        }
+      }
+    } catch (Exception e) {
+      // A view, or no way to free it: the garbage collector will.
+    }
+  }
+
+  /**
+   * How the running JVM frees a direct buffer: Unsafe.invokeCleaner since
+   * Java 9, the sun.misc.Cleaner of the buffer before. Both are looked up
+   * by reflection, sun.misc.Cleaner doesn't exist anymore since Java 9.
+   */
+  private static class BufferCleaner {
+    static final Object UNSAFE;
+    static final Method INVOKE_CLEANER;
+    static final Method CLEANER;
+    static final Method CLEAN;
+
+    static {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      Method cleaner = null;
+      Method clean = null;
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+            ByteBuffer.class);
+        Field field = unsafeClass.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        unsafe = field.get(null);
+      } catch (Exception e) {
+        invokeCleaner = null;
+        try {
+          cleaner = Class.forName("sun.nio.ch.DirectBuffer")
+              .getMethod("cleaner");
+          clean = cleaner.getReturnType().getMethod("clean");
+        } catch (Exception e2) {
+          cleaner = null;
+        }
+      }
+      UNSAFE = unsafe;
+      INVOKE_CLEANER = invokeCleaner;
+      CLEANER = cleaner;
+      CLEAN = clean;
     }
   }
+
+  /**
+   * @return the native address of the first byte of a direct buffer,
+   * regardless of its position.
+   * @throws IllegalArgumentException if the buffer is not direct.
+   */
+  public static long getAddress(ByteBuffer buffer) {
+    Preconditions.checkArgument(buffer instanceof sun.nio.ch.DirectBuffer,
+        "Direct buffer is required.");
+    return ((sun.nio.ch.DirectBuffer) buffer).address();
+  }
   
-  /** Read crypto buffer size */
+  /**
+   * Read crypto buffer size, if it is not set in auto mode the buffer size
+   * recommended by the codec calibration once it ran
+   */
   public static int getBufferSize() {
     String bufferSizeStr = System
         .getProperty(CRYPTOSTREAM_CRYPTO_BUFFER_SIZE_KEY);
     if (bufferSizeStr == null || bufferSizeStr.isEmpty()) {
+      if (isCodecAutoSelected()) {
+        CodecCalibration calibration =
+            CodecCalibration.getCached(getCryptoSuite());
+        if (calibration != null && calibration.getCodecClass() != null) {
+          return calibration.getBufferSize();
+        }
+      }
       return CRYPTOSTREAM_CRYPTO_BUFFER_SIZE_DEFAULT;
     } else {
       return Integer.parseInt(bufferSizeStr);
     }
   }
 
+  /** Read maximum encryptors or decryptors idle in a codec */
+  public static int getCipherPoolSize() {
+    String poolSizeStr = System
+        .getProperty(CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_KEY);
+    if (poolSizeStr == null || poolSizeStr.isEmpty()) {
+      return CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_DEFAULT;
+    } else {
+      return Integer.parseInt(poolSizeStr);
+    }
+  }
+
+  /** Maximum number of requests {@link CryptoService} puts in a batch */
+  public static int getServiceBatchSize() {
+    String batchSizeStr = System
+        .getProperty(CRYPTOSTREAM_SERVICE_BATCH_SIZE_KEY);
+    if (batchSizeStr == null || batchSizeStr.isEmpty()) {
+      return CRYPTOSTREAM_SERVICE_BATCH_SIZE_DEFAULT;
+    } else {
+      return Integer.parseInt(batchSizeStr);
+    }
+  }
+
+  /**
+   * Read the buffer size from which {@link HybridAesCtrCryptoCodec} uses
+   * OpenSSL, -1 if it is not set and the codec calibrates it
+   */
+  public static int getHybridThreshold() {
+    String thresholdStr = System.getProperty(CRYPTOSTREAM_HYBRID_THRESHOLD_KEY);
+    if (thresholdStr == null || thresholdStr.isEmpty()) {
+      return -1;
+    } else {
+      return Integer.parseInt(thresholdStr);
+    }
+  }
+
+  /** Read maximum bytes idle in the shared direct buffer pool */
+  public static long getBufferPoolCapacity() {
+    String capacityStr = System
+        .getProperty(CRYPTOSTREAM_BUFFER_POOL_CAPACITY_KEY);
+    if (capacityStr == null || capacityStr.isEmpty()) {
+      return CRYPTOSTREAM_BUFFER_POOL_CAPACITY_DEFAULT;
+    } else {
+      return Long.parseLong(capacityStr);
+    }
+  }
+
+  /** Read window size of mapped crypto streams */
+  public static int getMappedWindowSize() {
+    String windowSizeStr = System
+        .getProperty(CRYPTOSTREAM_MAPPED_WINDOW_SIZE_KEY);
+    if (windowSizeStr == null || windowSizeStr.isEmpty()) {
+      return CRYPTOSTREAM_MAPPED_WINDOW_SIZE_DEFAULT;
+    } else {
+      return Integer.parseInt(windowSizeStr);
+    }
+  }
+
+  /** Read number of windows mapped ahead by mapped crypto input streams */
+  public static int getMappedPrefetchDepth() {
+    String depthStr = System
+        .getProperty(CRYPTOSTREAM_MAPPED_PREFETCH_DEPTH_KEY);
+    if (depthStr == null || depthStr.isEmpty()) {
+      return CRYPTOSTREAM_MAPPED_PREFETCH_DEPTH_DEFAULT;
+    } else {
+      return Integer.parseInt(depthStr);
+    }
+  }
+
+  /** Read buffer size of read-ahead crypto input streams */
+  public static int getReadAheadBufferSize() {
+    String bufferSizeStr = System
+        .getProperty(CRYPTOSTREAM_READAHEAD_BUFFER_SIZE_KEY);
+    if (bufferSizeStr == null || bufferSizeStr.isEmpty()) {
+      return CRYPTOSTREAM_READAHEAD_BUFFER_SIZE_DEFAULT;
+    } else {
+      return Integer.parseInt(bufferSizeStr);
+    }
+  }
+
+  /** Read number of buffers in flight of read-ahead crypto input streams */
+  public static int getReadAheadDepth() {
+    String depthStr = System.getProperty(CRYPTOSTREAM_READAHEAD_DEPTH_KEY);
+    if (depthStr == null || depthStr.isEmpty()) {
+      return CRYPTOSTREAM_READAHEAD_DEPTH_DEFAULT;
+    } else {
+      return Integer.parseInt(depthStr);
+    }
+  }
+
+  /** Read chunk size of the parallel CTR engine */
+  public static int getParallelChunkSize() {
+    String chunkSizeStr = System
+        .getProperty(CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_KEY);
+    if (chunkSizeStr == null || chunkSizeStr.isEmpty()) {
+      return CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_DEFAULT;
+    } else {
+      return Integer.parseInt(chunkSizeStr);
+    }
+  }
+
+  /**
+   * Read number of threads of the parallel CTR engine, default is the number
+   * of available processors
+   */
+  public static int getParallelThreads() {
+    String threadsStr = System.getProperty(CRYPTOSTREAM_PARALLEL_THREADS_KEY);
+    if (threadsStr == null || threadsStr.isEmpty()) {
+      return Runtime.getRuntime().availableProcessors();
+    } else {
+      return Integer.parseInt(threadsStr);
+    }
+  }
+
+  /**
+   * Whether crypto input streams decrypt large reads with a
+   * {@link ParallelCtrEngine}, default is false
+   */
+  public static boolean isParallelReadEnabled() {
+    return Boolean.parseBoolean(
+        System.getProperty(CRYPTOSTREAM_PARALLEL_READ_KEY));
+  }
+
+  /** Whether the codec is chosen by calibration, default is false */
+  public static boolean isCodecAutoSelected() {
+    return Boolean.parseBoolean(
+        System.getProperty(CRYPTOSTREAM_CRYPTO_CODEC_AUTO_KEY));
+  }
+
   public static String getCodecString(CipherSuite cipherSuite) {
     String configName = CRYPTOSTREAM_CRYPTO_CODEC_CLASSES_KEY_PREFIX
         + cipherSuite.getConfigSuffix();
@@ -162,4 +387,11 @@ public class CryptoStreamUtils {
     return bufferSize - bufferSize % codec.getCipherSuite()
         .getAlgorithmBlockSize();
   }
+
+  /** Check and floor window size to a multiple of the page size */
+  public static int checkWindowSize(int windowSize) {
+    Preconditions.checkArgument(windowSize >= PAGE_SIZE, 
+        "Minimum value of window size is " + PAGE_SIZE + ".");
+    return windowSize - windowSize % PAGE_SIZE;
+  }
 }
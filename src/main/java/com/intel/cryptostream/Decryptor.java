@@ -31,6 +31,16 @@ public interface Decryptor {
    */
   public void init(byte[] key, byte[] iv) throws IOException;
   
+  /**
+   * Re-initialize the decryption context at a block counter, the IV is the
+   * IV of the last {@link #init(byte[], byte[])} plus the counter, as
+   * computed by {@link CryptoCodec#calculateIV(byte[], long, byte[])}. The
+   * key is kept, so the key schedule is not computed again.
+   * @param counter the block counter of the next byte to decrypt.
+   * @throws IOException if re-initialization fails
+   */
+  public void reset(long counter) throws IOException;
+  
   /**
    * Indicate whether the decryption context is reset.
    * <p/>
@@ -64,4 +74,44 @@ public interface Decryptor {
    */
   public void decrypt(ByteBuffer inBuffer, ByteBuffer outBuffer) 
       throws IOException;
+  
+  /**
+   * This presents an interface decrypting byte arrays, without copying them
+   * into direct buffers.
+   * <p/>
+   * All len bytes of input are decrypted into output, the context is
+   * maintained as with {@link #decrypt(ByteBuffer, ByteBuffer)}. The input and
+   * the output may be the same array, the data is then decrypted in place.
+   * <p/>
+   * @param input the array to read from.
+   * @param inputOffset the offset in input where the data starts.
+   * @param len the number of bytes to decrypt.
+   * @param output the array to write to, it must have room for len bytes
+   * from outputOffset.
+   * @param outputOffset the offset in output where the result is stored.
+   * @throws IOException if decryption fails
+   */
+  public void decrypt(byte[] input, int inputOffset, int len, byte[] output,
+      int outputOffset) throws IOException;
+  
+  /**
+   * Indicate whether the decryptor can process data in place.
+   * <p/>
+   * If true, {@link #decrypt(ByteBuffer)} is supported and the output of
+   * {@link #decrypt(ByteBuffer, ByteBuffer)} may be the same memory as the
+   * input, at the same position, e.g. a duplicate of the input buffer.
+   * Streams then need a single direct buffer instead of two.
+   * @return boolean whether in-place decryption is supported.
+   */
+  public boolean isInPlaceSupported();
+  
+  /**
+   * Decrypt all buffer.remaining() bytes of a direct buffer in place.
+   * Upon return, buffer.position() is buffer.limit().
+   * @param buffer a direct {@link ByteBuffer}.
+   * @throws IOException if decryption fails
+   * @throws UnsupportedOperationException if {@link #isInPlaceSupported()}
+   * is false
+   */
+  public void decrypt(ByteBuffer buffer) throws IOException;
 }
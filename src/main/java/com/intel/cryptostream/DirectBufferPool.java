@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A process-wide pool of direct buffers, shared by all the streams and
+ * channels. Direct allocation zeroes the memory and takes a global lock, so
+ * short-lived streams borrow their buffers here and return them on close.
+ * <p/>
+ * Buffers are pooled in power of two size classes from 512 bytes to 16 MiB.
+ * {@link #getBuffer(int)} returns a view of a pooled buffer with exactly the
+ * requested capacity, it must be given back with
+ * {@link #returnBuffer(ByteBuffer)}. Each thread caches a few small buffers
+ * per class, the rest go to a shared queue per class. The bytes idle in the
+ * shared queues are capped by
+ * {@link ConfigurationKeys#CRYPTOSTREAM_BUFFER_POOL_CAPACITY_KEY}, buffers
+ * returned beyond the cap are freed.
+ * <p/>
+ * The thread caches are not counted against the cap: each thread that uses
+ * the pool may hold up to 2 buffers of each class up to 64 KiB, about 255 KiB
+ * in all. They are not handed back when the thread dies, their memory is
+ * released once the garbage collector reclaims the thread's locals.
+ */
+public final class DirectBufferPool {
+  private static final int MIN_CLASS_SHIFT = 9;  // 512 bytes
+  private static final int MAX_CLASS_SHIFT = 24; // 16 MiB
+  private static final int NUM_CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+  /** Classes up to 64 KiB are cached per thread, 2 buffers at most. */
+  private static final int MAX_THREAD_CACHED_SHIFT = 16;
+  private static final int THREAD_CACHE_SIZE = 2;
+
+  private static final DirectBufferPool INSTANCE = new DirectBufferPool(
+      CryptoStreamUtils.getBufferPoolCapacity());
+
+  private final long capacity;
+  private final Queue<ByteBuffer>[] pools;
+  private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches =
+      new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+    @Override
+    @SuppressWarnings("unchecked")
+    protected ArrayDeque<ByteBuffer>[] initialValue() {
+      ArrayDeque<ByteBuffer>[] caches =
+          (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[
+              MAX_THREAD_CACHED_SHIFT - MIN_CLASS_SHIFT + 1];
+      for (int i = 0; i < caches.length; i++) {
+        caches[i] = new ArrayDeque<ByteBuffer>(THREAD_CACHE_SIZE);
+      }
+      return caches;
+    }
+  };
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong outstandingBytes = new AtomicLong();
+  private final AtomicLong pooledBytes = new AtomicLong();
+
+  /** @return the process-wide pool. */
+  public static DirectBufferPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param capacity the maximum number of bytes idle in the shared queues.
+   */
+  @SuppressWarnings("unchecked")
+  public DirectBufferPool(long capacity) {
+    Preconditions.checkArgument(capacity >= 0, "Negative pool capacity.");
+    this.capacity = capacity;
+    pools = (Queue<ByteBuffer>[]) new Queue<?>[NUM_CLASSES];
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  /**
+   * Borrow a direct buffer. The buffer is cleared, its capacity is size and
+   * its content is unspecified.
+   */
+  public ByteBuffer getBuffer(int size) {
+    Preconditions.checkArgument(size > 0, "Buffer size must be positive.");
+    outstandingBytes.addAndGet(size);
+    final int shift = getClassShift(size);
+    if (shift > MAX_CLASS_SHIFT) {
+      misses.incrementAndGet();
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    ByteBuffer buffer = null;
+    if (shift <= MAX_THREAD_CACHED_SHIFT) {
+      buffer = threadCaches.get()[shift - MIN_CLASS_SHIFT].pollFirst();
+    }
+    if (buffer == null) {
+      buffer = pools[shift - MIN_CLASS_SHIFT].poll();
+      if (buffer != null) {
+        pooledBytes.addAndGet(-buffer.capacity());
+      }
+    }
+    if (buffer == null) {
+      misses.incrementAndGet();
+      buffer = ByteBuffer.allocateDirect(1 << shift);
+    } else {
+      hits.incrementAndGet();
+    }
+
+    buffer.clear();
+    buffer.limit(size);
+    return buffer.slice();
+  }
+
+  /** Give back a buffer obtained from {@link #getBuffer(int)}. */
+  public void returnBuffer(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    outstandingBytes.addAndGet(-buffer.capacity());
+    final ByteBuffer root = getRoot(buffer);
+    final int shift = getClassShift(root.capacity());
+    if (shift > MAX_CLASS_SHIFT || root.capacity() != 1 << shift) {
+      CryptoStreamUtils.freeDB(root);
+      return;
+    }
+
+    if (shift <= MAX_THREAD_CACHED_SHIFT) {
+      ArrayDeque<ByteBuffer> cache =
+          threadCaches.get()[shift - MIN_CLASS_SHIFT];
+      if (cache.size() < THREAD_CACHE_SIZE) {
+        cache.addFirst(root);
+        return;
+      }
+    }
+    if (pooledBytes.addAndGet(root.capacity()) <= capacity) {
+      pools[shift - MIN_CLASS_SHIFT].add(root);
+    } else {
+      pooledBytes.addAndGet(-root.capacity());
+      CryptoStreamUtils.freeDB(root);
+    }
+  }
+
+  /** @return number of buffers served from the pool. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return number of buffers allocated because the pool had none. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return bytes borrowed and not returned yet. */
+  public long getOutstandingBytes() {
+    return outstandingBytes.get();
+  }
+
+  /** @return bytes idle in the shared queues, thread caches excluded. */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /** Free the buffers idle in the shared queues. */
+  public void clear() {
+    for (Queue<ByteBuffer> pool : pools) {
+      ByteBuffer buffer;
+      while ((buffer = pool.poll()) != null) {
+        pooledBytes.addAndGet(-buffer.capacity());
+        CryptoStreamUtils.freeDB(buffer);
+      }
+    }
+  }
+
+  /** @return the shift of the smallest size class holding size bytes. */
+  private static int getClassShift(int size) {
+    if (size <= 1 << MIN_CLASS_SHIFT) {
+      return MIN_CLASS_SHIFT;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  /** @return the buffer a view was sliced from, or the buffer itself. */
+  private static ByteBuffer getRoot(ByteBuffer buffer) {
+    if (buffer instanceof sun.nio.ch.DirectBuffer) {
+      Object attachment = ((sun.nio.ch.DirectBuffer) buffer).attachment();
+      if (attachment instanceof ByteBuffer) {
+        return (ByteBuffer) attachment;
+      }
+    }
+    return buffer;
+  }
+}
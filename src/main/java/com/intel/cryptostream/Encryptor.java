@@ -30,6 +30,16 @@ public interface Encryptor {
    */
   public void init(byte[] key, byte[] iv) throws IOException;
   
+  /**
+   * Re-initialize the encryption context at a block counter, the IV is the
+   * IV of the last {@link #init(byte[], byte[])} plus the counter, as
+   * computed by {@link CryptoCodec#calculateIV(byte[], long, byte[])}. The
+   * key is kept, so the key schedule is not computed again.
+   * @param counter the block counter of the next byte to encrypt.
+   * @throws IOException if re-initialization fails
+   */
+  public void reset(long counter) throws IOException;
+  
   /**
    * Indicate whether the encryption context is reset.
    * <p/>
@@ -63,4 +73,44 @@ public interface Encryptor {
    */
   public void encrypt(ByteBuffer inBuffer, ByteBuffer outBuffer) 
       throws IOException;
+  
+  /**
+   * This presents an interface encrypting byte arrays, without copying them
+   * into direct buffers.
+   * <p/>
+   * All len bytes of input are encrypted into output, the context is
+   * maintained as with {@link #encrypt(ByteBuffer, ByteBuffer)}. The input and
+   * the output may be the same array, the data is then encrypted in place.
+   * <p/>
+   * @param input the array to read from.
+   * @param inputOffset the offset in input where the data starts.
+   * @param len the number of bytes to encrypt.
+   * @param output the array to write to, it must have room for len bytes
+   * from outputOffset.
+   * @param outputOffset the offset in output where the result is stored.
+   * @throws IOException if encryption fails
+   */
+  public void encrypt(byte[] input, int inputOffset, int len, byte[] output,
+      int outputOffset) throws IOException;
+  
+  /**
+   * Indicate whether the encryptor can process data in place.
+   * <p/>
+   * If true, {@link #encrypt(ByteBuffer)} is supported and the output of
+   * {@link #encrypt(ByteBuffer, ByteBuffer)} may be the same memory as the
+   * input, at the same position, e.g. a duplicate of the input buffer.
+   * Streams then need a single direct buffer instead of two.
+   * @return boolean whether in-place encryption is supported.
+   */
+  public boolean isInPlaceSupported();
+  
+  /**
+   * Encrypt all buffer.remaining() bytes of a direct buffer in place.
+   * Upon return, buffer.position() is buffer.limit().
+   * @param buffer a direct {@link ByteBuffer}.
+   * @throws IOException if encryption fails
+   * @throws UnsupportedOperationException if {@link #isInPlaceSupported()}
+   * is false
+   */
+  public void encrypt(ByteBuffer buffer) throws IOException;
 }
@@ -0,0 +1,301 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * AES-CTR crypto codec choosing JCE or OpenSSL for each call by buffer size.
+ * <p/>
+ * For small buffers the JNI transition costs more than the AES intrinsics
+ * of the JVM save, for large buffers OpenSSL is faster. Calls of at least
+ * {@link #getThreshold()} bytes on direct buffers or arrays go to OpenSSL,
+ * the others to JCE. The threshold is read from
+ * {@link ConfigurationKeys#CRYPTOSTREAM_HYBRID_THRESHOLD_KEY}, or measured
+ * once per process when the first codec is created.
+ * <p/>
+ * The ciphers keep both engines on the same counter: an engine that did not
+ * process the last bytes is reset to the current position before it is
+ * used. In CTR mode decryption is the same operation as encryption, so
+ * both modes drive two encryptors.
+ */
+public class HybridAesCtrCryptoCodec extends AesCtrCryptoCodec {
+  private static final Log LOG =
+      LogFactory.getLog(HybridAesCtrCryptoCodec.class.getName());
+
+  private static final int MIN_CALIBRATION_SIZE = 64;
+  private static final int MAX_CALIBRATION_SIZE = 64 * 1024;
+  /** Bytes processed per engine, buffer size and round when calibrating. */
+  private static final int CALIBRATION_BYTES = 512 * 1024;
+  private static int calibratedThreshold = -1;
+
+  private final CryptoCodec jceCodec;
+  private final CryptoCodec opensslCodec;
+  private final int threshold;
+
+  /**
+   * @throws RuntimeException if the OpenSSL codec is not available, the
+   * codec lookup then falls back to the next configured codec.
+   */
+  public HybridAesCtrCryptoCodec() {
+    this(new JceAesCtrCryptoCodec(), new OpensslAesCtrCryptoCodec(),
+        CryptoStreamUtils.getHybridThreshold());
+  }
+
+  /** For tests, a negative threshold is calibrated. */
+  HybridAesCtrCryptoCodec(CryptoCodec jceCodec, CryptoCodec opensslCodec,
+      int threshold) {
+    this.jceCodec = jceCodec;
+    this.opensslCodec = opensslCodec;
+    this.threshold = threshold >= 0 ? threshold :
+        getCalibratedThreshold(jceCodec, opensslCodec);
+  }
+
+  /** @return the buffer size from which OpenSSL is used. */
+  public int getThreshold() {
+    return threshold;
+  }
+
+  @Override
+  public Encryptor createEncryptor() throws GeneralSecurityException {
+    return new HybridAesCtrCipher(jceCodec.createEncryptor(),
+        opensslCodec.createEncryptor(), threshold);
+  }
+
+  @Override
+  public Decryptor createDecryptor() throws GeneralSecurityException {
+    return new HybridAesCtrCipher(jceCodec.createEncryptor(),
+        opensslCodec.createEncryptor(), threshold);
+  }
+
+  @Override
+  public void generateSecureRandom(byte[] bytes) {
+    opensslCodec.generateSecureRandom(bytes);
+  }
+
+  private static synchronized int getCalibratedThreshold(CryptoCodec jceCodec,
+      CryptoCodec opensslCodec) {
+    if (calibratedThreshold < 0) {
+      try {
+        calibratedThreshold = calibrate(jceCodec.createEncryptor(),
+            opensslCodec.createEncryptor());
+      } catch (Exception e) {
+        LOG.warn("Failed to calibrate the hybrid codec.", e);
+        calibratedThreshold = MAX_CALIBRATION_SIZE;
+      }
+      LOG.debug("Hybrid AES-CTR codec uses OpenSSL from " +
+          calibratedThreshold + " bytes.");
+    }
+    return calibratedThreshold;
+  }
+
+  /**
+   * @return the smallest power of two buffer size OpenSSL encrypts faster
+   * than JCE, or Integer.MAX_VALUE if JCE is always faster.
+   */
+  static int calibrate(Encryptor jce, Encryptor openssl) throws IOException {
+    final byte[] key = new byte[SUITE.getAlgorithmBlockSize()];
+    final byte[] iv = new byte[SUITE.getAlgorithmBlockSize()];
+    jce.init(key, iv);
+    openssl.init(key, iv);
+    final ByteBuffer in = ByteBuffer.allocateDirect(MAX_CALIBRATION_SIZE);
+    final ByteBuffer out = ByteBuffer.allocateDirect(MAX_CALIBRATION_SIZE);
+    try {
+      for (int size = MIN_CALIBRATION_SIZE; size <= MAX_CALIBRATION_SIZE;
+          size <<= 1) {
+        if (time(openssl, in, out, size) < time(jce, in, out, size)) {
+          return size;
+        }
+      }
+      return Integer.MAX_VALUE;
+    } finally {
+      CryptoStreamUtils.freeDB(in);
+      CryptoStreamUtils.freeDB(out);
+      close(jce);
+      close(openssl);
+    }
+  }
+
+  /** The best of a few rounds, the first ones let the JIT compile. */
+  private static long time(Encryptor encryptor, ByteBuffer in,
+      ByteBuffer out, int size) throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < 3; round++) {
+      final long start = System.nanoTime();
+      for (int n = 0; n < CALIBRATION_BYTES; n += size) {
+        in.clear();
+        in.limit(size);
+        out.clear();
+        encryptor.encrypt(in, out);
+      }
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  private static void close(Object cipher) throws IOException {
+    if (cipher instanceof Closeable) {
+      ((Closeable) cipher).close();
+    }
+  }
+
+  private static class HybridAesCtrCipher implements Encryptor, Decryptor,
+      Closeable {
+    private static final int JCE = 0;
+    private static final int OPENSSL = 1;
+    private static final int BLOCK_SIZE = SUITE.getAlgorithmBlockSize();
+
+    private final Encryptor[] engines;
+    private final int threshold;
+    /** Stream position of each engine, -1 if it needs an init. */
+    private final long[] positions = {-1, -1};
+    private long position = 0;
+    private boolean contextReset = false;
+    private byte[] key;
+    private final byte[] initIV = new byte[BLOCK_SIZE];
+    private final byte[] padding = new byte[BLOCK_SIZE];
+
+    HybridAesCtrCipher(Encryptor jce, Encryptor openssl, int threshold) {
+      this.engines = new Encryptor[] {jce, openssl};
+      this.threshold = threshold;
+    }
+
+    /** The engines are initialized when they are first used. */
+    @Override
+    public void init(byte[] key, byte[] iv) throws IOException {
+      Preconditions.checkNotNull(key);
+      Preconditions.checkNotNull(iv);
+      Preconditions.checkArgument(iv.length == initIV.length);
+      if (this.key == null || !MessageDigest.isEqual(this.key, key)) {
+        this.key = key.clone();
+      }
+      System.arraycopy(iv, 0, initIV, 0, initIV.length);
+      positions[JCE] = -1;
+      positions[OPENSSL] = -1;
+      position = 0;
+      contextReset = false;
+    }
+
+    @Override
+    public void reset(long counter) throws IOException {
+      Preconditions.checkState(key != null, "Cipher is not initialized.");
+      position = counter * BLOCK_SIZE;
+      contextReset = false;
+    }
+
+    /** @return the engine for len bytes, moved to the current position. */
+    private Encryptor engine(int len, boolean nativeBuffers)
+        throws IOException {
+      Preconditions.checkState(key != null, "Cipher is not initialized.");
+      final int i = len >= threshold && nativeBuffers ? OPENSSL : JCE;
+      final Encryptor engine = engines[i];
+      if (positions[i] < 0) {
+        engine.init(key, initIV);
+        positions[i] = 0;
+      }
+      if (positions[i] != position) {
+        engine.reset(position / BLOCK_SIZE);
+        final int skip = (int) (position % BLOCK_SIZE);
+        if (skip > 0) {
+          engine.encrypt(padding, 0, skip, padding, 0);
+        }
+      }
+      // Until the call succeeds, the engine position is unknown.
+      positions[i] = -1;
+      position += len;
+      return engine;
+    }
+
+    /** Record that engine is at the current position after a call. */
+    private void advanced(Encryptor engine) {
+      final int i = engine == engines[JCE] ? JCE : OPENSSL;
+      if (engine.isContextReset()) {
+        contextReset = true;
+      } else {
+        positions[i] = position;
+      }
+    }
+
+    @Override
+    public void encrypt(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      final Encryptor engine = engine(inBuffer.remaining(),
+          inBuffer.isDirect() && outBuffer.isDirect());
+      engine.encrypt(inBuffer, outBuffer);
+      advanced(engine);
+    }
+
+    @Override
+    public void decrypt(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      encrypt(inBuffer, outBuffer);
+    }
+
+    @Override
+    public void encrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      final Encryptor engine = engine(len, true);
+      engine.encrypt(input, inputOffset, len, output, outputOffset);
+      advanced(engine);
+    }
+
+    @Override
+    public void decrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      encrypt(input, inputOffset, len, output, outputOffset);
+    }
+
+    @Override
+    public boolean isInPlaceSupported() {
+      return engines[JCE].isInPlaceSupported() &&
+          engines[OPENSSL].isInPlaceSupported();
+    }
+
+    @Override
+    public void encrypt(ByteBuffer buffer) throws IOException {
+      final Encryptor engine = engine(buffer.remaining(), true);
+      engine.encrypt(buffer);
+      advanced(engine);
+    }
+
+    @Override
+    public void decrypt(ByteBuffer buffer) throws IOException {
+      encrypt(buffer);
+    }
+
+    @Override
+    public boolean isContextReset() {
+      return contextReset;
+    }
+
+    @Override
+    public void close() throws IOException {
+      HybridAesCtrCryptoCodec.close(engines[JCE]);
+      HybridAesCtrCryptoCodec.close(engines[OPENSSL]);
+    }
+  }
+}
@@ -20,6 +20,7 @@ package com.intel.cryptostream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
@@ -73,6 +74,10 @@ public class JceAesCtrCryptoCodec extends AesCtrCryptoCodec {
     private final Cipher cipher;
     private final int mode;
     private boolean contextReset = false;
+    private SecretKeySpec keySpec;
+    private byte[] key;
+    private final byte[] initIV = new byte[SUITE.getAlgorithmBlockSize()];
+    private final byte[] iv = new byte[SUITE.getAlgorithmBlockSize()];
     
     public JceAesCtrCipher(int mode, String provider) 
         throws GeneralSecurityException {
@@ -88,10 +93,31 @@ public class JceAesCtrCryptoCodec extends AesCtrCryptoCodec {
     public void init(byte[] key, byte[] iv) throws IOException {
       Preconditions.checkNotNull(key);
       Preconditions.checkNotNull(iv);
+      Preconditions.checkArgument(iv.length == initIV.length);
       contextReset = false;
+      System.arraycopy(iv, 0, initIV, 0, initIV.length);
+      if (this.key == null || !MessageDigest.isEqual(this.key, key)) {
+        keySpec = new SecretKeySpec(key, "AES");
+        this.key = key.clone();
+      }
+      try {
+        cipher.init(mode, keySpec, new IvParameterSpec(iv));
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+    
+    /**
+     * The provider keeps its key schedule when the key is the same as the
+     * last one, so only the IV changes.
+     */
+    @Override
+    public void reset(long counter) throws IOException {
+      Preconditions.checkState(keySpec != null, "Cipher is not initialized.");
+      contextReset = false;
+      addCounter(initIV, counter, iv);
       try {
-        cipher.init(mode, new SecretKeySpec(key, "AES"), 
-            new IvParameterSpec(iv));
+        cipher.init(mode, keySpec, new IvParameterSpec(iv));
       } catch (Exception e) {
         throw new IOException(e);
       }
@@ -137,6 +163,51 @@ public class JceAesCtrCryptoCodec extends AesCtrCryptoCodec {
       }
     }
     
+    @Override
+    public void encrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      process(input, inputOffset, len, output, outputOffset);
+    }
+    
+    @Override
+    public void decrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      process(input, inputOffset, len, output, outputOffset);
+    }
+    
+    private void process(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      try {
+        // Cipher#update will maintain crypto context.
+        int n = cipher.update(input, inputOffset, len, output, outputOffset);
+        if (n < len) {
+          // As above, typically code will not get here.
+          contextReset = true;
+          cipher.doFinal(output, outputOffset + n);
+        }
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+    
+    @Override
+    public boolean isInPlaceSupported() {
+      return true;
+    }
+    
+    /** The cipher is given two views of the buffer, it reads before writing. */
+    @Override
+    public void encrypt(ByteBuffer buffer) throws IOException {
+      process(buffer, buffer.duplicate());
+      buffer.position(buffer.limit());
+    }
+    
+    @Override
+    public void decrypt(ByteBuffer buffer) throws IOException {
+      process(buffer, buffer.duplicate());
+      buffer.position(buffer.limit());
+    }
+    
     @Override
     public boolean isContextReset() {
       return contextReset;
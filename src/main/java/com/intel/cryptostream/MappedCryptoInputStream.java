@@ -0,0 +1,363 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * MappedCryptoInputStream decrypts a file through memory mapped windows of
+ * the cipher text. It is not thread-safe. Compared to {@link CryptoInputStream}
+ * over a FileInputStream, there is no read syscall and no copy of the cipher
+ * text into an input buffer: the mapped window itself is the input of the
+ * decryptor, and the plain text goes to a reusable direct output buffer.
+ * <p/>
+ * The file is mapped in page aligned windows of
+ * {@link ConfigurationKeys#CRYPTOSTREAM_MAPPED_WINDOW_SIZE_KEY} bytes. Up to
+ * {@link ConfigurationKeys#CRYPTOSTREAM_MAPPED_PREFETCH_DEPTH_KEY} windows
+ * after the current one are mapped ahead and loaded into memory in the
+ * background.
+ * <p/>
+ * The file format is the same as {@link CryptoOutputStream}, the file
+ * position is the stream position.
+ */
+public class MappedCryptoInputStream extends InputStream implements
+    ReadableByteChannel {
+  private static final ExecutorService prefetcher =
+      Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("cryptostream-prefetch-%d").build());
+
+  private final byte[] oneByteBuf = new byte[1];
+  private final FileChannel channel;
+  private final CryptoCodec codec;
+  private final Decryptor decryptor;
+  private final int bufferSize;
+  private final int windowSize;
+  private final int prefetchDepth;
+  private final long length;
+
+  /**
+   * The decrypted data buffer. The data starts at outBuffer.position() and
+   * ends at outBuffer.limit();
+   */
+  private ByteBuffer outBuffer;
+
+  /** File offset of the next cipher text to decrypt. */
+  private long streamOffset = 0;
+
+  /** The current window first, followed by the windows mapped ahead. */
+  private final Deque<Window> windows = new ArrayDeque<Window>();
+
+  private boolean closed;
+  private final byte[] key;
+  private final byte[] initIV;
+
+  /** A mapped region of the cipher text. */
+  private static class Window {
+    final long start;
+    final long end;
+    final MappedByteBuffer buffer;
+    Future<?> prefetch;
+
+    Window(long start, long end, MappedByteBuffer buffer) {
+      this.start = start;
+      this.end = end;
+      this.buffer = buffer;
+    }
+
+    boolean contains(long offset) {
+      return offset >= start && offset < end;
+    }
+  }
+
+  public MappedCryptoInputStream(FileChannel channel, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv) throws IOException {
+    this(channel, codec, bufferSize, CryptoStreamUtils.getMappedWindowSize(),
+        CryptoStreamUtils.getMappedPrefetchDepth(), key, iv);
+  }
+
+  public MappedCryptoInputStream(FileChannel channel, CryptoCodec codec,
+      int bufferSize, int windowSize, int prefetchDepth, byte[] key,
+      byte[] iv) throws IOException {
+    Preconditions.checkNotNull(channel);
+    Preconditions.checkArgument(prefetchDepth >= 0,
+        "Negative prefetch depth.");
+    CryptoStreamUtils.checkCodec(codec);
+    this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
+    this.windowSize = CryptoStreamUtils.checkWindowSize(windowSize);
+    this.prefetchDepth = prefetchDepth;
+    this.channel = channel;
+    this.codec = codec;
+    this.key = key.clone();
+    this.initIV = iv.clone();
+    this.length = channel.size();
+    outBuffer = DirectBufferPool.getInstance().getBuffer(this.bufferSize);
+    try {
+      decryptor = codec.borrowDecryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    decryptor.init(key, initIV);
+    resetStreamOffset(channel.position());
+  }
+
+  public MappedCryptoInputStream(FileChannel channel, CryptoCodec codec,
+      byte[] key, byte[] iv) throws IOException {
+    this(channel, codec, CryptoStreamUtils.getBufferSize(), key, iv);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    checkStream();
+    if (b == null) {
+      throw new NullPointerException();
+    } else if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+
+    if (!outBuffer.hasRemaining() && !decrypt()) {
+      return -1;
+    }
+    final int n = Math.min(len, outBuffer.remaining());
+    outBuffer.get(b, off, n);
+    return n;
+  }
+
+  /** ByteBuffer read. */
+  @Override
+  public int read(ByteBuffer buf) throws IOException {
+    checkStream();
+    int total = 0;
+    while (buf.hasRemaining()) {
+      if (!outBuffer.hasRemaining() && !decrypt()) {
+        break;
+      }
+      final int n = Math.min(buf.remaining(), outBuffer.remaining());
+      final int limit = outBuffer.limit();
+      outBuffer.limit(outBuffer.position() + n);
+      buf.put(outBuffer);
+      outBuffer.limit(limit);
+      total += n;
+    }
+    return (total == 0 && buf.hasRemaining()) ? -1 : total;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return (read(oneByteBuf, 0, 1) == -1) ? -1 : (oneByteBuf[0] & 0xff);
+  }
+
+  /**
+   * Decrypt the next chunk of the current window into {@link #outBuffer}.
+   * The input starts at the block boundary, so the padding bytes are the
+   * real cipher text and are skipped in the output.
+   * @return boolean false if end of file is reached.
+   */
+  private boolean decrypt() throws IOException {
+    if (streamOffset >= length) {
+      return false;
+    }
+    final byte padding = getPadding(streamOffset);
+    final long blockStart = streamOffset - padding;
+    final Window window = getWindow(blockStart);
+    final int start = (int) (blockStart - window.start);
+    final int len = (int) Math.min(bufferSize, window.end - blockStart);
+
+    final MappedByteBuffer input = window.buffer;
+    input.clear();
+    input.position(start);
+    input.limit(start + len);
+    outBuffer.clear();
+    decryptor.decrypt(input, outBuffer);
+    outBuffer.flip();
+    outBuffer.position(padding);
+    streamOffset = blockStart + len;
+
+    if (decryptor.isContextReset()) {
+      /*
+       * This code is generally not executed since the decryptor usually
+       * maintains decryption context (e.g. the counter) internally. However,
+       * some implementations can't maintain context so a re-init is necessary
+       * after each decryption call.
+       */
+      updateDecryptor(streamOffset);
+    }
+    return true;
+  }
+
+  /**
+   * Get the window containing offset. Windows before it are unmapped, and
+   * up to {@link #prefetchDepth} windows after it are mapped and prefetched.
+   */
+  private Window getWindow(long offset) throws IOException {
+    Window window = windows.peekFirst();
+    while (window != null && !window.contains(offset)) {
+      unmap(windows.pollFirst());
+      window = windows.peekFirst();
+    }
+    if (window == null) {
+      window = map(offset - offset % windowSize);
+      windows.addLast(window);
+    }
+
+    while (windows.size() <= prefetchDepth && windows.peekLast().end < length) {
+      final Window next = map(windows.peekLast().end);
+      next.prefetch = prefetcher.submit(new Runnable() {
+        @Override
+        public void run() {
+          next.buffer.load();
+        }
+      });
+      windows.addLast(next);
+    }
+    return window;
+  }
+
+  private Window map(long start) throws IOException {
+    final long end = Math.min(start + windowSize, length);
+    return new Window(start, end,
+        channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+  }
+
+  /** Unmap the window once its prefetch, if any, is finished. */
+  private void unmap(Window window) {
+    if (window.prefetch != null) {
+      try {
+        window.prefetch.get();
+      } catch (Exception e) {
+        // Prefetch is only a hint.
+      }
+    }
+    CryptoStreamUtils.freeDB(window.buffer);
+  }
+
+  /** @return the current position of the stream. */
+  public long getPos() {
+    return streamOffset - outBuffer.remaining();
+  }
+
+  /** Seek to a position. */
+  public void seek(long pos) throws IOException {
+    Preconditions.checkArgument(pos >= 0, "Cannot seek to negative offset.");
+    checkStream();
+    if (pos > length) {
+      throw new EOFException("Cannot seek after EOF.");
+    }
+    // outBuffer holds the plain text of [streamOffset - limit, streamOffset)
+    if (pos >= streamOffset - outBuffer.limit() && pos <= streamOffset) {
+      // The data is in the decrypted buffer already.
+      outBuffer.position(outBuffer.limit() - (int) (streamOffset - pos));
+    } else {
+      resetStreamOffset(pos);
+    }
+  }
+
+  /** Skip n bytes */
+  @Override
+  public long skip(long n) throws IOException {
+    Preconditions.checkArgument(n >= 0, "Negative skip length.");
+    checkStream();
+    final long pos = getPos();
+    final long skipped = Math.min(n, length - pos);
+    seek(pos + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkStream();
+    return (int) Math.min(Integer.MAX_VALUE, length - getPos());
+  }
+
+  /** Reset the stream offset, clear {@link #outBuffer}. */
+  private void resetStreamOffset(long offset) throws IOException {
+    streamOffset = offset;
+    outBuffer.clear();
+    outBuffer.limit(0);
+    updateDecryptor(offset);
+  }
+
+  private long getCounter(long position) {
+    return position / codec.getCipherSuite().getAlgorithmBlockSize();
+  }
+
+  private byte getPadding(long position) {
+    return (byte)(position % codec.getCipherSuite().getAlgorithmBlockSize());
+  }
+
+  /** Reset the decryptor to the counter of position, keeping its key. */
+  private void updateDecryptor(long position) throws IOException {
+    decryptor.reset(getCounter(position));
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      channel.close();
+      freeBuffers();
+      codec.returnDecryptor(decryptor);
+    } finally {
+      closed = true;
+    }
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void checkStream() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /** Return the direct buffer to the shared pool and unmap the windows. */
+  private void freeBuffers() {
+    DirectBufferPool.getInstance().returnBuffer(outBuffer);
+    Window window;
+    while ((window = windows.pollFirst()) != null) {
+      unmap(window);
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+}
@@ -0,0 +1,322 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * MappedCryptoOutputStream encrypts data into memory mapped windows of a
+ * file. It is not thread-safe. The encryptor writes the cipher text straight
+ * into the mapped window, there is no output buffer and no write syscall.
+ * The channel must be opened for both reading and writing.
+ * <p/>
+ * The file is mapped in page aligned windows of
+ * {@link ConfigurationKeys#CRYPTOSTREAM_MAPPED_WINDOW_SIZE_KEY} bytes, the
+ * file is truncated to the end of the written data when the stream is closed.
+ * <p/>
+ * The file format is the same as {@link CryptoOutputStream}, the file
+ * position is the stream position.
+ */
+public class MappedCryptoOutputStream extends OutputStream implements
+    WritableByteChannel {
+  private final byte[] oneByteBuf = new byte[1];
+  private final FileChannel channel;
+  private final CryptoCodec codec;
+  private final Encryptor encryptor;
+  private final int bufferSize;
+  private final int windowSize;
+
+  /**
+   * Input data buffer. The data starts at inBuffer.position() and ends at
+   * inBuffer.limit().
+   */
+  private ByteBuffer inBuffer;
+
+  /** The cipher text under the padding, kept as it is. */
+  private final byte[] paddingBuf;
+
+  /** File offset of the next data to encrypt. */
+  private long streamOffset = 0;
+
+  /** The end of the file, the file is truncated to it on close. */
+  private long fileLength;
+
+  /** The current window. */
+  private long windowStart = -1;
+  private MappedByteBuffer window;
+
+  /**
+   * Padding = pos%(algorithm blocksize); Padding is put into {@link #inBuffer}
+   * before any other data goes in. The purpose of padding is to put input data
+   * at proper position.
+   */
+  private byte padding;
+  private boolean closed;
+  private final byte[] key;
+  private final byte[] initIV;
+
+  public MappedCryptoOutputStream(FileChannel channel, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv) throws IOException {
+    this(channel, codec, bufferSize, key, iv, 0);
+  }
+
+  public MappedCryptoOutputStream(FileChannel channel, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv, long streamOffset)
+      throws IOException {
+    this(channel, codec, bufferSize, CryptoStreamUtils.getMappedWindowSize(),
+        key, iv, streamOffset);
+  }
+
+  public MappedCryptoOutputStream(FileChannel channel, CryptoCodec codec,
+      int bufferSize, int windowSize, byte[] key, byte[] iv,
+      long streamOffset) throws IOException {
+    Preconditions.checkNotNull(channel);
+    Preconditions.checkArgument(streamOffset >= 0, "Negative stream offset.");
+    CryptoStreamUtils.checkCodec(codec);
+    this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
+    this.windowSize = CryptoStreamUtils.checkWindowSize(windowSize);
+    this.channel = channel;
+    this.codec = codec;
+    this.key = key.clone();
+    this.initIV = iv.clone();
+    paddingBuf = new byte[codec.getCipherSuite().getAlgorithmBlockSize()];
+    inBuffer = DirectBufferPool.getInstance().getBuffer(this.bufferSize);
+    this.streamOffset = streamOffset;
+    fileLength = channel.size();
+    try {
+      encryptor = codec.borrowEncryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    encryptor.init(key, initIV);
+    updateEncryptor();
+  }
+
+  public MappedCryptoOutputStream(FileChannel channel, CryptoCodec codec,
+      byte[] key, byte[] iv) throws IOException {
+    this(channel, codec, key, iv, 0);
+  }
+
+  public MappedCryptoOutputStream(FileChannel channel, CryptoCodec codec,
+      byte[] key, byte[] iv, long streamOffset) throws IOException {
+    this(channel, codec, CryptoStreamUtils.getBufferSize(),
+        key, iv, streamOffset);
+  }
+
+  /**
+   * Encryption is buffer based. A chunk never crosses a window boundary,
+   * so {@link #inBuffer} is encrypted when it is full or when the data
+   * reaches the end of the window.
+   * @param b the data.
+   * @param off the start offset in the data.
+   * @param len the number of bytes to write.
+   * @throws IOException
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkStream();
+    if (b == null) {
+      throw new NullPointerException();
+    } else if (off < 0 || len < 0 || off > b.length ||
+        len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      final int remaining = remaining();
+      if (len < remaining) {
+        inBuffer.put(b, off, len);
+        len = 0;
+      } else {
+        inBuffer.put(b, off, remaining);
+        off += remaining;
+        len -= remaining;
+        encrypt();
+      }
+    }
+  }
+
+  /**
+   * ByteBuffer write. All <code>src.remaining()</code> bytes are consumed,
+   * and src can be either a heap or a direct buffer.
+   */
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    checkStream();
+    final int len = src.remaining();
+    int toWrite = len;
+    while (toWrite > 0) {
+      final int remaining = remaining();
+      if (toWrite < remaining) {
+        inBuffer.put(src);
+        toWrite = 0;
+      } else {
+        final int limit = src.limit();
+        src.limit(src.position() + remaining);
+        inBuffer.put(src);
+        src.limit(limit);
+        toWrite -= remaining;
+        encrypt();
+      }
+    }
+    return len;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    oneByteBuf[0] = (byte)(b & 0xff);
+    write(oneByteBuf, 0, oneByteBuf.length);
+  }
+
+  /** @return the room in {@link #inBuffer} before the end of the window. */
+  private int remaining() {
+    final long pos = streamOffset + inBuffer.position() - padding;
+    final long windowEnd = (pos / windowSize + 1) * windowSize;
+    return (int) Math.min(inBuffer.remaining(), windowEnd - pos);
+  }
+
+  /**
+   * Do the encryption, input is {@link #inBuffer} and output is the mapped
+   * window. The window is block aligned, so the padding and the data are
+   * always in the same window.
+   */
+  private void encrypt() throws IOException {
+    Preconditions.checkState(inBuffer.position() >= padding);
+    if (inBuffer.position() == padding) {
+      // There is no real data in the inBuffer.
+      return;
+    }
+    final long blockStart = streamOffset - padding;
+    final MappedByteBuffer output = getWindow(blockStart);
+    final int start = (int) (blockStart - windowStart);
+    inBuffer.flip();
+    output.clear();
+    output.position(start);
+    if (padding > 0) {
+      // Keep the cipher text before the stream offset.
+      output.get(paddingBuf, 0, padding);
+      output.position(start);
+    }
+    encryptor.encrypt(inBuffer, output);
+    if (padding > 0) {
+      output.position(start);
+      output.put(paddingBuf, 0, padding);
+      padding = 0;
+    }
+    streamOffset = blockStart + inBuffer.limit();
+    fileLength = Math.max(fileLength, streamOffset);
+    inBuffer.clear();
+
+    if (encryptor.isContextReset()) {
+      /*
+       * This code is generally not executed since the encryptor usually
+       * maintains encryption context (e.g. the counter) internally. However,
+       * some implementations can't maintain context so a re-init is necessary
+       * after each encryption call.
+       */
+      updateEncryptor();
+    }
+  }
+
+  /** Map the window containing offset, unmapping the previous one. */
+  private MappedByteBuffer getWindow(long offset) throws IOException {
+    final long start = offset - offset % windowSize;
+    if (window == null || windowStart != start) {
+      unmap();
+      window = channel.map(FileChannel.MapMode.READ_WRITE, start, windowSize);
+      windowStart = start;
+    }
+    return window;
+  }
+
+  private void unmap() {
+    if (window != null) {
+      CryptoStreamUtils.freeDB(window);
+      window = null;
+      windowStart = -1;
+    }
+  }
+
+  /** Update the {@link #encryptor}: calculate counter and {@link #padding}. */
+  private void updateEncryptor() throws IOException {
+    final long counter =
+        streamOffset / codec.getCipherSuite().getAlgorithmBlockSize();
+    padding =
+        (byte)(streamOffset % codec.getCipherSuite().getAlgorithmBlockSize());
+    inBuffer.position(padding); // Set proper position for input data.
+    encryptor.reset(counter);
+  }
+
+  /**
+   * To flush, we need to encrypt the data in the buffer and force the
+   * window to the storage.
+   */
+  @Override
+  public void flush() throws IOException {
+    checkStream();
+    encrypt();
+    if (window != null) {
+      window.force();
+    }
+  }
+
+  /**
+   * The mapping may extend the file up to the end of the window, so the file
+   * is truncated to the end of the data when closing.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      encrypt();
+      freeBuffers();
+      codec.returnEncryptor(encryptor);
+      channel.truncate(fileLength);
+      channel.close();
+    } finally {
+      closed = true;
+    }
+  }
+
+  private void checkStream() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /** Return the direct buffer to the shared pool and unmap the window. */
+  private void freeBuffers() {
+    DirectBufferPool.getInstance().returnBuffer(inBuffer);
+    unmap();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+}
@@ -0,0 +1,255 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * AES/CTR/NoPadding {@link CipherSpi} backed by {@link OpensslCipher}, it is
+ * registered by {@link CryptoStreamProvider}.
+ * <p/>
+ * As with other CTR ciphers, doFinal resets the cipher to the IV it was
+ * initialized with, the key schedule is kept.
+ */
+public final class OpensslAesCtrCipherSpi extends CipherSpi {
+  private static final int BLOCK_SIZE =
+      CipherSuite.AES_CTR_NOPADDING.getAlgorithmBlockSize();
+
+  private final OpensslCipher cipher;
+  private byte[] iv;
+  private boolean initialized = false;
+
+  public OpensslAesCtrCipherSpi() throws GeneralSecurityException {
+    String loadingFailureReason = OpensslCipher.getLoadingFailureReason();
+    if (loadingFailureReason != null) {
+      throw new NoSuchAlgorithmException(loadingFailureReason);
+    }
+    cipher = OpensslCipher.getInstance(
+        CipherSuite.AES_CTR_NOPADDING.getName());
+  }
+
+  @Override
+  protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+    if (!"CTR".equalsIgnoreCase(mode)) {
+      throw new NoSuchAlgorithmException("Doesn't support mode: " + mode);
+    }
+  }
+
+  @Override
+  protected void engineSetPadding(String padding)
+      throws NoSuchPaddingException {
+    if (!"NoPadding".equalsIgnoreCase(padding)) {
+      throw new NoSuchPaddingException("Doesn't support padding: " + padding);
+    }
+  }
+
+  @Override
+  protected int engineGetBlockSize() {
+    return BLOCK_SIZE;
+  }
+
+  @Override
+  protected int engineGetOutputSize(int inputLen) {
+    return inputLen;
+  }
+
+  @Override
+  protected byte[] engineGetIV() {
+    return iv == null ? null : iv.clone();
+  }
+
+  @Override
+  protected AlgorithmParameters engineGetParameters() {
+    if (iv == null) {
+      return null;
+    }
+    try {
+      AlgorithmParameters params = AlgorithmParameters.getInstance("AES");
+      params.init(new IvParameterSpec(iv));
+      return params;
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  protected int engineGetKeySize(Key key) throws InvalidKeyException {
+    return checkKey(key).length * 8;
+  }
+
+  /** Encryption without an IV uses a random one, see {@link #engineGetIV()}. */
+  @Override
+  protected void engineInit(int opmode, Key key, SecureRandom random)
+      throws InvalidKeyException {
+    if (opmode == Cipher.DECRYPT_MODE || opmode == Cipher.UNWRAP_MODE) {
+      throw new InvalidKeyException("An IV is required for decryption.");
+    }
+    final byte[] randomIV = new byte[BLOCK_SIZE];
+    (random != null ? random : new SecureRandom()).nextBytes(randomIV);
+    init(opmode, key, randomIV);
+  }
+
+  @Override
+  protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params,
+      SecureRandom random) throws InvalidKeyException,
+      InvalidAlgorithmParameterException {
+    if (params == null) {
+      engineInit(opmode, key, random);
+      return;
+    }
+    if (!(params instanceof IvParameterSpec)) {
+      throw new InvalidAlgorithmParameterException(
+          "IvParameterSpec is required.");
+    }
+    final byte[] paramIV = ((IvParameterSpec) params).getIV();
+    if (paramIV.length != BLOCK_SIZE) {
+      throw new InvalidAlgorithmParameterException(
+          "IV must be " + BLOCK_SIZE + " bytes.");
+    }
+    init(opmode, key, paramIV);
+  }
+
+  @Override
+  protected void engineInit(int opmode, Key key, AlgorithmParameters params,
+      SecureRandom random) throws InvalidKeyException,
+      InvalidAlgorithmParameterException {
+    IvParameterSpec spec = null;
+    if (params != null) {
+      try {
+        spec = params.getParameterSpec(IvParameterSpec.class);
+      } catch (InvalidParameterSpecException e) {
+        throw new InvalidAlgorithmParameterException(e);
+      }
+    }
+    engineInit(opmode, key, spec, random);
+  }
+
+  private void init(int opmode, Key key, byte[] iv)
+      throws InvalidKeyException {
+    final int mode = (opmode == Cipher.ENCRYPT_MODE ||
+        opmode == Cipher.WRAP_MODE) ? OpensslCipher.ENCRYPT_MODE :
+        OpensslCipher.DECRYPT_MODE;
+    initialized = false;
+    cipher.init(mode, checkKey(key), iv);
+    this.iv = iv.clone();
+    initialized = true;
+  }
+
+  private static byte[] checkKey(Key key) throws InvalidKeyException {
+    if (key == null || !"AES".equalsIgnoreCase(key.getAlgorithm())) {
+      throw new InvalidKeyException("An AES key is required.");
+    }
+    final byte[] encoded = key.getEncoded();
+    if (encoded == null || (encoded.length != 16 && encoded.length != 32)) {
+      throw new InvalidKeyException("Only AES-128 and AES-256 are supported.");
+    }
+    return encoded;
+  }
+
+  private void checkState() {
+    if (!initialized) {
+      throw new IllegalStateException("Cipher not initialized.");
+    }
+  }
+
+  @Override
+  protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+    final byte[] output = new byte[inputLen];
+    try {
+      engineUpdate(input, inputOffset, inputLen, output, 0);
+    } catch (ShortBufferException e) {
+      throw new IllegalStateException(e);
+    }
+    return output;
+  }
+
+  @Override
+  protected int engineUpdate(byte[] input, int inputOffset, int inputLen,
+      byte[] output, int outputOffset) throws ShortBufferException {
+    checkState();
+    if (inputLen == 0) {
+      return 0;
+    }
+    if (output.length - outputOffset < inputLen) {
+      throw new ShortBufferException("Output buffer is not sufficient.");
+    }
+    return cipher.update(input, inputOffset, inputLen, output, outputOffset);
+  }
+
+  /** Direct buffers are processed by OpenSSL without copies. */
+  @Override
+  protected int engineUpdate(ByteBuffer input, ByteBuffer output)
+      throws ShortBufferException {
+    if (!input.isDirect() || !output.isDirect()) {
+      return super.engineUpdate(input, output);
+    }
+    checkState();
+    if (output.remaining() < input.remaining()) {
+      throw new ShortBufferException("Output buffer is not sufficient.");
+    }
+    return cipher.update(input, output);
+  }
+
+  @Override
+  protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen) {
+    final byte[] output = engineUpdate(input, inputOffset, inputLen);
+    reset();
+    return output;
+  }
+
+  @Override
+  protected int engineDoFinal(byte[] input, int inputOffset, int inputLen,
+      byte[] output, int outputOffset) throws ShortBufferException {
+    final int n = engineUpdate(input, inputOffset, inputLen, output,
+        outputOffset);
+    reset();
+    return n;
+  }
+
+  @Override
+  protected int engineDoFinal(ByteBuffer input, ByteBuffer output)
+      throws ShortBufferException, IllegalBlockSizeException,
+      BadPaddingException {
+    final int n = engineUpdate(input, output);
+    reset();
+    return n;
+  }
+
+  /** Back to the initial IV, CTR mode has nothing to finalize. */
+  private void reset() {
+    checkState();
+    cipher.initIV(iv);
+  }
+}
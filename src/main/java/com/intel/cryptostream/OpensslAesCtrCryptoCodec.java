@@ -21,6 +21,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Random;
 
@@ -80,22 +81,105 @@ public class OpensslAesCtrCryptoCodec extends AesCtrCryptoCodec {
     random.nextBytes(bytes);
   }
   
-  private static class OpensslAesCtrCipher implements Encryptor, Decryptor {
+  /**
+   * The batch is processed in a single native call if the buffers are
+   * direct and the encryptors were created by this codec.
+   */
+  @Override
+  public void encryptBatch(Encryptor[] encryptors, ByteBuffer[] inBuffers,
+      ByteBuffer[] outBuffers) throws IOException {
+    checkBatch(encryptors, inBuffers, outBuffers);
+    if (!processBatch(encryptors, inBuffers, outBuffers)) {
+      super.encryptBatch(encryptors, inBuffers, outBuffers);
+    }
+  }
+
+  @Override
+  public void decryptBatch(Decryptor[] decryptors, ByteBuffer[] inBuffers,
+      ByteBuffer[] outBuffers) throws IOException {
+    checkBatch(decryptors, inBuffers, outBuffers);
+    if (!processBatch(decryptors, inBuffers, outBuffers)) {
+      super.decryptBatch(decryptors, inBuffers, outBuffers);
+    }
+  }
+
+  /** @return false if the batch can't be processed natively. */
+  private static boolean processBatch(Object[] ciphers, ByteBuffer[] inBuffers,
+      ByteBuffer[] outBuffers) throws IOException {
+    final int count = ciphers.length;
+    final OpensslAesCtrCipher[] aesCiphers = new OpensslAesCtrCipher[count];
+    final OpensslCipher[] opensslCiphers = new OpensslCipher[count];
+    final int[] inputSizes = new int[count];
+    for (int i = 0; i < count; i++) {
+      if (!(ciphers[i] instanceof OpensslAesCtrCipher) ||
+          !inBuffers[i].isDirect() || !outBuffers[i].isDirect()) {
+        return false;
+      }
+      aesCiphers[i] = (OpensslAesCtrCipher) ciphers[i];
+      opensslCiphers[i] = aesCiphers[i].cipher;
+      inputSizes[i] = inBuffers[i].remaining();
+    }
+    try {
+      final int[] n =
+          OpensslCipher.updateBatch(opensslCiphers, inBuffers, outBuffers);
+      for (int i = 0; i < count; i++) {
+        aesCiphers[i].afterUpdate(inputSizes[i], n[i], outBuffers[i]);
+      }
+    } catch (Exception e) {
+      // The native contexts may be cleaned up on errors.
+      for (OpensslAesCtrCipher cipher : aesCiphers) {
+        cipher.key = null;
+      }
+      throw new IOException(e);
+    }
+    return true;
+  }
+
+  /**
+   * Closing the cipher frees its native context, instead of waiting for
+   * finalization.
+   */
+  private static class OpensslAesCtrCipher implements Encryptor, Decryptor,
+      Closeable {
     private final OpensslCipher cipher;
     private final int mode;
     private boolean contextReset = false;
+    /** The key in the native context, null if the context has no key. */
+    private byte[] key;
+    private final byte[] initIV = new byte[SUITE.getAlgorithmBlockSize()];
+    private final byte[] iv = new byte[SUITE.getAlgorithmBlockSize()];
     
     public OpensslAesCtrCipher(int mode) throws GeneralSecurityException {
       this.mode = mode;
       cipher = OpensslCipher.getInstance(SUITE.getName());
     }
 
+    /**
+     * If the key is the one already in the native context, e.g. a pooled
+     * cipher reused by the same stream, only the IV is re-initialized.
+     */
     @Override
     public void init(byte[] key, byte[] iv) throws IOException {
       Preconditions.checkNotNull(key);
       Preconditions.checkNotNull(iv);
+      Preconditions.checkArgument(iv.length == initIV.length);
       contextReset = false;
-      cipher.init(mode, key, iv);
+      System.arraycopy(iv, 0, initIV, 0, initIV.length);
+      if (this.key != null && MessageDigest.isEqual(this.key, key)) {
+        cipher.initIV(iv);
+      } else {
+        this.key = null;
+        cipher.init(mode, key, iv);
+        this.key = key.clone();
+      }
+    }
+    
+    @Override
+    public void reset(long counter) throws IOException {
+      Preconditions.checkState(key != null, "Cipher is not initialized.");
+      contextReset = false;
+      addCounter(initIV, counter, iv);
+      cipher.initIV(iv);
     }
     
     /**
@@ -124,23 +208,84 @@ public class OpensslAesCtrCryptoCodec extends AesCtrCryptoCodec {
         int inputSize = inBuffer.remaining();
         // OpensslCipher#update will maintain crypto context.
         int n = cipher.update(inBuffer, outBuffer);
-        if (n < inputSize) {
-          /**
-           * Typically code will not get here. OpensslCipher#update will 
-           * consume all input data and put result in outBuffer. 
-           * OpensslCipher#doFinal will reset the crypto context.
-           */
+        afterUpdate(inputSize, n, outBuffer);
+      } catch (Exception e) {
+        // The native context is cleaned up on errors.
+        key = null;
+        throw new IOException(e);
+      }
+    }
+    
+    private void afterUpdate(int inputSize, int n, ByteBuffer outBuffer)
+        throws Exception {
+      if (n < inputSize) {
+        /**
+         * Typically code will not get here. OpensslCipher#update will 
+         * consume all input data and put result in outBuffer. 
+         * OpensslCipher#doFinal will reset the crypto context.
+         */
+        contextReset = true;
+        cipher.doFinal(outBuffer);
+      }
+    }
+    
+    @Override
+    public void encrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      process(input, inputOffset, len, output, outputOffset);
+    }
+    
+    @Override
+    public void decrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      process(input, inputOffset, len, output, outputOffset);
+    }
+    
+    private void process(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      try {
+        int n = cipher.update(input, inputOffset, len, output, outputOffset);
+        if (n < len) {
+          // As above, typically code will not get here.
           contextReset = true;
-          cipher.doFinal(outBuffer);
+          ByteBuffer tail = ByteBuffer.allocateDirect(len - n);
+          cipher.doFinal(tail);
+          tail.flip();
+          tail.get(output, outputOffset + n, tail.remaining());
         }
       } catch (Exception e) {
+        // The native context is cleaned up on errors.
+        key = null;
         throw new IOException(e);
       }
     }
     
+    @Override
+    public boolean isInPlaceSupported() {
+      return true;
+    }
+    
+    /** The cipher is given two views of the buffer, it reads before writing. */
+    @Override
+    public void encrypt(ByteBuffer buffer) throws IOException {
+      process(buffer, buffer.duplicate());
+      buffer.position(buffer.limit());
+    }
+    
+    @Override
+    public void decrypt(ByteBuffer buffer) throws IOException {
+      process(buffer, buffer.duplicate());
+      buffer.position(buffer.limit());
+    }
+    
     @Override
     public boolean isContextReset() {
       return contextReset;
     }
+
+    @Override
+    public void close() {
+      cipher.clean();
+    }
   }
 }
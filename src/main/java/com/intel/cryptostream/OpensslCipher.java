@@ -73,6 +73,9 @@ public final class OpensslCipher {
   private long context = 0;
   private final int alg;
   private final int padding;
+  /** IV of the last {@link #initIV(byte[])}, applied by the next update. */
+  private byte[] pendingIV;
+  private boolean ivPending = false;
   
   private static final String loadingFailureReason;
 
@@ -80,6 +83,7 @@ public final class OpensslCipher {
     String loadingFailure = null;
     try {
       if (NativeCodeLoader.isNativeCodeLoaded()) {
+        checkAbiVersion();
         OpensslCipherNative.initIDs();
       }
     } catch (Throwable t) {
@@ -90,6 +94,24 @@ public final class OpensslCipher {
     }
   }
   
+  /**
+   * A library built from older sources still links by name, but with other
+   * arguments, so it is refused before any other native call.
+   */
+  private static void checkAbiVersion() {
+    int version;
+    try {
+      version = OpensslCipherNative.getAbiVersion();
+    } catch (UnsatisfiedLinkError e) {
+      version = 0;
+    }
+    if (version != OpensslCipherNative.ABI_VERSION) {
+      throw new UnsatisfiedLinkError("The native library has ABI version " +
+          version + " instead of " + OpensslCipherNative.ABI_VERSION +
+          ", it must be rebuilt.");
+    }
+  }
+  
   public static String getLoadingFailureReason() {
     return loadingFailureReason;
   }
@@ -169,9 +191,39 @@ public final class OpensslCipher {
    * @param iv crypto iv
    */
   public void init(int mode, byte[] key, byte[] iv) {
+    ivPending = false;
     context = OpensslCipherNative.init(context, mode, alg, padding, key, iv);
   }
   
+  /**
+   * Re-initialize this cipher with an IV, keeping the mode and the key of
+   * the last {@link #init(int, byte[], byte[])}. The key schedule is not
+   * computed again.
+   * <p/>
+   * 
+   * The IV is copied and applied by the next update within the same native
+   * call, so a re-initialization followed by an update costs one JNI
+   * transition.
+   * 
+   * @param iv crypto iv
+   */
+  public void initIV(byte[] iv) {
+    checkState();
+    if (pendingIV == null || pendingIV.length != iv.length) {
+      pendingIV = new byte[iv.length];
+    }
+    System.arraycopy(iv, 0, pendingIV, 0, iv.length);
+    ivPending = true;
+  }
+  
+  /** Apply a pending IV by itself, for the native calls not taking one. */
+  private void flushIV() {
+    if (ivPending) {
+      OpensslCipherNative.initIV(context, pendingIV);
+      ivPending = false;
+    }
+  }
+  
   /**
    * Continues a multiple-part encryption or decryption operation. The data
    * is encrypted or decrypted, depending on how this cipher was initialized.
@@ -200,12 +252,94 @@ public final class OpensslCipher {
   public int update(ByteBuffer input, ByteBuffer output) 
       throws ShortBufferException {
     checkState();
-    Preconditions.checkArgument(input.isDirect() && output.isDirect(), 
-        "Direct buffers are required.");
-    int len = OpensslCipherNative.update(context, input, input.position(), input.remaining(),
-        output, output.position(), output.remaining());
+    final int inputPosition = input.position();
+    final int outputPosition = output.position();
+    int len = OpensslCipherNative.update(context, ivPending ? pendingIV : null,
+        CryptoStreamUtils.getAddress(input) + inputPosition,
+        input.limit() - inputPosition,
+        CryptoStreamUtils.getAddress(output) + outputPosition,
+        output.limit() - outputPosition);
+    ivPending = false;
     input.position(input.limit());
-    output.position(output.position() + len);
+    output.position(outputPosition + len);
+    return len;
+  }
+  
+  /**
+   * Continues the multiple-part operations of several ciphers in a single
+   * native call: input[i] is processed by ciphers[i] into output[i], in
+   * order, as {@link #update(ByteBuffer, ByteBuffer)} does. A cipher may
+   * appear more than once. The pending IVs of {@link #initIV(byte[])} are
+   * applied in the same call, so this saves the JNI overhead per buffer when
+   * processing many small buffers.
+   * 
+   * @param ciphers the ciphers
+   * @param inputs the direct input ByteBuffers
+   * @param outputs the direct output ByteBuffers
+   * @return int[] number of bytes stored in each output
+   * @throws ShortBufferException if there is insufficient space in an
+   * output buffer, the buffers before it are processed but their positions
+   * are unchanged
+   */
+  public static int[] updateBatch(OpensslCipher[] ciphers, 
+      ByteBuffer[] inputs, ByteBuffer[] outputs) throws ShortBufferException {
+    final int count = ciphers.length;
+    Preconditions.checkArgument(inputs.length == count && 
+        outputs.length == count, "Batch arrays must have the same length.");
+    final long[] contexts = new long[count];
+    final byte[][] ivs = new byte[count][];
+    final long[] inputAddresses = new long[count];
+    final int[] inputLengths = new int[count];
+    final long[] outputAddresses = new long[count];
+    final int[] outputLengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      ciphers[i].checkState();
+      contexts[i] = ciphers[i].context;
+      if (ciphers[i].ivPending) {
+        // Applied before the first update of the cipher only.
+        ivs[i] = ciphers[i].pendingIV;
+        ciphers[i].ivPending = false;
+      }
+      inputAddresses[i] = CryptoStreamUtils.getAddress(inputs[i]) + 
+          inputs[i].position();
+      inputLengths[i] = inputs[i].remaining();
+      outputAddresses[i] = CryptoStreamUtils.getAddress(outputs[i]) + 
+          outputs[i].position();
+      outputLengths[i] = outputs[i].remaining();
+    }
+    OpensslCipherNative.updateBatch(contexts, ivs, inputAddresses, 
+        inputLengths, outputAddresses, outputLengths, count);
+    for (int i = 0; i < count; i++) {
+      inputs[i].position(inputs[i].limit());
+      outputs[i].position(outputs[i].position() + outputLengths[i]);
+    }
+    return outputLengths;
+  }
+  
+  /**
+   * Continues a multiple-part encryption or decryption operation on byte
+   * arrays, without copying them into direct buffers. The input and the
+   * output may be the same array.
+   * 
+   * @param input the input array
+   * @param inputOffset the offset in input where the input starts
+   * @param inputLength the input length
+   * @param output the output array
+   * @param outputOffset the offset in output where the result is stored
+   * @return int number of bytes stored in <code>output</code>
+   * @throws ShortBufferException if there is insufficient space in the
+   * output array
+   */
+  public int update(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws ShortBufferException {
+    checkState();
+    Preconditions.checkPositionIndexes(inputOffset, inputOffset + inputLength,
+        input.length);
+    Preconditions.checkPositionIndex(outputOffset, output.length);
+    int len = OpensslCipherNative.updateByteArray(context,
+        ivPending ? pendingIV : null, input, inputOffset, inputLength,
+        output, outputOffset, output.length - outputOffset);
+    ivPending = false;
     return len;
   }
   
@@ -240,9 +374,13 @@ public final class OpensslCipher {
   public int doFinal(ByteBuffer output) throws ShortBufferException, 
       IllegalBlockSizeException, BadPaddingException {
     checkState();
-    Preconditions.checkArgument(output.isDirect(), "Direct buffer is required.");
-    int len = OpensslCipherNative.doFinal(context, output, output.position(), output.remaining());
-    output.position(output.position() + len);
+    final int outputPosition = output.position();
+    final long outputAddress = CryptoStreamUtils.getAddress(output) + 
+        outputPosition;
+    flushIV();
+    int len = OpensslCipherNative.doFinal(context, outputAddress, 
+        output.limit() - outputPosition);
+    output.position(outputPosition + len);
     return len;
   }
   
@@ -251,6 +389,7 @@ public final class OpensslCipher {
     if (context != 0) {
       OpensslCipherNative.clean(context);
       context = 0;
+      ivPending = false;
     }
   }
 
@@ -17,9 +17,15 @@
  */
 package com.intel.cryptostream;
 
-import java.nio.ByteBuffer;
-
 public class OpensslCipherNative {
+  /**
+   * Version of the native methods below, returned by the library built
+   * from them. Bump it whenever a native signature or its meaning changes.
+   */
+  public static final int ABI_VERSION = 1;
+  
+  public native static int getAbiVersion();
+  
   public native static void initIDs();
   
   public native static long initContext(int alg, int padding);
@@ -27,10 +33,30 @@ public class OpensslCipherNative {
   public native static long init(long context, int mode, int alg, int padding, 
       byte[] key, byte[] iv);
   
-  public native static int update(long context, ByteBuffer input, int inputOffset, 
-      int inputLength, ByteBuffer output, int outputOffset, int maxOutputLength);
+  public native static void initIV(long context, byte[] iv);
+  
+  /**
+   * The IV is re-initialized first unless iv is null. The buffers are
+   * given by native address, see {@link CryptoStreamUtils#getAddress}, the
+   * caller must keep them reachable until the call returns.
+   */
+  public native static int update(long context, byte[] iv, long inputAddress,
+      int inputLength, long outputAddress, int maxOutputLength);
+  
+  /**
+   * The IV of contexts[i] is re-initialized before its update unless ivs[i]
+   * is null.
+   */
+  public native static void updateBatch(long[] contexts, byte[][] ivs,
+      long[] inputAddresses, int[] inputLengths, long[] outputAddresses, 
+      int[] outputLengths, int count);
+  
+  /** The IV is re-initialized first unless iv is null. */
+  public native static int updateByteArray(long context, byte[] iv, 
+      byte[] input, int inputOffset, int inputLength, byte[] output, 
+      int outputOffset, int maxOutputLength);
   
-  public native static int doFinal(long context, ByteBuffer output, int offset, 
+  public native static int doFinal(long context, long outputAddress, 
       int maxOutputLength);
   
   public native static void clean(long context);
@@ -0,0 +1,367 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * ParallelCtrEngine encrypts and decrypts large buffers on several cores.
+ * In CTR mode each block only depends on the initial IV and its counter, so
+ * the buffer is split into chunks of
+ * {@link ConfigurationKeys#CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_KEY} bytes and
+ * each chunk is processed by its own encryptor or decryptor, initialized
+ * with the IV of the chunk's stream position. The calling thread processes
+ * the last chunk and returns when all chunks are done.
+ * <p/>
+ * The result is the same as {@link CryptoOutputStream} and
+ * {@link CryptoInputStream} with the same key, IV and stream offset. The
+ * engine is thread-safe, encryptors and decryptors are borrowed from
+ * the codec, direct buffers from the {@link DirectBufferPool}.
+ */
+public class ParallelCtrEngine {
+  private final CryptoCodec codec;
+  private final ExecutorService executor;
+  private final int chunkSize;
+  private final int bufferSize;
+
+
+  /** The shared executor, created on first use. */
+  private static class DefaultExecutor {
+    static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+        CryptoStreamUtils.getParallelThreads(), new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("cryptostream-ctr-%d").build());
+  }
+
+  /**
+   * @param executor runs the chunks, it is not shut down by the engine.
+   * @param chunkSize the bytes processed by one task, floored to a multiple
+   * of the block size.
+   * @param bufferSize size of the direct buffers used when the data is not
+   * in direct buffers.
+   */
+  public ParallelCtrEngine(CryptoCodec codec, ExecutorService executor,
+      int chunkSize, int bufferSize) {
+    Preconditions.checkNotNull(executor);
+    CryptoStreamUtils.checkCodec(codec);
+    this.codec = codec;
+    this.executor = executor;
+    this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
+    this.chunkSize = CryptoStreamUtils.checkBufferSize(codec, chunkSize);
+  }
+
+  public ParallelCtrEngine(CryptoCodec codec) {
+    this(codec, DefaultExecutor.INSTANCE,
+        CryptoStreamUtils.getParallelChunkSize(),
+        CryptoStreamUtils.getBufferSize());
+  }
+
+  /** @return the bytes processed by one task. */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Encrypt all bytes remaining in in, the cipher text is put into out.
+   * @param streamOffset the stream position of the first byte of in.
+   */
+  public void encrypt(byte[] key, byte[] iv, long streamOffset, ByteBuffer in,
+      ByteBuffer out) throws IOException {
+    process(true, key, iv, streamOffset, in, out);
+  }
+
+  /**
+   * Decrypt all bytes remaining in in, the plain text is put into out.
+   * @param streamOffset the stream position of the first byte of in.
+   */
+  public void decrypt(byte[] key, byte[] iv, long streamOffset, ByteBuffer in,
+      ByteBuffer out) throws IOException {
+    process(false, key, iv, streamOffset, in, out);
+  }
+
+  /** Encrypt len bytes of in, in and out may be the same array. */
+  public void encrypt(byte[] key, byte[] iv, long streamOffset, byte[] in,
+      int inOffset, int len, byte[] out, int outOffset) throws IOException {
+    process(true, key, iv, streamOffset, ByteBuffer.wrap(in, inOffset, len),
+        ByteBuffer.wrap(out, outOffset, len));
+  }
+
+  /** Decrypt len bytes of in, in and out may be the same array. */
+  public void decrypt(byte[] key, byte[] iv, long streamOffset, byte[] in,
+      int inOffset, int len, byte[] out, int outOffset) throws IOException {
+    process(false, key, iv, streamOffset, ByteBuffer.wrap(in, inOffset, len),
+        ByteBuffer.wrap(out, outOffset, len));
+  }
+
+  private void process(final boolean encrypt, final byte[] key,
+      final byte[] iv, final long streamOffset, ByteBuffer in, ByteBuffer out)
+      throws IOException {
+    Preconditions.checkArgument(streamOffset >= 0, "Negative stream offset.");
+    final int len = in.remaining();
+    Preconditions.checkArgument(out.remaining() >= len,
+        "Output buffer too small.");
+
+    /*
+     * Chunk boundaries are aligned to chunkSize in the stream, so only the
+     * first chunk can start in the middle of a block.
+     */
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    Throwable last = null;
+    try {
+      int off = 0;
+      while (off < len) {
+        final long pos = streamOffset + off;
+        final int n = (int) Math.min(len - off, chunkSize - pos % chunkSize);
+        final ByteBuffer chunkIn = slice(in, off, n);
+        final ByteBuffer chunkOut = slice(out, off, n);
+        off += n;
+        if (off == len) {
+          processChunk(encrypt, key, iv, pos, chunkIn, chunkOut);
+        } else {
+          futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              processChunk(encrypt, key, iv, pos, chunkIn, chunkOut);
+              return null;
+            }
+          }));
+        }
+      }
+    } catch (IOException e) {
+      last = e;
+    } catch (RuntimeException e) {
+      last = e;
+    }
+
+    /*
+     * The chunks write into out, so every submitted one must have finished
+     * before returning, even when another one failed.
+     */
+    Throwable failure = await(futures);
+    if (failure == null) {
+      failure = last;
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new IOException(failure);
+    }
+
+    in.position(in.position() + len);
+    out.position(out.position() + len);
+  }
+
+  /**
+   * Wait for all futures, keeping the interrupt status of the thread.
+   * @return the failure of the first future that failed, or null.
+   */
+  private static Throwable await(List<Future<Void>> futures) {
+    Throwable failure = null;
+    boolean interrupted = false;
+    for (Future<Void> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return failure;
+  }
+
+  /** @return a view of n bytes of buf starting at buf.position() + off. */
+  private static ByteBuffer slice(ByteBuffer buf, int off, int n) {
+    final ByteBuffer dup = buf.duplicate();
+    dup.position(buf.position() + off);
+    dup.limit(buf.position() + off + n);
+    return dup;
+  }
+
+  private void processChunk(boolean encrypt, byte[] key, byte[] initIV,
+      long position, ByteBuffer in, ByteBuffer out) throws IOException {
+    Encryptor encryptor = null;
+    Decryptor decryptor = null;
+    try {
+      if (encrypt) {
+        encryptor = getEncryptor();
+        encryptor.init(key, initIV);
+      } else {
+        decryptor = getDecryptor();
+        decryptor.init(key, initIV);
+      }
+      updateCipher(encryptor, decryptor, position);
+
+      final byte padding = getPadding(position);
+      if (padding == 0 && in.isDirect() && out.isDirect()) {
+        // The cipher can work on the caller's buffers directly.
+        doCipher(encryptor, decryptor, in, out);
+      } else {
+        processBuffered(encryptor, decryptor, position, in, out);
+      }
+    } finally {
+      returnEncryptor(encryptor);
+      returnDecryptor(decryptor);
+    }
+  }
+
+  /**
+   * Process the chunk through pooled direct buffers, padding is put into
+   * the input buffer before the data. A cipher working in place needs a
+   * single buffer.
+   */
+  private void processBuffered(Encryptor encryptor, Decryptor decryptor,
+      long position, ByteBuffer in, ByteBuffer out) throws IOException {
+    final boolean inPlace = encryptor != null ?
+        encryptor.isInPlaceSupported() : decryptor.isInPlaceSupported();
+    ByteBuffer inBuffer = getBuffer();
+    ByteBuffer outBuffer = inPlace ? inBuffer.duplicate() : getBuffer();
+    try {
+      byte padding = getPadding(position);
+      while (in.hasRemaining()) {
+        inBuffer.clear();
+        inBuffer.position(padding);
+        final int n = Math.min(in.remaining(), inBuffer.remaining());
+        final int limit = in.limit();
+        in.limit(in.position() + n);
+        inBuffer.put(in);
+        in.limit(limit);
+
+        inBuffer.flip();
+        outBuffer.clear();
+        doCipher(encryptor, decryptor, inBuffer, outBuffer);
+        outBuffer.flip();
+        outBuffer.position(padding);
+        out.put(outBuffer);
+        position += n;
+
+        if (isContextReset(encryptor, decryptor)) {
+          /*
+           * Some implementations can't maintain context so a re-init is
+           * necessary after each call.
+           */
+          updateCipher(encryptor, decryptor, position);
+          padding = getPadding(position);
+        } else {
+          padding = 0;
+        }
+      }
+    } finally {
+      returnBuffer(inBuffer);
+      if (!inPlace) {
+        returnBuffer(outBuffer);
+      }
+    }
+  }
+
+  private static void doCipher(Encryptor encryptor, Decryptor decryptor,
+      ByteBuffer in, ByteBuffer out) throws IOException {
+    if (encryptor != null) {
+      encryptor.encrypt(in, out);
+    } else {
+      decryptor.decrypt(in, out);
+    }
+  }
+
+  private static boolean isContextReset(Encryptor encryptor,
+      Decryptor decryptor) {
+    return encryptor != null ? encryptor.isContextReset() :
+        decryptor.isContextReset();
+  }
+
+  private long getCounter(long position) {
+    return position / codec.getCipherSuite().getAlgorithmBlockSize();
+  }
+
+  private byte getPadding(long position) {
+    return (byte)(position % codec.getCipherSuite().getAlgorithmBlockSize());
+  }
+
+  /**
+   * Reset the encryptor or decryptor to the counter of position, keeping
+   * its key.
+   */
+  private void updateCipher(Encryptor encryptor, Decryptor decryptor,
+      long position) throws IOException {
+    if (encryptor != null) {
+      encryptor.reset(getCounter(position));
+    } else {
+      decryptor.reset(getCounter(position));
+    }
+  }
+
+  /** Get direct buffer from the shared pool */
+  private ByteBuffer getBuffer() {
+    return DirectBufferPool.getInstance().getBuffer(bufferSize);
+  }
+
+  /** Return direct buffer to the shared pool */
+  private void returnBuffer(ByteBuffer buf) {
+    DirectBufferPool.getInstance().returnBuffer(buf);
+  }
+
+  /** Borrow encryptor from the codec pool */
+  private Encryptor getEncryptor() throws IOException {
+    try {
+      return codec.borrowEncryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** Return encryptor to the codec pool */
+  private void returnEncryptor(Encryptor encryptor) {
+    codec.returnEncryptor(encryptor);
+  }
+
+  /** Borrow decryptor from the codec pool */
+  private Decryptor getDecryptor() throws IOException {
+    try {
+      return codec.borrowDecryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** Return decryptor to the codec pool */
+  private void returnDecryptor(Decryptor decryptor) {
+    codec.returnDecryptor(decryptor);
+  }
+}
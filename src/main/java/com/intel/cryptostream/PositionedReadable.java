@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream that permits positional reading.
+ */
+public interface PositionedReadable {
+  /**
+   * Read up to <code>buf.remaining()</code> bytes from the given position 
+   * of the stream into buf. It does not change the current offset of the 
+   * stream and is thread-safe.
+   * <p/>
+   * Upon return, buf.position() will be advanced by the number of bytes 
+   * read. buf.limit() is not modified.
+   * 
+   * @param position position in the stream to read from.
+   * @param buf the buffer into which the data is read.
+   * @return int the number of bytes read, or -1 if position is at or beyond
+   * the end of the stream.
+   * @throws IOException
+   */
+  public int read(long position, ByteBuffer buf) throws IOException;
+}
@@ -0,0 +1,492 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * ReadAheadCryptoInputStream decrypts a sequential stream while the next
+ * cipher text is fetched, for underlying streams with a high latency per
+ * read, e.g. remote file systems. It is not thread-safe. With
+ * {@link CryptoInputStream} the CPU idles during the reads of the underlying
+ * stream and the underlying stream idles during the decryption.
+ * <p/>
+ * A background reader fills up to
+ * {@link ConfigurationKeys#CRYPTOSTREAM_READAHEAD_DEPTH_KEY} direct buffers
+ * of {@link ConfigurationKeys#CRYPTOSTREAM_READAHEAD_BUFFER_SIZE_KEY} bytes
+ * ahead of the caller, and each buffer is decrypted in place by its own task
+ * as soon as it is filled. The reads only copy out plain text. The memory of
+ * a stream is bounded by depth buffers, twice that if the decryptor can't
+ * work in place. The reader doesn't hold a thread while all the buffers are
+ * in flight, it is resumed by the caller freeing a buffer. With
+ * {@link ConfigurationKeys#CRYPTOSTREAM_PARALLEL_READ_KEY}, buffers larger
+ * than a chunk of the {@link ParallelCtrEngine} are decrypted on several
+ * cores.
+ * <p/>
+ * The stream format is the same as {@link CryptoInputStream}, errors of the
+ * underlying stream are thrown by the read that reaches them.
+ */
+public class ReadAheadCryptoInputStream extends InputStream implements
+    ReadableByteChannel {
+  private static final ExecutorService executor =
+      Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("cryptostream-readahead-%d").build());
+
+  private final byte[] oneByteBuf = new byte[1];
+  private final InputStream in;
+  private final CryptoCodec codec;
+  private final int bufferSize;
+  private final int depth;
+  private final boolean inPlace;
+  /** Decrypts the buffers larger than a chunk, null if disabled. */
+  private final ParallelCtrEngine parallelEngine;
+  private final byte[] key;
+  private final byte[] initIV;
+
+  /** Decrypted chunks, and the chunk that ends the stream, in order. */
+  private final BlockingQueue<Chunk> ready = new LinkedBlockingQueue<Chunk>();
+
+  /** The chunk the reads copy from, null before the first read. */
+  private Chunk current;
+
+  /** Staging array of the reader if in is not a channel. */
+  private byte[] readBuf;
+
+  /** Stream offset of the next byte to read, owned by the reader. */
+  private long readOffset;
+
+  /** Guards {@link #inFlight}, {@link #reading}, {@link #ended}. */
+  private final Object lock = new Object();
+  /** Chunks taken from the pool and not freed yet. */
+  private int inFlight;
+  /** Whether a read task is scheduled. */
+  private boolean reading;
+  /** Whether the reader reached the end of the stream or an error. */
+  private boolean ended;
+  private volatile boolean closed;
+
+  /** Cipher text of the underlying stream, decrypted by a task. */
+  private static class Chunk {
+    /** Stream offset of the first byte. */
+    final long offset;
+    final byte padding;
+    final ByteBuffer buffer;
+    /** The plain text from position to limit, once decrypted. */
+    ByteBuffer out;
+    /** Whether the underlying stream ends after this chunk. */
+    boolean last;
+    IOException error;
+    Future<?> decryption;
+
+    Chunk(long offset, byte padding, ByteBuffer buffer) {
+      this.offset = offset;
+      this.padding = padding;
+      this.buffer = buffer;
+    }
+  }
+
+  public ReadAheadCryptoInputStream(InputStream in, CryptoCodec codec,
+      byte[] key, byte[] iv) throws IOException {
+    this(in, codec, CryptoStreamUtils.getReadAheadBufferSize(),
+        CryptoStreamUtils.getReadAheadDepth(), key, iv, 0);
+  }
+
+  public ReadAheadCryptoInputStream(InputStream in, CryptoCodec codec,
+      int bufferSize, int depth, byte[] key, byte[] iv) throws IOException {
+    this(in, codec, bufferSize, depth, key, iv, 0);
+  }
+
+  public ReadAheadCryptoInputStream(InputStream in, CryptoCodec codec,
+      int bufferSize, int depth, byte[] key, byte[] iv, long streamOffset)
+      throws IOException {
+    Preconditions.checkNotNull(in);
+    Preconditions.checkArgument(depth > 0, "Read-ahead depth must be " +
+        "positive.");
+    Preconditions.checkArgument(streamOffset >= 0, "Negative stream offset.");
+    CryptoStreamUtils.checkCodec(codec);
+    this.bufferSize = CryptoStreamUtils.checkBufferSize(codec, bufferSize);
+    this.depth = depth;
+    this.in = in;
+    this.codec = codec;
+    this.key = key.clone();
+    this.initIV = iv.clone();
+    this.readOffset = streamOffset;
+    final Decryptor decryptor;
+    try {
+      decryptor = codec.borrowDecryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    inPlace = decryptor.isInPlaceSupported();
+    codec.returnDecryptor(decryptor);
+    parallelEngine = CryptoStreamUtils.isParallelReadEnabled() ?
+        new ParallelCtrEngine(codec) : null;
+    scheduleRead();
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    checkStream();
+    if (b == null) {
+      throw new NullPointerException();
+    } else if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+
+    if (!nextChunk()) {
+      return -1;
+    }
+    final int n = Math.min(len, current.out.remaining());
+    current.out.get(b, off, n);
+    return n;
+  }
+
+  /** ByteBuffer read. */
+  @Override
+  public int read(ByteBuffer buf) throws IOException {
+    checkStream();
+    int total = 0;
+    while (buf.hasRemaining()) {
+      if (!nextChunk()) {
+        break;
+      }
+      final ByteBuffer out = current.out;
+      final int n = Math.min(buf.remaining(), out.remaining());
+      final int limit = out.limit();
+      out.limit(out.position() + n);
+      buf.put(out);
+      out.limit(limit);
+      total += n;
+      if (ready.isEmpty() && total > 0) {
+        // Don't wait for the underlying stream with data to return.
+        break;
+      }
+    }
+    return (total == 0 && buf.hasRemaining()) ? -1 : total;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return (read(oneByteBuf, 0, 1) == -1) ? -1 : (oneByteBuf[0] & 0xff);
+  }
+
+  /** Skip n bytes, the skipped chunks are still read and decrypted. */
+  @Override
+  public long skip(long n) throws IOException {
+    Preconditions.checkArgument(n >= 0, "Negative skip length.");
+    checkStream();
+    long skipped = 0;
+    while (skipped < n && nextChunk()) {
+      final ByteBuffer out = current.out;
+      final int k = (int) Math.min(n - skipped, out.remaining());
+      out.position(out.position() + k);
+      skipped += k;
+    }
+    return skipped;
+  }
+
+  /** @return the decrypted bytes readable without blocking. */
+  @Override
+  public int available() throws IOException {
+    checkStream();
+    return current == null || current.out == null ? 0 :
+        current.out.remaining();
+  }
+
+  /**
+   * Make {@link #current} a chunk with plain text left, freeing the
+   * chunks read up and waiting for the next one. A failed chunk stays
+   * current, so the following reads fail the same way.
+   * @return boolean false if end of stream is reached.
+   */
+  private boolean nextChunk() throws IOException {
+    while (current == null || !current.out.hasRemaining()) {
+      if (current != null) {
+        if (current.error != null) {
+          throw current.error;
+        } else if (current.last) {
+          return false;
+        }
+        free(current);
+      }
+      current = take();
+    }
+    return true;
+  }
+
+  /** Take the next chunk once it is decrypted. */
+  private Chunk take() throws IOException {
+    final Chunk chunk;
+    try {
+      chunk = ready.take();
+      await(chunk);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted waiting for read-ahead.");
+    }
+    if (chunk.error != null) {
+      chunk.out = ByteBuffer.allocate(0);
+    }
+    return chunk;
+  }
+
+  /** Wait for the decryption of the chunk, recording its error. */
+  private static void await(Chunk chunk) throws InterruptedException {
+    if (chunk.decryption == null) {
+      return;
+    }
+    try {
+      chunk.decryption.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      chunk.error = cause instanceof IOException ? (IOException) cause :
+          new IOException(cause);
+    }
+  }
+
+  /** Start a read task if there is room for another chunk. */
+  private void scheduleRead() {
+    synchronized (lock) {
+      if (reading || ended || closed || inFlight >= depth) {
+        return;
+      }
+      reading = true;
+      inFlight++;
+    }
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        readAhead();
+      }
+    });
+  }
+
+  /**
+   * Read chunks while there is room for them. A slot is taken before each
+   * chunk, so a chunk is never read without a buffer to land in.
+   */
+  private void readAhead() {
+    while (true) {
+      final Chunk chunk = readChunk();
+      ready.add(chunk);
+      synchronized (lock) {
+        if (chunk.last) {
+          ended = true;
+        }
+        if (ended || closed || inFlight >= depth) {
+          reading = false;
+          lock.notifyAll();
+          return;
+        }
+        inFlight++;
+      }
+    }
+  }
+
+  /**
+   * Fill a buffer from the underlying stream and start its decryption. The
+   * first chunk starts at the block boundary before the stream offset, so
+   * the following ones are block aligned.
+   */
+  private Chunk readChunk() {
+    final byte padding = getPadding(readOffset);
+    final Chunk chunk = new Chunk(readOffset, padding,
+        DirectBufferPool.getInstance().getBuffer(bufferSize));
+    final ByteBuffer buffer = chunk.buffer;
+    buffer.position(padding);
+    try {
+      if (in instanceof ReadableByteChannel) {
+        final ReadableByteChannel channel = (ReadableByteChannel) in;
+        while (buffer.hasRemaining() && !chunk.last) {
+          chunk.last = channel.read(buffer) < 0;
+        }
+      } else {
+        if (readBuf == null) {
+          readBuf = new byte[bufferSize];
+        }
+        int n = 0;
+        while (n < buffer.remaining() && !chunk.last) {
+          final int r = in.read(readBuf, n, buffer.remaining() - n);
+          if (r < 0) {
+            chunk.last = true;
+          } else {
+            n += r;
+          }
+        }
+        buffer.put(readBuf, 0, n);
+      }
+    } catch (Throwable t) {
+      chunk.error = t instanceof IOException ? (IOException) t :
+          new IOException(t);
+      chunk.last = true;
+      return chunk;
+    }
+    buffer.flip();
+    readOffset += buffer.limit() - padding;
+    if (buffer.limit() > padding) {
+      chunk.decryption = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          decrypt(chunk);
+          return null;
+        }
+      });
+    } else {
+      chunk.out = buffer;
+      buffer.position(padding);
+    }
+    return chunk;
+  }
+
+  /** Decrypt the chunk with a decryptor of the codec pool. */
+  private void decrypt(Chunk chunk) throws IOException {
+    final ByteBuffer buffer = chunk.buffer;
+    if (parallelEngine != null && inPlace &&
+        buffer.remaining() > parallelEngine.getChunkSize()) {
+      // The padding is decrypted too, from the block boundary.
+      parallelEngine.decrypt(key, initIV, chunk.offset - chunk.padding,
+          buffer.duplicate(), buffer.duplicate());
+      buffer.position(chunk.padding);
+      chunk.out = buffer;
+      return;
+    }
+    final Decryptor decryptor;
+    try {
+      decryptor = codec.borrowDecryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    try {
+      decryptor.init(key, initIV);
+      decryptor.reset(getCounter(chunk.offset));
+      ByteBuffer out = buffer;
+      if (inPlace) {
+        decryptor.decrypt(buffer);
+      } else {
+        out = DirectBufferPool.getInstance().getBuffer(bufferSize);
+        while (buffer.hasRemaining()) {
+          decryptor.decrypt(buffer, out);
+        }
+        out.flip();
+      }
+      out.position(chunk.padding);
+      chunk.out = out;
+    } finally {
+      codec.returnDecryptor(decryptor);
+    }
+  }
+
+  /** Return the buffers of the chunk and resume the reader. */
+  private void free(Chunk chunk) {
+    if (chunk.out != null && chunk.out != chunk.buffer &&
+        chunk.out.isDirect()) {
+      DirectBufferPool.getInstance().returnBuffer(chunk.out);
+    }
+    DirectBufferPool.getInstance().returnBuffer(chunk.buffer);
+    synchronized (lock) {
+      inFlight--;
+    }
+    scheduleRead();
+  }
+
+  private long getCounter(long position) {
+    return position / codec.getCipherSuite().getAlgorithmBlockSize();
+  }
+
+  private byte getPadding(long position) {
+    return (byte)(position % codec.getCipherSuite().getAlgorithmBlockSize());
+  }
+
+  /**
+   * Close the underlying stream, which also ends a read in progress, and
+   * free the buffers once the reader and the decryptions are done.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    try {
+      in.close();
+    } finally {
+      boolean interrupted = false;
+      synchronized (lock) {
+        while (reading) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      if (current != null) {
+        ready.add(current);
+        current = null;
+      }
+      Chunk chunk;
+      while ((chunk = ready.poll()) != null) {
+        while (true) {
+          try {
+            await(chunk);
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        free(chunk);
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void checkStream() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * What {@link CryptoCodec#warmUp(WarmUpOptions)} prepares before live
+ * traffic.
+ */
+public class WarmUpOptions {
+  public static final long DEFAULT_TRAFFIC_BYTES = 32L * 1024 * 1024;
+
+  private final int ciphers;
+  private final int buffers;
+  private final int bufferSize;
+  private final long trafficBytes;
+
+  /**
+   * An encryptor and a decryptor per processor, two buffers per processor
+   * of the configured buffer size, and {@link #DEFAULT_TRAFFIC_BYTES} of
+   * traffic.
+   */
+  public WarmUpOptions() {
+    this(Runtime.getRuntime().availableProcessors(),
+        2 * Runtime.getRuntime().availableProcessors(),
+        CryptoStreamUtils.getBufferSize(), DEFAULT_TRAFFIC_BYTES);
+  }
+
+  /**
+   * @param ciphers encryptors and decryptors put in the codec pools, the
+   * pools keep at most
+   * {@link ConfigurationKeys#CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_KEY}.
+   * @param buffers direct buffers put in the {@link DirectBufferPool}.
+   * @param bufferSize the size of the buffers and of the streams.
+   * @param trafficBytes bytes encrypted and decrypted through the stream
+   * and channel paths, 0 for none.
+   */
+  public WarmUpOptions(int ciphers, int buffers, int bufferSize,
+      long trafficBytes) {
+    Preconditions.checkArgument(ciphers >= 0 && buffers >= 0 &&
+        bufferSize > 0 && trafficBytes >= 0, "Invalid warm-up options.");
+    this.ciphers = ciphers;
+    this.buffers = buffers;
+    this.bufferSize = bufferSize;
+    this.trafficBytes = trafficBytes;
+  }
+
+  public int getCiphers() {
+    return ciphers;
+  }
+
+  public int getBuffers() {
+    return buffers;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public long getTrafficBytes() {
+    return trafficBytes;
+  }
+}
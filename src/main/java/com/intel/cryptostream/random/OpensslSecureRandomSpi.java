@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.random;
+
+import java.security.SecureRandomSpi;
+
+/**
+ * {@link SecureRandomSpi} backed by {@link OpensslSecureRandom}, it is
+ * registered by {@link com.intel.cryptostream.CryptoStreamProvider}.
+ * <p/>
+ * OpenSSL seeds itself, seeds given by the caller are ignored.
+ */
+public final class OpensslSecureRandomSpi extends SecureRandomSpi {
+  private static final long serialVersionUID = 2843219416723584623L;
+
+  private final OpensslSecureRandom random = new OpensslSecureRandom();
+
+  @Override
+  protected void engineSetSeed(byte[] seed) {
+  }
+
+  @Override
+  protected void engineNextBytes(byte[] bytes) {
+    random.nextBytes(bytes);
+  }
+
+  @Override
+  protected byte[] engineGenerateSeed(int numBytes) {
+    final byte[] seed = new byte[numBytes];
+    random.nextBytes(seed);
+    return seed;
+  }
+}
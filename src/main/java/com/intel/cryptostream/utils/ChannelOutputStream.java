@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An OutputStream over a {@link WritableByteChannel} which is still a 
+ * WritableByteChannel, e.g. a FileChannel or a blocking SocketChannel. 
+ * Wrapping a channel with it lets 
+ * {@link com.intel.cryptostream.CryptoOutputStream} write the encrypted 
+ * direct buffer to the channel without the bytes copy.
+ */
+public class ChannelOutputStream extends OutputStream implements 
+    WritableByteChannel {
+  private final byte[] oneByteBuf = new byte[1];
+  private final WritableByteChannel channel;
+
+  public ChannelOutputStream(WritableByteChannel channel) {
+    Preconditions.checkNotNull(channel);
+    this.channel = channel;
+  }
+
+  public WritableByteChannel getChannel() {
+    return channel;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    oneByteBuf[0] = (byte)(b & 0xff);
+    write(oneByteBuf, 0, oneByteBuf.length);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    return channel.write(src);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -19,12 +19,16 @@
 package com.intel.cryptostream.utils;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Properties;
 import java.util.UUID;
 
@@ -43,14 +47,21 @@ public class NativeCodeLoader {
   private static final Log LOG =
     LogFactory.getLog(NativeCodeLoader.class);
   
-  private static boolean nativeCodeLoaded = false;
-  
-  static {
+  /**
+   * The library is loaded when a native class first asks for it, so JVMs
+   * using only the JCE codec never extract nor load it.
+   */
+  private static class Holder {
+    static final boolean NATIVE_CODE_LOADED = load();
+  }
+
+  private static boolean load() {
     // Try to load native cryptostream library and set fallback flag appropriately
     if(LOG.isDebugEnabled()) {
       LOG.debug("Trying to load the custom-built native-cryptostream library...");
     }
 
+    boolean nativeCodeLoaded = false;
     try {
       File nativeLibFile = findNativeLibrary();
       if (nativeLibFile != null) {
@@ -75,6 +86,7 @@ public class NativeCodeLoader {
       LOG.warn("Unable to load native-cryptostream library for your platform... " +
                "using builtin-java classes where applicable");
     }
+    return nativeCodeLoaded;
   }
 
   static File findNativeLibrary() {
@@ -129,18 +141,41 @@ public class NativeCodeLoader {
   }
 
   /**
-   * Extract the specified library file to the target folder
+   * Extract the specified library file to the target folder.
+   * <p/>
+   * If the jar has the SHA-256 of the library, written next to it at build
+   * time, the library is extracted once under a name holding the hash and
+   * kept, in a folder of the current user that only the user can access.
+   * Later JVMs check the hash of the kept file again before loading it.
+   * Otherwise, or if the folder can't be made private, the library is
+   * extracted under a unique name and deleted on exit.
    * 
    * @param libFolderForCurrentOS
    * @param libraryFileName
    * @param targetFolder
    * @return
    */
-  private static File extractLibraryFile(String libFolderForCurrentOS,
+  static File extractLibraryFile(String libFolderForCurrentOS,
       String libraryFileName, String targetFolder) {
     String nativeLibraryFilePath = libFolderForCurrentOS + "/"
         + libraryFileName;
 
+    String hash = getLibraryHash(nativeLibraryFilePath);
+    File cacheFolder = hash == null ? null : getCacheFolder(targetFolder);
+    if (cacheFolder != null) {
+      File cachedLibFile = new File(cacheFolder, String.format(
+          "cryptostream-%s-%s", hash, libraryFileName));
+      try {
+        if (cachedLibFile.isFile() && hash.equals(sha256(cachedLibFile))) {
+          return cachedLibFile;
+        }
+        return extractCachedLibraryFile(nativeLibraryFilePath, hash,
+            cachedLibFile);
+      } catch (IOException e) {
+        LOG.debug("Failed to cache the native library at " + cachedLibFile, e);
+      }
+    }
+
     // Attach UUID to the native library file to ensure multiple class loaders
     // can read the libcryptostream multiple times.
     String uuid = UUID.randomUUID().toString();
@@ -199,6 +234,137 @@ public class NativeCodeLoader {
     }
   }
 
+  /**
+   * @return the SHA-256 of the library in the jar, null if the jar has
+   * none.
+   */
+  private static String getLibraryHash(String nativeLibraryFilePath) {
+    InputStream in = NativeCodeLoader.class.getResourceAsStream(
+        nativeLibraryFilePath + ".sha256");
+    if (in == null) {
+      return null;
+    }
+    try {
+      try {
+        // The sha256sum format, the hash is the first token.
+        String hash = new BufferedReader(new InputStreamReader(in, "US-ASCII"))
+            .readLine();
+        hash = hash == null ? "" : hash.trim().split("\\s+")[0];
+        return hash.matches("[0-9a-f]{64}") ? hash : null;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the folder of the current user in targetFolder, with access for
+   * the user only, or null if it can't be created or made private.
+   */
+  private static File getCacheFolder(String targetFolder) {
+    String user = System.getProperty("user.name", "unknown")
+        .replaceAll("[^A-Za-z0-9._-]", "_");
+    File folder = new File(targetFolder, "cryptostream-" + user);
+    folder.mkdir();
+    try {
+      // A link could lead to a folder the user doesn't control.
+      if (!folder.isDirectory() || !folder.getCanonicalFile().equals(
+          new File(new File(targetFolder).getCanonicalFile(),
+              folder.getName()))) {
+        return null;
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    // Changing the permissions fails unless the user owns the folder.
+    if (folder.setReadable(false, false) && folder.setReadable(true, true) &&
+        folder.setWritable(false, false) && folder.setWritable(true, true) &&
+        folder.setExecutable(false, false) &&
+        folder.setExecutable(true, true)) {
+      return folder;
+    }
+    LOG.debug("Cannot make " + folder + " private, not caching the native " +
+        "library");
+    return null;
+  }
+
+  /**
+   * Extract the library to a temporary file checked against the hash, then
+   * rename it to its cached name, replacing a file with another hash. If
+   * another JVM does the same, either file is complete and valid.
+   */
+  private static File extractCachedLibraryFile(String nativeLibraryFilePath,
+      String hash, File cachedLibFile) throws IOException {
+    File tmpFile = new File(cachedLibFile.getParentFile(), String.format(
+        "cryptostream-%s.tmp", UUID.randomUUID()));
+    MessageDigest digest = newDigest();
+    InputStream reader = NativeCodeLoader.class
+        .getResourceAsStream(nativeLibraryFilePath);
+    FileOutputStream writer = new FileOutputStream(tmpFile);
+    try {
+      byte[] buffer = new byte[8192];
+      int bytesRead = 0;
+      while ((bytesRead = reader.read(buffer)) != -1) {
+        digest.update(buffer, 0, bytesRead);
+        writer.write(buffer, 0, bytesRead);
+      }
+    } finally {
+      writer.close();
+      reader.close();
+    }
+
+    if (!hash.equals(toHex(digest.digest()))) {
+      tmpFile.delete();
+      throw new IOException("Hash mismatch of the native library " +
+          nativeLibraryFilePath);
+    }
+    tmpFile.setReadable(true);
+    tmpFile.setWritable(true, true);
+    tmpFile.setExecutable(true);
+    if (!tmpFile.renameTo(cachedLibFile)) {
+      tmpFile.delete();
+      if (!cachedLibFile.isFile() || !hash.equals(sha256(cachedLibFile))) {
+        throw new IOException("Failed to rename " + tmpFile + " to " +
+            cachedLibFile);
+      }
+    }
+    return cachedLibFile;
+  }
+
+  private static String sha256(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int bytesRead = 0;
+      while ((bytesRead = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, bytesRead);
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
   /**
    * Get the cryptostream version by reading pom.properties embedded in jar.
    * This version data is used as a suffix of a dll file extracted from the
@@ -260,6 +426,6 @@ public class NativeCodeLoader {
    *         else <code>false</code>
    */
   public static boolean isNativeCodeLoaded() {
-    return nativeCodeLoaded;
+    return Holder.NATIVE_CODE_LOADED;
   }
 }
@@ -0,0 +1,431 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Preconditions;
+import com.intel.cryptostream.utils.ReflectionUtils;
+
+/**
+ * Implement the AES-CTR crypto codec by calling the system OpenSSL 3
+ * libcrypto through the foreign function API of JDK 22, without the JNI
+ * library of this project.
+ * <p/>
+ * The update calls are critical downcalls: they don't change the thread
+ * state, and heap arrays and buffers are passed without a copy. Direct
+ * buffers are passed by address.
+ * <p/>
+ * The codec is not available before JDK 22, or without OpenSSL 3. Run the
+ * JVM with --enable-native-access to avoid the restricted method warning,
+ * and like the rest of the library with --add-exports
+ * java.base/sun.nio.ch for direct buffers.
+ */
+public class FfmOpensslAesCtrCryptoCodec extends AesCtrCryptoCodec {
+  private static final int ENCRYPT_MODE = 1;
+  private static final int DECRYPT_MODE = 0;
+  /** Keep the direction of the context when only the IV changes. */
+  private static final int KEEP_MODE = -1;
+
+  private static final Log LOG =
+      LogFactory.getLog(FfmOpensslAesCtrCryptoCodec.class.getName());
+
+  private final Random random;
+
+  /**
+   * @throws RuntimeException if libcrypto of OpenSSL 3 can't be bound, the
+   * codec lookup then falls back to the next configured codec.
+   */
+  public FfmOpensslAesCtrCryptoCodec() {
+    if (Native.LOADING_FAILURE != null) {
+      throw new RuntimeException(Native.LOADING_FAILURE);
+    }
+    final Class<? extends Random> klass =
+        CryptoStreamUtils.getSecureRandomClass();
+    Random r;
+    try {
+      r = ReflectionUtils.newInstance(klass);
+    } catch (Exception e) {
+      LOG.info("Unable to use " + klass.getName() + ".  Falling back to " +
+          "Java SecureRandom.", e);
+      r = new SecureRandom();
+    }
+    random = r;
+    if (random instanceof Closeable closeable) {
+      // E.g. the device file of OsSecureRandom.
+      CLEANER.register(this, () -> {
+        try {
+          closeable.close();
+        } catch (IOException e) {
+          LOG.debug("Failed to close " + klass.getName(), e);
+        }
+      });
+    }
+  }
+
+  @Override
+  public Encryptor createEncryptor() throws GeneralSecurityException {
+    return new FfmAesCtrCipher(ENCRYPT_MODE);
+  }
+
+  @Override
+  public Decryptor createDecryptor() throws GeneralSecurityException {
+    return new FfmAesCtrCipher(DECRYPT_MODE);
+  }
+
+  @Override
+  public void generateSecureRandom(byte[] bytes) {
+    random.nextBytes(bytes);
+  }
+
+  /** The libcrypto functions, bound when the first codec is created. */
+  private static class Native {
+    private static final String[] LIBRARY_NAMES = {
+        System.mapLibraryName("crypto") + ".3", "libcrypto.3.dylib",
+        System.mapLibraryName("crypto")};
+
+    static final MethodHandle CTX_NEW;
+    static final MethodHandle CTX_FREE;
+    static final MethodHandle INIT;
+    static final MethodHandle UPDATE;
+    static final MethodHandle UPDATE_ADDRESS;
+    static final MemorySegment AES_128_CTR;
+    static final MemorySegment AES_256_CTR;
+    static final String LOADING_FAILURE;
+
+    static {
+      MethodHandle ctxNew = null;
+      MethodHandle ctxFree = null;
+      MethodHandle init = null;
+      MethodHandle update = null;
+      MethodHandle updateAddress = null;
+      MemorySegment aes128 = null;
+      MemorySegment aes256 = null;
+      String failure = null;
+      try {
+        final Linker linker = Linker.nativeLinker();
+        final SymbolLookup crypto = lookup();
+        ctxNew = linker.downcallHandle(find(crypto, "EVP_CIPHER_CTX_new"),
+            FunctionDescriptor.of(ValueLayout.ADDRESS));
+        ctxFree = linker.downcallHandle(find(crypto, "EVP_CIPHER_CTX_free"),
+            FunctionDescriptor.ofVoid(ValueLayout.ADDRESS));
+        init = linker.downcallHandle(find(crypto, "EVP_CipherInit_ex2"),
+            FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS,
+                ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+                ValueLayout.JAVA_INT, ValueLayout.ADDRESS),
+            Linker.Option.critical(true));
+        update = linker.downcallHandle(find(crypto, "EVP_CipherUpdate"),
+            FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS,
+                ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+                ValueLayout.JAVA_INT),
+            Linker.Option.critical(true));
+        // Direct buffers by address, without creating segments for them.
+        updateAddress = linker.downcallHandle(
+            find(crypto, "EVP_CipherUpdate"),
+            FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS,
+                ValueLayout.JAVA_LONG, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG,
+                ValueLayout.JAVA_INT),
+            Linker.Option.critical(true));
+        final MethodHandle fetch = linker.downcallHandle(
+            find(crypto, "EVP_CIPHER_fetch"),
+            FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+                ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+        // The ciphers are fetched once and kept for the process.
+        try (Arena arena = Arena.ofConfined()) {
+          aes128 = (MemorySegment) fetch.invokeExact(MemorySegment.NULL,
+              arena.allocateFrom("AES-128-CTR"), MemorySegment.NULL);
+          aes256 = (MemorySegment) fetch.invokeExact(MemorySegment.NULL,
+              arena.allocateFrom("AES-256-CTR"), MemorySegment.NULL);
+        }
+        if (aes128.equals(MemorySegment.NULL) ||
+            aes256.equals(MemorySegment.NULL)) {
+          failure = "Cannot fetch AES-CTR from OpenSSL.";
+        }
+      } catch (Throwable t) {
+        failure = String.valueOf(t);
+      }
+      CTX_NEW = ctxNew;
+      CTX_FREE = ctxFree;
+      INIT = init;
+      UPDATE = update;
+      UPDATE_ADDRESS = updateAddress;
+      AES_128_CTR = aes128;
+      AES_256_CTR = aes256;
+      LOADING_FAILURE = failure;
+    }
+
+    private static SymbolLookup lookup() {
+      IllegalArgumentException failure = null;
+      for (String name : LIBRARY_NAMES) {
+        try {
+          return SymbolLookup.libraryLookup(name, Arena.global());
+        } catch (IllegalArgumentException e) {
+          failure = e;
+        }
+      }
+      throw failure;
+    }
+
+    private static MemorySegment find(SymbolLookup lookup, String name) {
+      return lookup.find(name).orElseThrow(() ->
+          new UnsatisfiedLinkError("Cannot find " + name +
+              ", is your version of OpenSSL 3 or later?"));
+    }
+  }
+
+  /** Frees a native context, by close or when its cipher is collected. */
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  private static class ContextFree implements Runnable {
+    private final MemorySegment context;
+
+    ContextFree(MemorySegment context) {
+      this.context = context;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Native.CTX_FREE.invokeExact(context);
+      } catch (Throwable t) {
+        throw new IllegalStateException(t);
+      }
+    }
+  }
+
+  private static class FfmAesCtrCipher implements Encryptor, Decryptor,
+      Closeable {
+    private static final int BLOCK_SIZE = SUITE.getAlgorithmBlockSize();
+
+    private final int mode;
+    private final MemorySegment context;
+    private final Cleaner.Cleanable cleanable;
+    /** The key in the native context, null if the context has no key. */
+    private byte[] key;
+    private final byte[] initIV = new byte[BLOCK_SIZE];
+    private final byte[] iv = new byte[BLOCK_SIZE];
+    private boolean closed = false;
+    private final int[] outputLength = new int[1];
+    private final MemorySegment outputLengthSegment =
+        MemorySegment.ofArray(outputLength);
+
+    FfmAesCtrCipher(int mode) throws GeneralSecurityException {
+      this.mode = mode;
+      final MemorySegment ctx;
+      try {
+        ctx = (MemorySegment) Native.CTX_NEW.invokeExact();
+      } catch (Throwable t) {
+        throw new GeneralSecurityException(t);
+      }
+      if (ctx.equals(MemorySegment.NULL)) {
+        throw new GeneralSecurityException("Cannot create cipher context.");
+      }
+      this.context = ctx;
+      this.cleanable = CLEANER.register(this, new ContextFree(ctx));
+    }
+
+    /**
+     * If the key is the one already in the native context only the IV is
+     * re-initialized, the key schedule is kept.
+     */
+    @Override
+    public void init(byte[] key, byte[] iv) throws IOException {
+      Preconditions.checkNotNull(key);
+      Preconditions.checkNotNull(iv);
+      Preconditions.checkArgument(iv.length == initIV.length);
+      Preconditions.checkState(!closed, "Cipher is closed.");
+      System.arraycopy(iv, 0, initIV, 0, initIV.length);
+      if (this.key != null && MessageDigest.isEqual(this.key, key)) {
+        initIV(iv);
+        return;
+      }
+      final MemorySegment cipher;
+      if (key.length == 16) {
+        cipher = Native.AES_128_CTR;
+      } else if (key.length == 32) {
+        cipher = Native.AES_256_CTR;
+      } else {
+        throw new IllegalArgumentException("Invalid key length.");
+      }
+      this.key = null;
+      init(cipher, MemorySegment.ofArray(key), iv, mode);
+      this.key = key.clone();
+    }
+
+    @Override
+    public void reset(long counter) throws IOException {
+      Preconditions.checkState(key != null, "Cipher is not initialized.");
+      addCounter(initIV, counter, iv);
+      initIV(iv);
+    }
+
+    private void initIV(byte[] iv) throws IOException {
+      init(MemorySegment.NULL, MemorySegment.NULL, iv, KEEP_MODE);
+    }
+
+    private void init(MemorySegment cipher, MemorySegment key, byte[] iv,
+        int mode) throws IOException {
+      final int rc;
+      try {
+        rc = (int) Native.INIT.invokeExact(context, cipher, key,
+            MemorySegment.ofArray(iv), mode, MemorySegment.NULL);
+      } catch (Throwable t) {
+        throw new IOException(t);
+      }
+      if (rc == 0) {
+        throw new IOException("Error in EVP_CipherInit_ex2.");
+      }
+    }
+
+    /** AES-CTR outputs all input, the output must have room for it. */
+    private void update(MemorySegment input, MemorySegment output, int len)
+        throws IOException {
+      checkUpdate(output.byteSize(), len);
+      final int rc;
+      try {
+        rc = (int) Native.UPDATE.invokeExact(context, output,
+            outputLengthSegment, input, len);
+      } catch (Throwable t) {
+        throw new IOException(t);
+      }
+      checkUpdated(rc, len);
+    }
+
+    /** Update direct memory given by address, see the JNI codec. */
+    private void update(long inputAddress, long outputAddress,
+        long outputSize, int len) throws IOException {
+      checkUpdate(outputSize, len);
+      final int rc;
+      try {
+        rc = (int) Native.UPDATE_ADDRESS.invokeExact(context, outputAddress,
+            outputLengthSegment, inputAddress, len);
+      } catch (Throwable t) {
+        throw new IOException(t);
+      }
+      checkUpdated(rc, len);
+    }
+
+    private void checkUpdate(long outputSize, int len) throws IOException {
+      Preconditions.checkState(key != null, "Cipher is not initialized.");
+      if (outputSize < len) {
+        throw new IOException("Output buffer is not sufficient.");
+      }
+    }
+
+    private void checkUpdated(int rc, int len) throws IOException {
+      if (rc == 0 || outputLength[0] != len) {
+        key = null;
+        throw new IOException("Error in EVP_CipherUpdate.");
+      }
+    }
+
+    /**
+     * Direct buffers are passed by address, creating segments for them
+     * costs more than the call of a small update.
+     */
+    private void process(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      final int len = inBuffer.remaining();
+      if (inBuffer.isDirect() && outBuffer.isDirect()) {
+        update(CryptoStreamUtils.getAddress(inBuffer) + inBuffer.position(),
+            CryptoStreamUtils.getAddress(outBuffer) + outBuffer.position(),
+            outBuffer.remaining(), len);
+      } else {
+        update(MemorySegment.ofBuffer(inBuffer),
+            MemorySegment.ofBuffer(outBuffer), len);
+      }
+      inBuffer.position(inBuffer.limit());
+      outBuffer.position(outBuffer.position() + len);
+    }
+
+    private void process(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      update(MemorySegment.ofArray(input).asSlice(inputOffset, len),
+          MemorySegment.ofArray(output).asSlice(outputOffset), len);
+    }
+
+    @Override
+    public void encrypt(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      process(inBuffer, outBuffer);
+    }
+
+    @Override
+    public void decrypt(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      process(inBuffer, outBuffer);
+    }
+
+    @Override
+    public void encrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      process(input, inputOffset, len, output, outputOffset);
+    }
+
+    @Override
+    public void decrypt(byte[] input, int inputOffset, int len,
+        byte[] output, int outputOffset) throws IOException {
+      process(input, inputOffset, len, output, outputOffset);
+    }
+
+    @Override
+    public boolean isInPlaceSupported() {
+      return true;
+    }
+
+    @Override
+    public void encrypt(ByteBuffer buffer) throws IOException {
+      process(buffer, buffer.duplicate());
+    }
+
+    @Override
+    public void decrypt(ByteBuffer buffer) throws IOException {
+      process(buffer, buffer.duplicate());
+    }
+
+    /** The output length of AES-CTR always equals the input length. */
+    @Override
+    public boolean isContextReset() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      key = null;
+      cleanable.clean();
+    }
+  }
+}
@@ -37,6 +37,13 @@ static int (*dlsym_EVP_CipherUpdate)(EVP_CIPHER_CTX *, unsigned char *,  \
 static int (*dlsym_EVP_CipherFinal_ex)(EVP_CIPHER_CTX *, unsigned char *, int *);
 static EVP_CIPHER * (*dlsym_EVP_aes_256_ctr)(void);
 static EVP_CIPHER * (*dlsym_EVP_aes_128_ctr)(void);
+static EVP_CIPHER * (*dlsym_EVP_CIPHER_fetch)(void *, const char *,  \
+           const char *);
+static int (*dlsym_EVP_CipherInit_ex2)(EVP_CIPHER_CTX *, const EVP_CIPHER *,  \
+           const unsigned char *, const unsigned char *, int, const void *);
+static int (*dlsym_EVP_CIPHER_CTX_test_flags)(const EVP_CIPHER_CTX *, int);
+static int (*dlsym_EVP_CIPHER_CTX_block_size)(const EVP_CIPHER_CTX *);
+static int (*dlsym_EVP_CIPHER_CTX_encrypting)(const EVP_CIPHER_CTX *);
 static void *openssl;
 #endif
 
@@ -55,6 +62,17 @@ typedef int (__cdecl *__dlsym_EVP_CipherFinal_ex)(EVP_CIPHER_CTX *,  \
              unsigned char *, int *);
 typedef EVP_CIPHER * (__cdecl *__dlsym_EVP_aes_256_ctr)(void);
 typedef EVP_CIPHER * (__cdecl *__dlsym_EVP_aes_128_ctr)(void);
+typedef EVP_CIPHER * (__cdecl *__dlsym_EVP_CIPHER_fetch)(void *,  \
+             const char *, const char *);
+typedef int (__cdecl *__dlsym_EVP_CipherInit_ex2)(EVP_CIPHER_CTX *,  \
+             const EVP_CIPHER *, const unsigned char *,  \
+             const unsigned char *, int, const void *);
+typedef int (__cdecl *__dlsym_EVP_CIPHER_CTX_test_flags)(  \
+             const EVP_CIPHER_CTX *, int);
+typedef int (__cdecl *__dlsym_EVP_CIPHER_CTX_block_size)(  \
+             const EVP_CIPHER_CTX *);
+typedef int (__cdecl *__dlsym_EVP_CIPHER_CTX_encrypting)(  \
+             const EVP_CIPHER_CTX *);
 static __dlsym_EVP_CIPHER_CTX_new dlsym_EVP_CIPHER_CTX_new;
 static __dlsym_EVP_CIPHER_CTX_free dlsym_EVP_CIPHER_CTX_free;
 static __dlsym_EVP_CIPHER_CTX_cleanup dlsym_EVP_CIPHER_CTX_cleanup;
@@ -65,9 +83,134 @@ static __dlsym_EVP_CipherUpdate dlsym_EVP_CipherUpdate;
 static __dlsym_EVP_CipherFinal_ex dlsym_EVP_CipherFinal_ex;
 static __dlsym_EVP_aes_256_ctr dlsym_EVP_aes_256_ctr;
 static __dlsym_EVP_aes_128_ctr dlsym_EVP_aes_128_ctr;
+static __dlsym_EVP_CIPHER_fetch dlsym_EVP_CIPHER_fetch;
+static __dlsym_EVP_CipherInit_ex2 dlsym_EVP_CipherInit_ex2;
+static __dlsym_EVP_CIPHER_CTX_test_flags dlsym_EVP_CIPHER_CTX_test_flags;
+static __dlsym_EVP_CIPHER_CTX_block_size dlsym_EVP_CIPHER_CTX_block_size;
+static __dlsym_EVP_CIPHER_CTX_encrypting dlsym_EVP_CIPHER_CTX_encrypting;
 static HMODULE openssl;
 #endif
 
+/*
+ * The ciphers, resolved once in initIDs. On OpenSSL 3 getting a cipher by
+ * EVP_aes_*_ctr makes every EVP_CipherInit_ex fetch it from the provider
+ * again, under a global lock. An explicitly fetched cipher is kept for the
+ * process instead.
+ */
+static EVP_CIPHER *aes_128_ctr;
+static EVP_CIPHER *aes_256_ctr;
+
+/* @return the symbol, or NULL without an exception if it is missing. */
+static void *load_optional_symbol(const char *symbol)
+{
+#ifdef UNIX
+  void *func_ptr = dlsym(openssl, symbol);
+  dlerror();  // Clear the error of a missing symbol
+  return func_ptr;
+#endif
+
+#ifdef WINDOWS
+  return (void *)GetProcAddress(openssl, symbol);
+#endif
+}
+
+/*
+ * Resolve the OpenSSL 3 functions, which are NULL on older versions. Only
+ * both together are used, the fetch alone doesn't avoid the lookup.
+ */
+static void loadOpenssl3(void)
+{
+#ifdef UNIX
+  dlsym_EVP_CIPHER_fetch = load_optional_symbol("EVP_CIPHER_fetch");
+  dlsym_EVP_CipherInit_ex2 = load_optional_symbol("EVP_CipherInit_ex2");
+#endif
+
+#ifdef WINDOWS
+  dlsym_EVP_CIPHER_fetch =  \
+      (__dlsym_EVP_CIPHER_fetch) load_optional_symbol("EVP_CIPHER_fetch");
+  dlsym_EVP_CipherInit_ex2 =  \
+      (__dlsym_EVP_CipherInit_ex2) load_optional_symbol("EVP_CipherInit_ex2");
+#endif
+  if (dlsym_EVP_CIPHER_fetch == NULL || dlsym_EVP_CipherInit_ex2 == NULL) {
+    dlsym_EVP_CIPHER_fetch = NULL;
+    dlsym_EVP_CipherInit_ex2 = NULL;
+  }
+}
+
+/*
+ * Since OpenSSL 1.1 EVP_CIPHER_CTX is opaque and its fields are read with
+ * accessors, OpenSSL 3 renamed two of them and keeps the old names as
+ * macros. Before 1.1 the fields are read directly.
+ */
+static void loadCtxAccessors(JNIEnv *env)
+{
+#if OPENSSL_VERSION_NUMBER >= 0x10100000L
+#ifdef UNIX
+  LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_test_flags, env, openssl,  \
+                      "EVP_CIPHER_CTX_test_flags");
+  dlsym_EVP_CIPHER_CTX_block_size =  \
+      load_optional_symbol("EVP_CIPHER_CTX_get_block_size");
+  if (dlsym_EVP_CIPHER_CTX_block_size == NULL) {
+    LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_block_size, env, openssl,  \
+                        "EVP_CIPHER_CTX_block_size");
+  }
+  dlsym_EVP_CIPHER_CTX_encrypting =  \
+      load_optional_symbol("EVP_CIPHER_CTX_is_encrypting");
+  if (dlsym_EVP_CIPHER_CTX_encrypting == NULL) {
+    LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_encrypting, env, openssl,  \
+                        "EVP_CIPHER_CTX_encrypting");
+  }
+#endif
+
+#ifdef WINDOWS
+  LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_test_flags,  \
+                      dlsym_EVP_CIPHER_CTX_test_flags, env,  \
+                      openssl, "EVP_CIPHER_CTX_test_flags");
+  dlsym_EVP_CIPHER_CTX_block_size = (__dlsym_EVP_CIPHER_CTX_block_size)  \
+      load_optional_symbol("EVP_CIPHER_CTX_get_block_size");
+  if (dlsym_EVP_CIPHER_CTX_block_size == NULL) {
+    LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_block_size,  \
+                        dlsym_EVP_CIPHER_CTX_block_size, env,  \
+                        openssl, "EVP_CIPHER_CTX_block_size");
+  }
+  dlsym_EVP_CIPHER_CTX_encrypting = (__dlsym_EVP_CIPHER_CTX_encrypting)  \
+      load_optional_symbol("EVP_CIPHER_CTX_is_encrypting");
+  if (dlsym_EVP_CIPHER_CTX_encrypting == NULL) {
+    LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_encrypting,  \
+                        dlsym_EVP_CIPHER_CTX_encrypting, env,  \
+                        openssl, "EVP_CIPHER_CTX_encrypting");
+  }
+#endif
+#endif
+}
+
+static int ctx_no_padding(EVP_CIPHER_CTX *context)
+{
+#if OPENSSL_VERSION_NUMBER >= 0x10100000L
+  return dlsym_EVP_CIPHER_CTX_test_flags(context, EVP_CIPH_NO_PADDING);
+#else
+  return context->flags & EVP_CIPH_NO_PADDING;
+#endif
+}
+
+static int ctx_block_size(EVP_CIPHER_CTX *context)
+{
+#if OPENSSL_VERSION_NUMBER >= 0x10100000L
+  return dlsym_EVP_CIPHER_CTX_block_size(context);
+#else
+  return context->cipher->block_size;
+#endif
+}
+
+static int ctx_encrypting(EVP_CIPHER_CTX *context)
+{
+#if OPENSSL_VERSION_NUMBER >= 0x10100000L
+  return dlsym_EVP_CIPHER_CTX_encrypting(context);
+#else
+  return context->encrypt;
+#endif
+}
+
 static void loadAesCtr(JNIEnv *env)
 {
 #ifdef UNIX
@@ -81,6 +224,24 @@ static void loadAesCtr(JNIEnv *env)
   LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_aes_128_ctr, dlsym_EVP_aes_128_ctr,  \
                       env, openssl, "EVP_aes_128_ctr");
 #endif
+
+  if (dlsym_EVP_CIPHER_fetch != NULL) {
+    aes_128_ctr = dlsym_EVP_CIPHER_fetch(NULL, "AES-128-CTR", NULL);
+    aes_256_ctr = dlsym_EVP_CIPHER_fetch(NULL, "AES-256-CTR", NULL);
+  }
+  // Without a provider for them, the implicit fetch still works.
+  if (aes_128_ctr == NULL) {
+    aes_128_ctr = dlsym_EVP_aes_128_ctr();
+  }
+  if (aes_256_ctr == NULL) {
+    aes_256_ctr = dlsym_EVP_aes_256_ctr();
+  }
+}
+
+JNIEXPORT jint JNICALL Java_com_intel_cryptostream_OpensslCipherNative_getAbiVersion
+    (JNIEnv *env, jclass clazz)
+{
+  return com_intel_cryptostream_OpensslCipherNative_ABI_VERSION;
 }
 
 JNIEXPORT void JNICALL Java_com_intel_cryptostream_OpensslCipherNative_initIDs
@@ -108,10 +269,17 @@ JNIEXPORT void JNICALL Java_com_intel_cryptostream_OpensslCipherNative_initIDs
                       "EVP_CIPHER_CTX_new");
   LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_free, env, openssl,  \
                       "EVP_CIPHER_CTX_free");
-  LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_cleanup, env, openssl,  \
-                      "EVP_CIPHER_CTX_cleanup");
-  LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_init, env, openssl,  \
-                      "EVP_CIPHER_CTX_init");
+  // Since OpenSSL 1.1 cleanup and init are macros of EVP_CIPHER_CTX_reset.
+  dlsym_EVP_CIPHER_CTX_cleanup = load_optional_symbol("EVP_CIPHER_CTX_cleanup");
+  if (dlsym_EVP_CIPHER_CTX_cleanup == NULL) {
+    LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_cleanup, env, openssl,  \
+                        "EVP_CIPHER_CTX_reset");
+  }
+  dlsym_EVP_CIPHER_CTX_init = load_optional_symbol("EVP_CIPHER_CTX_init");
+  if (dlsym_EVP_CIPHER_CTX_init == NULL) {
+    LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_init, env, openssl,  \
+                        "EVP_CIPHER_CTX_reset");
+  }
   LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CIPHER_CTX_set_padding, env, openssl,  \
                       "EVP_CIPHER_CTX_set_padding");
   LOAD_DYNAMIC_SYMBOL(dlsym_EVP_CipherInit_ex, env, openssl,  \
@@ -127,11 +295,19 @@ JNIEXPORT void JNICALL Java_com_intel_cryptostream_OpensslCipherNative_initIDs
                       env, openssl, "EVP_CIPHER_CTX_new");
   LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_free, dlsym_EVP_CIPHER_CTX_free,  \
                       env, openssl, "EVP_CIPHER_CTX_free");
-  LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_cleanup,  \
-                      dlsym_EVP_CIPHER_CTX_cleanup, env, 
-                      openssl, "EVP_CIPHER_CTX_cleanup");
-  LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_init, dlsym_EVP_CIPHER_CTX_init,  \
-                      env, openssl, "EVP_CIPHER_CTX_init");
+  dlsym_EVP_CIPHER_CTX_cleanup = (__dlsym_EVP_CIPHER_CTX_cleanup)  \
+      load_optional_symbol("EVP_CIPHER_CTX_cleanup");
+  if (dlsym_EVP_CIPHER_CTX_cleanup == NULL) {
+    LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_cleanup,  \
+                        dlsym_EVP_CIPHER_CTX_cleanup, env,  \
+                        openssl, "EVP_CIPHER_CTX_reset");
+  }
+  dlsym_EVP_CIPHER_CTX_init = (__dlsym_EVP_CIPHER_CTX_init)  \
+      load_optional_symbol("EVP_CIPHER_CTX_init");
+  if (dlsym_EVP_CIPHER_CTX_init == NULL) {
+    LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_init, dlsym_EVP_CIPHER_CTX_init,  \
+                        env, openssl, "EVP_CIPHER_CTX_reset");
+  }
   LOAD_DYNAMIC_SYMBOL(__dlsym_EVP_CIPHER_CTX_set_padding,  \
                       dlsym_EVP_CIPHER_CTX_set_padding, env,  \
                       openssl, "EVP_CIPHER_CTX_set_padding");
@@ -143,6 +319,11 @@ JNIEXPORT void JNICALL Java_com_intel_cryptostream_OpensslCipherNative_initIDs
                       env, openssl, "EVP_CipherFinal_ex");
 #endif
 
+  loadCtxAccessors(env);
+  if ((*env)->ExceptionCheck(env)) {
+    return;
+  }
+  loadOpenssl3();
   loadAesCtr(env);
   jthrowable jthr = (*env)->ExceptionOccurred(env);
   if (jthr) {
@@ -165,7 +346,7 @@ JNIEXPORT jlong JNICALL Java_com_intel_cryptostream_OpensslCipherNative_initCont
     return (jlong)0;
   }
   
-  if (dlsym_EVP_aes_256_ctr == NULL || dlsym_EVP_aes_128_ctr == NULL) {
+  if (aes_256_ctr == NULL || aes_128_ctr == NULL) {
     THROW(env, "java/security/NoSuchAlgorithmException",  \
         "Doesn't support AES CTR.");
     return (jlong)0;
@@ -187,14 +368,27 @@ static EVP_CIPHER * getEvpCipher(int alg, int keyLen)
   EVP_CIPHER *cipher = NULL;
   if (alg == AES_CTR) {
     if (keyLen == KEY_LENGTH_256) {
-      cipher = dlsym_EVP_aes_256_ctr();
+      cipher = aes_256_ctr;
     } else if (keyLen == KEY_LENGTH_128) {
-      cipher = dlsym_EVP_aes_128_ctr();
+      cipher = aes_128_ctr;
     }
   }
   return cipher;
 }
 
+/*
+ * EVP_CipherInit_ex2 of OpenSSL 3 where available, it takes the fetched
+ * cipher as is and skips the ENGINE lookup of EVP_CipherInit_ex.
+ */
+static int cipher_init(EVP_CIPHER_CTX *context, const EVP_CIPHER *cipher,
+    const unsigned char *key, const unsigned char *iv, int enc)
+{
+  if (dlsym_EVP_CipherInit_ex2 != NULL) {
+    return dlsym_EVP_CipherInit_ex2(context, cipher, key, iv, enc, NULL);
+  }
+  return dlsym_EVP_CipherInit_ex(context, cipher, NULL, key, iv, enc);
+}
+
 JNIEXPORT jlong JNICALL Java_com_intel_cryptostream_OpensslCipherNative_init
     (JNIEnv *env, jclass clazz, jlong ctx, jint mode, jint alg, jint padding,
     jbyteArray key, jbyteArray iv)
@@ -232,8 +426,8 @@ JNIEXPORT jlong JNICALL Java_com_intel_cryptostream_OpensslCipherNative_init
     return (jlong)0;
   }
   
-  int rc = dlsym_EVP_CipherInit_ex(context, getEvpCipher(alg, jKeyLen),  \
-      NULL, (unsigned char *)jKey, (unsigned char *)jIv, mode == ENCRYPT_MODE);
+  int rc = cipher_init(context, getEvpCipher(alg, jKeyLen),  \
+      (unsigned char *)jKey, (unsigned char *)jIv, mode == ENCRYPT_MODE);
   (*env)->ReleaseByteArrayElements(env, key, jKey, 0);
   (*env)->ReleaseByteArrayElements(env, iv, jIv, 0);
   if (rc == 0) {
@@ -249,18 +443,47 @@ JNIEXPORT jlong JNICALL Java_com_intel_cryptostream_OpensslCipherNative_init
   return JLONG(context);
 }
 
+/*
+ * Re-initialize the IV of the context, return 0 and throw on errors.
+ * With a NULL cipher and key, the init keeps the cipher and the expanded
+ * key of the context, only the IV and the CTR state are reset.
+ * An enc of -1 keeps the direction.
+ */
+static int init_iv(JNIEnv *env, EVP_CIPHER_CTX *context, jbyteArray iv)
+{
+  unsigned char jIv[IV_LENGTH];
+  if ((*env)->GetArrayLength(env, iv) != IV_LENGTH) {
+    THROW(env, "java/lang/IllegalArgumentException", "Invalid iv length.");
+    return 0;
+  }
+  // Copy the IV to the stack, there is no need to pin the array.
+  (*env)->GetByteArrayRegion(env, iv, 0, IV_LENGTH, (jbyte *)jIv);
+  
+  if (!cipher_init(context, NULL, NULL, jIv, -1)) {
+    THROW(env, "java/lang/InternalError", "Error in EVP_CipherInit_ex.");
+    return 0;
+  }
+  return 1;
+}
+
+JNIEXPORT void JNICALL Java_com_intel_cryptostream_OpensslCipherNative_initIV
+    (JNIEnv *env, jclass clazz, jlong ctx, jbyteArray iv)
+{
+  init_iv(env, CONTEXT(ctx), iv);
+}
+
 // https://www.openssl.org/docs/crypto/EVP_EncryptInit.html
 static int check_update_max_output_len(EVP_CIPHER_CTX *context, int input_len, 
     int max_output_len)
 {
-  if (context->flags & EVP_CIPH_NO_PADDING) {
+  if (ctx_no_padding(context)) {
     if (max_output_len >= input_len) {
       return 1;
     }
     return 0;
   } else {
-    int b = context->cipher->block_size;
-    if (context->encrypt) {
+    int b = ctx_block_size(context);
+    if (ctx_encrypting(context)) {
       if (max_output_len >= input_len + b - 1) {
         return 1;
       }
@@ -274,9 +497,14 @@ static int check_update_max_output_len(EVP_CIPHER_CTX *context, int input_len,
   }
 }
 
+/*
+ * If iv is not NULL, the IV is re-initialized first, which saves a JNI
+ * call when seeking. The buffers are given by address, so no JNI function
+ * is called for them.
+ */
 JNIEXPORT jint JNICALL Java_com_intel_cryptostream_OpensslCipherNative_update
-    (JNIEnv *env, jclass clazz, jlong ctx, jobject input, jint input_offset,
-    jint input_len, jobject output, jint output_offset, jint max_output_len)
+    (JNIEnv *env, jclass clazz, jlong ctx, jbyteArray iv, jlong input,
+    jint input_len, jlong output, jint max_output_len)
 {
   EVP_CIPHER_CTX *context = CONTEXT(ctx);
   if (!check_update_max_output_len(context, input_len, max_output_len)) {
@@ -284,18 +512,126 @@ JNIEXPORT jint JNICALL Java_com_intel_cryptostream_OpensslCipherNative_update
         "Output buffer is not sufficient.");
     return 0;
   }
-  unsigned char *input_bytes = (*env)->GetDirectBufferAddress(env, input);
-  unsigned char *output_bytes = (*env)->GetDirectBufferAddress(env, output);
-  if (input_bytes == NULL || output_bytes == NULL) {
-    THROW(env, "java/lang/InternalError", "Cannot get buffer address.");
+  if (iv != NULL && !init_iv(env, context, iv)) {
     return 0;
   }
-  input_bytes = input_bytes + input_offset;
-  output_bytes = output_bytes + output_offset;
   
   int output_len = 0;
-  if (!dlsym_EVP_CipherUpdate(context, output_bytes, &output_len,  \
-      input_bytes, input_len)) {
+  if (!dlsym_EVP_CipherUpdate(context, ADDRESS(output), &output_len,  \
+      ADDRESS(input), input_len)) {
+    dlsym_EVP_CIPHER_CTX_cleanup(context);
+    THROW(env, "java/lang/InternalError", "Error in EVP_CipherUpdate.");
+    return 0;
+  }
+  return output_len;
+}
+
+/*
+ * Process count independent updates in one JNI call. The IV of an update
+ * is re-initialized first if its element of ivs is not NULL. output_lens
+ * holds the maximum output length of each update on entry, and the number
+ * of bytes stored on return. If an update fails, the updates before it are
+ * done.
+ */
+JNIEXPORT void JNICALL Java_com_intel_cryptostream_OpensslCipherNative_updateBatch
+    (JNIEnv *env, jclass clazz, jlongArray ctxs, jobjectArray ivs,
+    jlongArray input_addresses, jintArray input_lens,
+    jlongArray output_addresses, jintArray output_lens, jint count)
+{
+  if (count <= 0) {
+    return;
+  }
+  jlong *longs = malloc(sizeof(jlong) * 3 * count);
+  jint *ints = malloc(sizeof(jint) * 2 * count);
+  if (longs == NULL || ints == NULL) {
+    free(longs);
+    free(ints);
+    THROW(env, "java/lang/OutOfMemoryError", NULL);
+    return;
+  }
+  jlong *contexts = longs;
+  jlong *inputs = longs + count;
+  jlong *outputs = longs + 2 * count;
+  jint *in_lens = ints;
+  jint *out_lens = ints + count;
+  (*env)->GetLongArrayRegion(env, ctxs, 0, count, contexts);
+  (*env)->GetLongArrayRegion(env, input_addresses, 0, count, inputs);
+  (*env)->GetIntArrayRegion(env, input_lens, 0, count, in_lens);
+  (*env)->GetLongArrayRegion(env, output_addresses, 0, count, outputs);
+  (*env)->GetIntArrayRegion(env, output_lens, 0, count, out_lens);
+  
+  int i;
+  for (i = 0; i < count; i++) {
+    EVP_CIPHER_CTX *context = CONTEXT(contexts[i]);
+    if (!check_update_max_output_len(context, in_lens[i], out_lens[i])) {
+      THROW(env, "javax/crypto/ShortBufferException",  \
+          "Output buffer is not sufficient.");
+      break;
+    }
+    jbyteArray iv = (*env)->GetObjectArrayElement(env, ivs, i);
+    if (iv != NULL) {
+      int rc = init_iv(env, context, iv);
+      (*env)->DeleteLocalRef(env, iv);
+      if (!rc) {
+        break;
+      }
+    }
+    
+    int output_len = 0;
+    if (!dlsym_EVP_CipherUpdate(context, ADDRESS(outputs[i]), &output_len,  \
+        ADDRESS(inputs[i]), in_lens[i])) {
+      dlsym_EVP_CIPHER_CTX_cleanup(context);
+      THROW(env, "java/lang/InternalError", "Error in EVP_CipherUpdate.");
+      break;
+    }
+    out_lens[i] = output_len;
+  }
+  
+  if (i == count) {
+    (*env)->SetIntArrayRegion(env, output_lens, 0, count, out_lens);
+  }
+  free(longs);
+  free(ints);
+}
+
+JNIEXPORT jint JNICALL Java_com_intel_cryptostream_OpensslCipherNative_updateByteArray
+    (JNIEnv *env, jclass clazz, jlong ctx, jbyteArray iv, jbyteArray input,
+    jint input_offset, jint input_len, jbyteArray output, jint output_offset,
+    jint max_output_len)
+{
+  EVP_CIPHER_CTX *context = CONTEXT(ctx);
+  if (!check_update_max_output_len(context, input_len, max_output_len)) {
+    THROW(env, "javax/crypto/ShortBufferException",  \
+        "Output buffer is not sufficient.");
+    return 0;
+  }
+  // The IV is copied before entering the critical region.
+  if (iv != NULL && !init_iv(env, context, iv)) {
+    return 0;
+  }
+  /*
+   * The arrays are pinned without a copy where the VM allows it. No JNI
+   * call is made until they are released, input and output may be the
+   * same array.
+   */
+  unsigned char *input_bytes = (*env)->GetPrimitiveArrayCritical(env, input, 0);
+  if (input_bytes == NULL) {
+    THROW(env, "java/lang/InternalError", "Cannot get array elements.");
+    return 0;
+  }
+  unsigned char *output_bytes = (*env)->GetPrimitiveArrayCritical(env, output, 0);
+  if (output_bytes == NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, input, input_bytes, JNI_ABORT);
+    THROW(env, "java/lang/InternalError", "Cannot get array elements.");
+    return 0;
+  }
+  
+  int output_len = 0;
+  int rc = dlsym_EVP_CipherUpdate(context, output_bytes + output_offset,  \
+      &output_len, input_bytes + input_offset, input_len);
+  (*env)->ReleasePrimitiveArrayCritical(env, output, output_bytes, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, input, input_bytes, JNI_ABORT);
+  if (!rc) {
     dlsym_EVP_CIPHER_CTX_cleanup(context);
     THROW(env, "java/lang/InternalError", "Error in EVP_CipherUpdate.");
     return 0;
@@ -307,10 +643,10 @@ JNIEXPORT jint JNICALL Java_com_intel_cryptostream_OpensslCipherNative_update
 static int check_doFinal_max_output_len(EVP_CIPHER_CTX *context, 
     int max_output_len)
 {
-  if (context->flags & EVP_CIPH_NO_PADDING) {
+  if (ctx_no_padding(context)) {
     return 1;
   } else {
-    int b = context->cipher->block_size;
+    int b = ctx_block_size(context);
     if (max_output_len >= b) {
       return 1;
     }
@@ -320,8 +656,7 @@ static int check_doFinal_max_output_len(EVP_CIPHER_CTX *context,
 }
 
 JNIEXPORT jint JNICALL Java_com_intel_cryptostream_OpensslCipherNative_doFinal
-    (JNIEnv *env, jclass clazz, jlong ctx, jobject output, jint offset,
-    jint max_output_len)
+    (JNIEnv *env, jclass clazz, jlong ctx, jlong output, jint max_output_len)
 {
   EVP_CIPHER_CTX *context = CONTEXT(ctx);
   if (!check_doFinal_max_output_len(context, max_output_len)) {
@@ -329,15 +664,9 @@ JNIEXPORT jint JNICALL Java_com_intel_cryptostream_OpensslCipherNative_doFinal
         "Output buffer is not sufficient.");
     return 0;
   }
-  unsigned char *output_bytes = (*env)->GetDirectBufferAddress(env, output);
-  if (output_bytes == NULL) {
-    THROW(env, "java/lang/InternalError", "Cannot get buffer address.");
-    return 0;
-  }
-  output_bytes = output_bytes + offset;
   
   int output_len = 0;
-  if (!dlsym_EVP_CipherFinal_ex(context, output_bytes, &output_len)) {
+  if (!dlsym_EVP_CipherFinal_ex(context, ADDRESS(output), &output_len)) {
     dlsym_EVP_CIPHER_CTX_cleanup(context);
     THROW(env, "java/lang/InternalError", "Error in EVP_CipherFinal_ex.");
     return 0;
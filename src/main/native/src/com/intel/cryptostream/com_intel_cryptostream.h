@@ -209,6 +209,12 @@ static FARPROC WINAPI do_dlsym(JNIEnv *env, HMODULE handle, LPCSTR symbol) {
  */
 #define JLONG(context) ((jlong)((ptrdiff_t)(context)))
 
+/**
+ * A helper macro to convert the java native address of a direct buffer
+ * to a byte pointer.
+ */
+#define ADDRESS(address) ((unsigned char*)((ptrdiff_t)(address)))
+
 #define KEY_LENGTH_128 16
 #define KEY_LENGTH_256 32
 #define IV_LENGTH 16
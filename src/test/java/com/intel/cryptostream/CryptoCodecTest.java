@@ -21,18 +21,25 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.SecureRandom;
 import java.util.Random;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.intel.cryptostream.CryptoCodec;
 import com.intel.cryptostream.CryptoInputStream;
 import com.intel.cryptostream.CryptoOutputStream;
+import com.intel.cryptostream.random.OpensslSecureRandom;
 import com.intel.cryptostream.utils.ReflectionUtils;
 
 public class CryptoCodecTest {
@@ -48,6 +55,8 @@ public class CryptoCodecTest {
       "com.intel.cryptostream.JceAesCtrCryptoCodec";
   private final String opensslCodecClass = 
       "com.intel.cryptostream.OpensslAesCtrCryptoCodec";
+  private final String ffmCodecClass = 
+      "com.intel.cryptostream.FfmOpensslAesCtrCryptoCodec";
 
   @Before
   public void setUp() throws IOException {
@@ -84,6 +93,79 @@ public class CryptoCodecTest {
     cryptoCodecTest(count, opensslCodecClass, jceCodecClass, iv);
   }
 
+  @Test
+  public void testCryptoStreamProvider() throws Exception {
+    Assert.assertEquals(null, OpensslCipher.getLoadingFailureReason());
+    CryptoStreamProvider provider = new CryptoStreamProvider();
+    SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+    byte[] data = new byte[count];
+    new SecureRandom().nextBytes(data);
+    
+    Cipher jce = Cipher.getInstance("AES/CTR/NoPadding", "SunJCE");
+    jce.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+    byte[] expected = jce.doFinal(data);
+    
+    Cipher openssl = Cipher.getInstance("AES/CTR/NoPadding", provider);
+    openssl.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+    byte[] encrypted = new byte[count];
+    int n = openssl.update(data, 0, 1001, encrypted, 0);
+    n += openssl.doFinal(data, 1001, count - 1001, encrypted, n);
+    Assert.assertEquals(count, n);
+    Assert.assertArrayEquals(expected, encrypted);
+    // doFinal resets to the initial IV.
+    Assert.assertArrayEquals(expected, openssl.doFinal(data));
+    
+    openssl.init(Cipher.DECRYPT_MODE, keySpec, openssl.getParameters());
+    Assert.assertArrayEquals(data, openssl.doFinal(encrypted));
+    
+    try {
+      openssl.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[24], "AES"),
+          new IvParameterSpec(iv));
+      Assert.fail("AES-192 is not supported.");
+    } catch (InvalidKeyException e) {
+    }
+    
+    // The native secure random needs the locking callbacks of OpenSSL 1.0.
+    if (OpensslSecureRandom.isNativeCodeLoaded()) {
+      SecureRandom random =
+          SecureRandom.getInstance("OpensslSecureRandom", provider);
+      random.nextBytes(new byte[16]);
+    } else {
+      Assert.assertNull(provider.getService("SecureRandom",
+          "OpensslSecureRandom"));
+    }
+  }
+
+  @Test
+  public void testOpensslBatch() throws Exception {
+    Assert.assertEquals(null, OpensslCipher.getLoadingFailureReason());
+    CryptoStreamTest.batchTest((CryptoCodec)ReflectionUtils.newInstance(
+        ReflectionUtils.getClassByName(opensslCodecClass)));
+  }
+
+  /** Runs on JDK 22 or later, the codec is in the multi-release classes. */
+  @Test
+  public void testFfmOpensslAesCtrCryptoCodec() throws Exception {
+    CryptoCodec codec = null;
+    try {
+      codec = (CryptoCodec)ReflectionUtils.newInstance(
+          ReflectionUtils.getClassByName(ffmCodecClass));
+    } catch (ClassNotFoundException e) {
+      LOG.info("Skipping, " + ffmCodecClass + " needs JDK 22.");
+    }
+    Assume.assumeNotNull(codec);
+    cryptoCodecTest(0, ffmCodecClass, ffmCodecClass, iv);
+    cryptoCodecTest(count, ffmCodecClass, ffmCodecClass, iv);
+    cryptoCodecTest(count, ffmCodecClass, jceCodecClass, iv);
+    cryptoCodecTest(count, jceCodecClass, ffmCodecClass, iv);
+    // Overflow test, IV: xx xx xx xx xx xx xx xx ff ff ff ff ff ff ff ff 
+    for(int i = 0; i < 8; i++) {
+      iv[8 + i] = (byte) 0xff;
+    }
+    cryptoCodecTest(count, ffmCodecClass, jceCodecClass, iv);
+    CryptoStreamTest.batchTest(codec);
+  }
+
   private void cryptoCodecTest(int count, String encCodecClass,
       String decCodecClass, byte[] iv) throws IOException,
       GeneralSecurityException {
@@ -0,0 +1,953 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.intel.cryptostream.utils.ChannelOutputStream;
+import com.intel.cryptostream.utils.IOUtils;
+import com.intel.cryptostream.utils.ReflectionUtils;
+
+public class CryptoStreamTest {
+  private static final int bufferSize = 4096;
+
+  private byte[] key = new byte[16];
+  private byte[] iv = new byte[16];
+  private byte[] data = new byte[100000];
+  private File file;
+  private CryptoCodec codec;
+
+  private final String jceCodecClass = 
+      "com.intel.cryptostream.JceAesCtrCryptoCodec";
+
+  @Before
+  public void setUp() throws Exception {
+    Random random = new SecureRandom();
+    random.nextBytes(key);
+    random.nextBytes(iv);
+    random.nextBytes(data);
+    file = File.createTempFile("cryptostream", ".test");
+    codec = (CryptoCodec)ReflectionUtils.newInstance(
+        ReflectionUtils.getClassByName(jceCodecClass));
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testChannelWrite() throws Exception {
+    FileOutputStream fos = new FileOutputStream(file);
+    CryptoOutputStream out = new CryptoOutputStream(
+        new ChannelOutputStream(fos.getChannel()), codec, bufferSize, key, iv);
+    // Mix byte[], heap and direct ByteBuffer writes at unaligned offsets.
+    out.write(data, 0, 1000);
+    ByteBuffer heap = ByteBuffer.wrap(data, 1000, 9001);
+    Assert.assertEquals(9001, out.write(heap));
+    Assert.assertFalse(heap.hasRemaining());
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length - 10001);
+    direct.put(data, 10001, direct.remaining());
+    direct.flip();
+    Assert.assertEquals(data.length - 10001, out.write(direct));
+    out.close();
+    Assert.assertFalse(out.isOpen());
+
+    Assert.assertArrayEquals(data, readAll(new FileInputStream(file)));
+  }
+
+  @Test
+  public void testPositionedRead() throws Exception {
+    writeFile();
+    final CryptoInputStream in = new CryptoInputStream(
+        new FileInputStream(file), codec, bufferSize, key, iv);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[8];
+    for (int i = 0; i < readers.length; i++) {
+      final long seed = i;
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          try {
+            for (int j = 0; j < 200; j++) {
+              int pos = random.nextInt(data.length);
+              int len = Math.min(random.nextInt(3 * bufferSize), 
+                  data.length - pos);
+              ByteBuffer buf = (j % 2 == 0) ? ByteBuffer.allocate(len) : 
+                  ByteBuffer.allocateDirect(len);
+              in.readFully(pos, buf);
+              buf.flip();
+              Assert.assertEquals(ByteBuffer.wrap(data, pos, len), buf);
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      readers[i].start();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    
+    // Positioned reads don't move the stream offset.
+    byte[] buf = new byte[100];
+    Assert.assertEquals(100, in.read(data.length - 100L, buf, 0, 100));
+    Assert.assertEquals(-1, in.read(data.length, buf, 0, 100));
+    Assert.assertArrayEquals(data, readDecrypted(in));
+  }
+
+  @Test
+  public void testFileChannel() throws Exception {
+    writeFile();
+    final byte[] expected = data.clone();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    final CryptoFileChannel channel = new CryptoFileChannel(raf.getChannel(),
+        codec, bufferSize, key, iv);
+    
+    // Concurrent pwrite and pread on disjoint regions.
+    final int region = data.length / 8;
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] workers = new Thread[8];
+    for (int i = 0; i < workers.length; i++) {
+      final int base = i * region;
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          Random random = new Random(base);
+          try {
+            for (int j = 0; j < 100; j++) {
+              int pos = base + random.nextInt(region);
+              int len = random.nextInt(base + region - pos + 1);
+              byte[] bytes = new byte[len];
+              random.nextBytes(bytes);
+              ByteBuffer src = (j % 2 == 0) ? ByteBuffer.wrap(bytes) :
+                  (ByteBuffer) ByteBuffer.allocateDirect(len).put(bytes).flip();
+              Assert.assertEquals(len, channel.write(src, pos));
+              System.arraycopy(bytes, 0, expected, pos, len);
+              
+              ByteBuffer dst = ByteBuffer.allocate(len);
+              while (dst.hasRemaining()) {
+                channel.read(dst, pos + dst.position());
+              }
+              Assert.assertArrayEquals(bytes, dst.array());
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    
+    // Relative read, truncate and append.
+    ByteBuffer buf = ByteBuffer.allocate(1000);
+    channel.position(data.length - 500);
+    Assert.assertEquals(500, channel.read(buf));
+    Assert.assertEquals(-1, channel.read(buf));
+    channel.truncate(data.length - 100);
+    Assert.assertEquals(data.length - 100, channel.position());
+    channel.close();
+    
+    System.arraycopy(data, data.length - 100, expected, data.length - 100, 
+        100);
+    CryptoFileChannel appender = new CryptoFileChannel(
+        new FileOutputStream(file, true).getChannel(), codec, bufferSize, key,
+        iv, true);
+    Assert.assertEquals(data.length - 100, appender.position());
+    appender.write(ByteBuffer.wrap(data, data.length - 100, 100));
+    appender.close();
+    
+    data = expected;
+    Assert.assertArrayEquals(data, readAll(new FileInputStream(file)));
+  }
+
+  @Test
+  public void testMappedStreams() throws Exception {
+    // Small windows and an unaligned buffer size so chunks cross windows.
+    final int windowSize = 8192;
+    final int mappedBufferSize = 1008;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedCryptoOutputStream out = new MappedCryptoOutputStream(
+        raf.getChannel(), codec, mappedBufferSize, windowSize, key, iv, 0);
+    out.write(data, 0, 1001);
+    out.write(ByteBuffer.wrap(data, 1001, 30000));
+    out.close();
+    Assert.assertEquals(31001, file.length());
+    
+    // Continue at an unaligned offset with a second writer.
+    raf = new RandomAccessFile(file, "rw");
+    out = new MappedCryptoOutputStream(raf.getChannel(), codec, 
+        mappedBufferSize, windowSize, key, iv, 31001);
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length - 31001);
+    direct.put(data, 31001, direct.remaining());
+    direct.flip();
+    Assert.assertEquals(data.length - 31001, out.write(direct));
+    out.close();
+    Assert.assertEquals(data.length, file.length());
+    
+    Assert.assertArrayEquals(data, readAll(new FileInputStream(file)));
+    
+    writeFile();
+    MappedCryptoInputStream in = new MappedCryptoInputStream(
+        new RandomAccessFile(file, "r").getChannel(), codec, mappedBufferSize,
+        windowSize, 2, key, iv);
+    in.seek(54321);
+    byte[] buf = new byte[5000];
+    IOUtils.readFully(in, buf, 0, buf.length);
+    Assert.assertArrayEquals(Arrays.copyOfRange(data, 54321, 59321), buf);
+    in.seek(59000);
+    Assert.assertEquals(data[59000] & 0xff, in.read());
+    in.seek(0);
+    Assert.assertArrayEquals(data, readDecrypted(in));
+  }
+
+  @Test
+  public void testReadAheadStream() throws Exception {
+    // Unaligned stream offset, so the first chunk has padding.
+    final long streamOffset = 13;
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    CryptoOutputStream out = new CryptoOutputStream(bos, codec, bufferSize, 
+        key, iv, streamOffset);
+    out.write(data);
+    out.close();
+    final byte[] encrypted = bos.toByteArray();
+    
+    DirectBufferPool pool = DirectBufferPool.getInstance();
+    long outstanding = pool.getOutstandingBytes();
+    ReadAheadCryptoInputStream in = new ReadAheadCryptoInputStream(
+        new ShortReadInputStream(encrypted, Integer.MAX_VALUE), codec, 
+        bufferSize, 2, key, iv, streamOffset);
+    Assert.assertArrayEquals(data, readDecrypted(in));
+    Assert.assertEquals(outstanding, pool.getOutstandingBytes());
+    
+    // Channel reads, skip, and close in the middle of the stream.
+    in = new ReadAheadCryptoInputStream(new ChannelInputStream(encrypted), 
+        codec, bufferSize, 3, key, iv, streamOffset);
+    Assert.assertEquals(data[0] & 0xff, in.read());
+    Assert.assertEquals(9999, in.skip(9999));
+    ByteBuffer buf = ByteBuffer.allocateDirect(20000);
+    while (buf.hasRemaining()) {
+      Assert.assertTrue(in.read(buf) > 0);
+    }
+    buf.flip();
+    Assert.assertEquals(ByteBuffer.wrap(data, 10000, 20000), buf);
+    in.close();
+    Assert.assertFalse(in.isOpen());
+    Assert.assertEquals(outstanding, pool.getOutstandingBytes());
+    
+    // The read reaching a failure of the underlying stream throws.
+    in = new ReadAheadCryptoInputStream(
+        new ShortReadInputStream(encrypted, 50000), codec, bufferSize, 2, 
+        key, iv, streamOffset);
+    byte[] b = new byte[data.length];
+    int off = 0;
+    try {
+      int n;
+      while ((n = in.read(b, off, b.length - off)) > 0) {
+        off += n;
+      }
+      Assert.fail("Read past the failure.");
+    } catch (IOException e) {
+      Assert.assertTrue(off <= 50000);
+      Assert.assertArrayEquals(Arrays.copyOf(data, off), 
+          Arrays.copyOf(b, off));
+    }
+    try {
+      in.read();
+      Assert.fail("Read after the failure.");
+    } catch (IOException e) {
+      // Expected.
+    }
+    in.close();
+    Assert.assertEquals(outstanding, pool.getOutstandingBytes());
+  }
+
+  @Test
+  public void testParallelCtrEngine() throws Exception {
+    // Unaligned stream offset, so the first chunk has padding.
+    final long streamOffset = 13;
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    CryptoOutputStream out = new CryptoOutputStream(bos, codec, bufferSize, 
+        key, iv, streamOffset);
+    out.write(data);
+    out.close();
+    byte[] expected = bos.toByteArray();
+    
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ParallelCtrEngine engine = new ParallelCtrEngine(codec, executor, 
+          8192, bufferSize);
+      byte[] encrypted = new byte[data.length];
+      engine.encrypt(key, iv, streamOffset, data, 0, data.length, encrypted, 
+          0);
+      Assert.assertArrayEquals(expected, encrypted);
+      
+      // In place decryption.
+      engine.decrypt(key, iv, streamOffset, encrypted, 0, encrypted.length, 
+          encrypted, 0);
+      Assert.assertArrayEquals(data, encrypted);
+      
+      // Direct buffers.
+      ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+      in.put(expected);
+      in.flip();
+      ByteBuffer decrypted = ByteBuffer.allocateDirect(data.length);
+      engine.decrypt(key, iv, streamOffset, in, decrypted);
+      Assert.assertFalse(in.hasRemaining());
+      Assert.assertFalse(decrypted.hasRemaining());
+      decrypted.flip();
+      byte[] result = new byte[data.length];
+      decrypted.get(result);
+      Assert.assertArrayEquals(data, result);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelRead() throws Exception {
+    final long streamOffset = 13;
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    CryptoOutputStream out = new CryptoOutputStream(bos, codec, bufferSize, 
+        key, iv, streamOffset);
+    out.write(data);
+    out.close();
+    final byte[] encrypted = bos.toByteArray();
+    
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ParallelCtrEngine engine = new ParallelCtrEngine(codec, executor, 
+          8192, bufferSize);
+      // Large reads end unaligned, small ones go through the buffers.
+      final int[] sizes = {5, 30000, 30000, 100, 20000, 20000, 7, 40000};
+      CryptoInputStream in = new CryptoInputStream(
+          new ByteArrayInputStream(encrypted), codec, bufferSize, key, iv, 
+          streamOffset, engine);
+      byte[] b = new byte[data.length];
+      int off = 0;
+      for (int i = 0; off < b.length; i++) {
+        off += in.read(b, off, Math.min(sizes[i % sizes.length], 
+            b.length - off));
+      }
+      Assert.assertArrayEquals(data, b);
+      Assert.assertEquals(-1, in.read());
+      in.close();
+      
+      in = new CryptoInputStream(new ChannelInputStream(encrypted), codec, 
+          bufferSize, key, iv, streamOffset, engine);
+      ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+      for (int i = 0; buf.position() < buf.capacity(); i++) {
+        buf.limit(Math.min(buf.position() + sizes[i % sizes.length], 
+            buf.capacity()));
+        Assert.assertTrue(in.read(buf) > 0);
+      }
+      buf.flip();
+      Assert.assertEquals(ByteBuffer.wrap(data), buf);
+      in.close();
+      
+      writeFile();
+      in = new CryptoInputStream(new FileInputStream(file), codec, 
+          bufferSize, key, iv, 0, engine);
+      buf = ByteBuffer.allocateDirect(30000);
+      in.readFully(54321, buf);
+      buf.flip();
+      Assert.assertEquals(ByteBuffer.wrap(data, 54321, 30000), buf);
+      in.readFully(1001, b, 0, 40000);
+      Assert.assertArrayEquals(Arrays.copyOfRange(data, 1001, 41001), 
+          Arrays.copyOf(b, 40000));
+      in.close();
+    } finally {
+      executor.shutdown();
+    }
+    
+    // Read-ahead buffers larger than a chunk.
+    System.setProperty(ConfigurationKeys.CRYPTOSTREAM_PARALLEL_READ_KEY, 
+        "true");
+    System.setProperty(ConfigurationKeys.CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_KEY,
+        "8192");
+    try {
+      Assert.assertArrayEquals(data, readDecrypted(
+          new ReadAheadCryptoInputStream(new ByteArrayInputStream(encrypted), 
+              codec, 32768, 2, key, iv, streamOffset)));
+    } finally {
+      System.clearProperty(ConfigurationKeys.CRYPTOSTREAM_PARALLEL_READ_KEY);
+      System.clearProperty(
+          ConfigurationKeys.CRYPTOSTREAM_PARALLEL_CHUNK_SIZE_KEY);
+    }
+  }
+
+  @Test
+  public void testDirectBufferPool() throws Exception {
+    DirectBufferPool pool = new DirectBufferPool(8192);
+    ByteBuffer buf = pool.getBuffer(1000);
+    Assert.assertTrue(buf.isDirect());
+    Assert.assertEquals(1000, buf.capacity());
+    Assert.assertEquals(1000, pool.getOutstandingBytes());
+    Assert.assertEquals(1, pool.getMisses());
+    pool.returnBuffer(buf);
+    Assert.assertEquals(0, pool.getOutstandingBytes());
+    
+    // Same size class, served from the thread cache.
+    buf = pool.getBuffer(1024);
+    Assert.assertEquals(1, pool.getHits());
+    pool.returnBuffer(buf);
+    
+    // Beyond the thread cache, the shared queue is capped.
+    ByteBuffer[] bufs = new ByteBuffer[6];
+    for (int i = 0; i < bufs.length; i++) {
+      bufs[i] = pool.getBuffer(2048);
+    }
+    for (ByteBuffer b : bufs) {
+      pool.returnBuffer(b);
+    }
+    Assert.assertEquals(8192, pool.getPooledBytes());
+    pool.clear();
+    Assert.assertEquals(0, pool.getPooledBytes());
+    
+    // Streams return their buffers on close.
+    DirectBufferPool shared = DirectBufferPool.getInstance();
+    long outstanding = shared.getOutstandingBytes();
+    writeFile();
+    Assert.assertEquals(outstanding, shared.getOutstandingBytes());
+    Assert.assertArrayEquals(data, readAll(new FileInputStream(file)));
+    Assert.assertEquals(outstanding, shared.getOutstandingBytes());
+  }
+
+  @Test
+  public void testCipherPool() throws Exception {
+    System.setProperty(
+        ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_KEY, "1");
+    CryptoCodec pooled;
+    try {
+      pooled = (CryptoCodec)ReflectionUtils.newInstance(
+          ReflectionUtils.getClassByName(jceCodecClass));
+    } finally {
+      System.clearProperty(
+          ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CIPHER_POOL_SIZE_KEY);
+    }
+    Encryptor e1 = pooled.borrowEncryptor();
+    Encryptor e2 = pooled.borrowEncryptor();
+    Assert.assertNotSame(e1, e2);
+    pooled.returnEncryptor(e1);
+    pooled.returnEncryptor(e2); // Pool is full, dropped.
+    Assert.assertSame(e1, pooled.borrowEncryptor());
+    Assert.assertNotSame(e2, pooled.borrowEncryptor());
+    
+    Decryptor d = pooled.borrowDecryptor();
+    pooled.returnDecryptor(d);
+    Assert.assertSame(d, pooled.borrowDecryptor());
+    
+    // Streams give them back on close and re-initialize them when reused.
+    codec = pooled;
+    writeFile();
+    writeFile();
+    Assert.assertArrayEquals(data, readAll(new FileInputStream(file)));
+    Assert.assertArrayEquals(data, readAll(new FileInputStream(file)));
+  }
+
+  @Test
+  public void testCipherReset() throws Exception {
+    final int blockSize = codec.getCipherSuite().getAlgorithmBlockSize();
+    final long counter = 1000;
+    final int len = 4096;
+    ByteBuffer in = ByteBuffer.allocateDirect(len);
+    in.put(data, (int) (counter * blockSize), len);
+    ByteBuffer expected = ByteBuffer.allocateDirect(len);
+    ByteBuffer actual = ByteBuffer.allocateDirect(len);
+    
+    byte[] counterIV = new byte[iv.length];
+    codec.calculateIV(iv, counter, counterIV);
+    Encryptor fresh = codec.createEncryptor();
+    fresh.init(key, counterIV);
+    in.flip();
+    fresh.encrypt(in, expected);
+    
+    // Reset after some other data, only the IV changes.
+    Encryptor reset = codec.createEncryptor();
+    reset.init(key, iv);
+    in.rewind();
+    reset.encrypt(in, actual);
+    reset.reset(counter);
+    in.rewind();
+    actual.clear();
+    reset.encrypt(in, actual);
+    expected.flip();
+    actual.flip();
+    Assert.assertEquals(expected, actual);
+    
+    // Many short positioned reads, each one resets the decryptor.
+    writeFile();
+    CryptoInputStream cis = new CryptoInputStream(new FileInputStream(file),
+        codec, bufferSize, key, iv);
+    Random r = new Random(0);
+    byte[] buf = new byte[len];
+    for (int i = 0; i < 100; i++) {
+      int pos = r.nextInt(data.length - len);
+      cis.readFully(pos, buf, 0, len);
+      Assert.assertArrayEquals(Arrays.copyOfRange(data, pos, pos + len), buf);
+    }
+    cis.close();
+  }
+
+  @Test
+  public void testHeapArrays() throws Exception {
+    // The byte[] API matches the direct buffer API, also in place.
+    Encryptor direct = codec.createEncryptor();
+    direct.init(key, iv);
+    ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+    in.put(data);
+    in.flip();
+    ByteBuffer expected = ByteBuffer.allocateDirect(data.length);
+    direct.encrypt(in, expected);
+    expected.flip();
+    Encryptor heap = codec.createEncryptor();
+    heap.init(key, iv);
+    byte[] encrypted = data.clone();
+    heap.encrypt(encrypted, 0, 1001, encrypted, 0);
+    heap.encrypt(encrypted, 1001, data.length - 1001, encrypted, 1001);
+    Assert.assertEquals(expected, ByteBuffer.wrap(encrypted));
+    
+    // Large unaligned writes and reads on plain streams.
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    CryptoOutputStream out = new CryptoOutputStream(bos, codec, bufferSize,
+        key, iv);
+    out.write(data, 0, 7);
+    out.write(data, 7, bufferSize - 7);
+    out.write(data, bufferSize, data.length - bufferSize);
+    out.close();
+    Assert.assertArrayEquals(encrypted, bos.toByteArray());
+    
+    CryptoInputStream cis = new CryptoInputStream(
+        new ByteArrayInputStream(encrypted), codec, bufferSize, key, iv);
+    byte[] decrypted = new byte[data.length];
+    Assert.assertEquals(13, cis.read(decrypted, 0, 13));
+    Assert.assertEquals(100, cis.skip(100));
+    System.arraycopy(data, 13, decrypted, 13, 100);
+    int off = 113;
+    while (off < decrypted.length) {
+      off += cis.read(decrypted, off, decrypted.length - off);
+    }
+    cis.close();
+    Assert.assertArrayEquals(data, decrypted);
+  }
+
+  @Test
+  public void testInPlace() throws Exception {
+    Encryptor encryptor = codec.createEncryptor();
+    Assert.assertTrue(encryptor.isInPlaceSupported());
+    encryptor.init(key, iv);
+    ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+    buf.put(data);
+    buf.flip();
+    encryptor.encrypt(buf);
+    Assert.assertFalse(buf.hasRemaining());
+    byte[] expected = data.clone();
+    Encryptor heap = codec.createEncryptor();
+    heap.init(key, iv);
+    heap.encrypt(expected, 0, expected.length, expected, 0);
+    buf.flip();
+    Assert.assertEquals(ByteBuffer.wrap(expected), buf);
+    
+    Decryptor decryptor = codec.createDecryptor();
+    decryptor.init(key, iv);
+    decryptor.decrypt(buf);
+    buf.flip();
+    Assert.assertEquals(ByteBuffer.wrap(data), buf);
+    
+    // A stream holds a single direct buffer.
+    DirectBufferPool pool = DirectBufferPool.getInstance();
+    long outstanding = pool.getOutstandingBytes();
+    CryptoOutputStream out = new CryptoOutputStream(
+        new FileOutputStream(file), codec, bufferSize, key, iv);
+    Assert.assertEquals(outstanding + bufferSize, pool.getOutstandingBytes());
+    out.write(data);
+    out.close();
+    Assert.assertEquals(outstanding, pool.getOutstandingBytes());
+    
+    // Unaligned positioned read into a direct buffer, decrypted in place.
+    CryptoInputStream cis = new CryptoInputStream(new FileInputStream(file),
+        codec, bufferSize, key, iv);
+    Assert.assertEquals(outstanding + bufferSize, pool.getOutstandingBytes());
+    ByteBuffer dst = ByteBuffer.allocateDirect(10000);
+    cis.readFully(17, dst);
+    dst.flip();
+    Assert.assertEquals(ByteBuffer.wrap(data, 17, 10000), dst);
+    Assert.assertArrayEquals(data, readDecrypted(cis));
+    Assert.assertEquals(outstanding, pool.getOutstandingBytes());
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    batchTest(codec);
+  }
+
+  /** Encrypt records with their own IVs in one batch and decrypt them. */
+  static void batchTest(CryptoCodec codec) throws Exception {
+    final int count = 50;
+    Random r = new Random(0);
+    byte[] key = new byte[16];
+    r.nextBytes(key);
+    Encryptor[] encryptors = new Encryptor[count];
+    Decryptor[] decryptors = new Decryptor[count];
+    ByteBuffer[] plain = new ByteBuffer[count];
+    ByteBuffer[] encrypted = new ByteBuffer[count];
+    ByteBuffer[] decrypted = new ByteBuffer[count];
+    byte[][] expected = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      byte[] iv = new byte[16];
+      r.nextBytes(iv);
+      expected[i] = new byte[200 + r.nextInt(1800)];
+      r.nextBytes(expected[i]);
+      plain[i] = ByteBuffer.allocateDirect(expected[i].length);
+      plain[i].put(expected[i]);
+      plain[i].flip();
+      encrypted[i] = ByteBuffer.allocateDirect(expected[i].length);
+      decrypted[i] = ByteBuffer.allocateDirect(expected[i].length);
+      encryptors[i] = codec.createEncryptor();
+      encryptors[i].init(key, iv);
+      decryptors[i] = codec.createDecryptor();
+      decryptors[i].init(key, iv);
+    }
+    codec.encryptBatch(encryptors, plain, encrypted);
+    for (int i = 0; i < count; i++) {
+      Assert.assertFalse(plain[i].hasRemaining());
+      encrypted[i].flip();
+    }
+    codec.decryptBatch(decryptors, encrypted, decrypted);
+    for (int i = 0; i < count; i++) {
+      decrypted[i].flip();
+      Assert.assertEquals(ByteBuffer.wrap(expected[i]), decrypted[i]);
+    }
+  }
+
+  @Test
+  public void testCryptoService() throws Exception {
+    final CryptoService service = new CryptoService(codec, 16);
+    final int threads = 8;
+    final int requests = 200;
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      final int seed = t;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Random r = new Random(seed);
+            for (int i = 0; i < requests; i++) {
+              byte[] iv = new byte[16];
+              r.nextBytes(iv);
+              int len = 1 + r.nextInt(2000);
+              int off = r.nextInt(data.length - len);
+              ByteBuffer buf = i % 2 == 0 ? ByteBuffer.allocateDirect(len) :
+                  ByteBuffer.allocate(len);
+              buf.put(data, off, len);
+              buf.flip();
+              Assert.assertSame(buf, service.encrypt(key, iv, buf).get());
+              Assert.assertEquals(0, buf.position());
+              
+              byte[] expected = Arrays.copyOfRange(data, off, off + len);
+              Encryptor encryptor = codec.createEncryptor();
+              encryptor.init(key, iv);
+              encryptor.encrypt(expected, 0, len, expected, 0);
+              Assert.assertEquals(ByteBuffer.wrap(expected), buf);
+              
+              service.decrypt(key, iv, buf).get();
+              Assert.assertEquals(ByteBuffer.wrap(data, off, len), buf);
+            }
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    Assert.assertEquals(0, service.getQueueDepth());
+    Assert.assertTrue(service.getBatches() > 0);
+    Assert.assertTrue(service.getBatchSizePercentile(100) <= 16);
+    Assert.assertTrue(service.getLatencyPercentile(50) > 0);
+    Assert.assertTrue(service.getLatencyPercentile(99) >=
+        service.getLatencyPercentile(50));
+  }
+
+  @Test
+  public void testOneShot() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    CryptoOutputStream out = new CryptoOutputStream(bos, codec, bufferSize,
+        key, iv);
+    out.write(data, 0, 1024);
+    out.close();
+    byte[] expected = bos.toByteArray();
+
+    byte[] encrypted = new byte[1030];
+    codec.encrypt(key, iv, data, 0, 1024, encrypted, 6);
+    Assert.assertEquals(ByteBuffer.wrap(expected),
+        ByteBuffer.wrap(encrypted, 6, 1024));
+    byte[] decrypted = encrypted.clone();
+    codec.decrypt(key, iv, decrypted, 6, 1024, decrypted, 6);
+    Assert.assertEquals(ByteBuffer.wrap(data, 0, 1024),
+        ByteBuffer.wrap(decrypted, 6, 1024));
+
+    // Every pair of heap and direct buffers, the thread ciphers are reused.
+    for (int i = 0; i < 4; i++) {
+      ByteBuffer in = i % 2 == 0 ? ByteBuffer.allocate(1024) :
+          ByteBuffer.allocateDirect(1024);
+      in.put(data, 0, 1024);
+      in.flip();
+      ByteBuffer enc = i < 2 ? ByteBuffer.allocate(1024) :
+          ByteBuffer.allocateDirect(1024);
+      codec.encrypt(key, iv, in, enc);
+      Assert.assertFalse(in.hasRemaining());
+      enc.flip();
+      Assert.assertEquals(ByteBuffer.wrap(expected), enc);
+      in.clear();
+      codec.decrypt(key, iv, enc, in);
+      in.flip();
+      Assert.assertEquals(ByteBuffer.wrap(data, 0, 1024), in);
+    }
+
+    // A read-only heap input has no accessible array, the native codec
+    // only takes direct buffers.
+    List<CryptoCodec> codecs = Lists.newArrayList(codec);
+    if (OpensslCipher.getLoadingFailureReason() == null) {
+      codecs.add(new OpensslAesCtrCryptoCodec());
+    }
+    for (CryptoCodec c : codecs) {
+      ByteBuffer enc = ByteBuffer.allocate(1024);
+      c.encrypt(key, iv, ByteBuffer.wrap(data, 0, 1024).asReadOnlyBuffer(),
+          enc);
+      enc.flip();
+      Assert.assertEquals(ByteBuffer.wrap(expected), enc);
+      ByteBuffer dec = ByteBuffer.allocate(1024);
+      c.decrypt(key, iv, enc.asReadOnlyBuffer(), dec);
+      dec.flip();
+      Assert.assertEquals(ByteBuffer.wrap(data, 0, 1024), dec);
+    }
+  }
+
+  @Test
+  public void testHybridCodec() throws Exception {
+    // Two JCE engines, calls alternate between them at unaligned positions.
+    CryptoCodec hybrid = new HybridAesCtrCryptoCodec(codec,
+        new JceAesCtrCryptoCodec(), 1000);
+    CryptoOutputStream out = new CryptoOutputStream(
+        new FileOutputStream(file), hybrid, bufferSize, key, iv);
+    Random r = new Random(0);
+    int off = 0;
+    while (off < data.length) {
+      int len = Math.min(1 + r.nextInt(3000), data.length - off);
+      out.write(data, off, len);
+      off += len;
+    }
+    out.close();
+    byte[] expected = data.clone();
+    codec.encrypt(key, iv, expected, 0, expected.length, expected, 0);
+    byte[] encrypted = new byte[data.length];
+    InputStream fis = new FileInputStream(file);
+    IOUtils.readFully(fis, encrypted, 0, encrypted.length);
+    fis.close();
+    Assert.assertArrayEquals(expected, encrypted);
+
+    CryptoInputStream cis = new CryptoInputStream(
+        new FileInputStream(file), hybrid, bufferSize, key, iv);
+    byte[] buf = new byte[5000];
+    cis.read(37, buf, 0, 999);
+    Assert.assertEquals(ByteBuffer.wrap(data, 37, 999),
+        ByteBuffer.wrap(buf, 0, 999));
+    cis.read(12345, buf, 0, buf.length);
+    Assert.assertEquals(ByteBuffer.wrap(data, 12345, buf.length),
+        ByteBuffer.wrap(buf));
+    Assert.assertArrayEquals(data, readDecrypted(cis));
+
+    Assert.assertTrue(HybridAesCtrCryptoCodec.calibrate(
+        codec.createEncryptor(), codec.createEncryptor()) > 0);
+  }
+
+  @Test
+  public void testCodecRegistry() throws Exception {
+    // Without configuration the codecs are discovered, the instance is shared.
+    CryptoCodec shared = CryptoCodec.getInstance(
+        CipherSuite.AES_CTR_NOPADDING);
+    Assert.assertNotNull(shared);
+    Assert.assertSame(shared, CryptoCodec.getInstance(
+        CipherSuite.AES_CTR_NOPADDING));
+
+    String key = ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CODEC_CLASSES_KEY_PREFIX
+        + CipherSuite.AES_CTR_NOPADDING.getConfigSuffix();
+    System.setProperty(key, "com.intel.cryptostream.NoSuchCodec, " +
+        jceCodecClass);
+    try {
+      CryptoCodec configured = CryptoCodec.getInstance(
+          CipherSuite.AES_CTR_NOPADDING);
+      Assert.assertEquals(JceAesCtrCryptoCodec.class, configured.getClass());
+      Assert.assertSame(configured, CryptoCodec.getInstance(
+          CipherSuite.AES_CTR_NOPADDING));
+    } finally {
+      System.clearProperty(key);
+    }
+  }
+
+  @Test
+  public void testCodecCalibration() throws Exception {
+    List<Class<? extends CryptoCodec>> klasses =
+        Lists.<Class<? extends CryptoCodec>>newArrayList(
+            JceAesCtrCryptoCodec.class, OpensslAesCtrCryptoCodec.class);
+    CodecCalibration calibration = CodecCalibration.calibrate(
+        CipherSuite.AES_CTR_NOPADDING, klasses,
+        new HashMap<String, String>());
+    // Every codec is either measured or listed with the reason.
+    Assert.assertTrue(calibration.getThroughputs().containsKey(
+        JceAesCtrCryptoCodec.class.getName()));
+    Assert.assertEquals(klasses.size(), calibration.getThroughputs().size() +
+        calibration.getFailures().size());
+    Assert.assertTrue(calibration.getThroughputs().get(
+        calibration.getCodecClass().getName()).containsKey(
+            calibration.getBufferSize()));
+
+    System.setProperty(ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CODEC_AUTO_KEY,
+        "true");
+    try {
+      CryptoCodec auto = CryptoCodec.getInstance(
+          CipherSuite.AES_CTR_NOPADDING);
+      calibration = CodecCalibration.get(CipherSuite.AES_CTR_NOPADDING);
+      Assert.assertEquals(calibration.getCodecClass(), auto.getClass());
+      Assert.assertEquals(calibration.getBufferSize(),
+          CryptoStreamUtils.getBufferSize());
+    } finally {
+      System.clearProperty(
+          ConfigurationKeys.CRYPTOSTREAM_CRYPTO_CODEC_AUTO_KEY);
+    }
+  }
+
+  @Test
+  public void testWarmUp() throws Exception {
+    DirectBufferPool pool = DirectBufferPool.getInstance();
+    long outstanding = pool.getOutstandingBytes();
+    codec.warmUp(new WarmUpOptions(4, 8, bufferSize, 4 * 1024 * 1024));
+    Assert.assertEquals(outstanding, pool.getOutstandingBytes());
+    // The next stream finds its buffer in the pool.
+    long misses = pool.getMisses();
+    writeFile();
+    Assert.assertEquals(misses, pool.getMisses());
+    Assert.assertArrayEquals(data, readAll(new FileInputStream(file)));
+  }
+
+  private void writeFile() throws IOException {
+    CryptoOutputStream out = new CryptoOutputStream(
+        new FileOutputStream(file), codec, bufferSize, key, iv);
+    out.write(data);
+    out.close();
+  }
+
+  private byte[] readAll(InputStream encrypted) throws IOException {
+    return readDecrypted(new CryptoInputStream(encrypted, codec, bufferSize, key, 
+        iv));
+  }
+
+  private byte[] readDecrypted(InputStream in) throws IOException {
+    byte[] decrypted = new byte[data.length];
+    int off = 0;
+    while (off < decrypted.length) {
+      int n = in.read(decrypted, off, decrypted.length - off);
+      Assert.assertTrue(n > 0);
+      off += n;
+    }
+    Assert.assertEquals(-1, in.read());
+    in.close();
+    return decrypted;
+  }
+
+  /** Returns 1000 bytes at most per read, and fails at failAt. */
+  private static class ShortReadInputStream extends ByteArrayInputStream {
+    private final int failAt;
+
+    ShortReadInputStream(byte[] buf, int failAt) {
+      super(buf);
+      this.failAt = failAt;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      if (pos >= failAt) {
+        throw new IllegalStateException("Failed at " + pos);
+      }
+      return super.read(b, off, Math.min(len, 1000));
+    }
+  }
+
+  private static class ChannelInputStream extends ByteArrayInputStream
+      implements ReadableByteChannel {
+    ChannelInputStream(byte[] buf) {
+      super(buf);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) {
+      final byte[] b = new byte[dst.remaining()];
+      final int n = read(b, 0, b.length);
+      if (n > 0) {
+        dst.put(b, 0, n);
+      }
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.cryptostream.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class NativeCodeLoaderTest {
+
+  @Test
+  public void testExtractionCache() throws Exception {
+    String folder = "/com/intel/cryptostream/native/" +
+        OSInfo.getNativeLibFolderPathForCurrentOS();
+    String name = System.mapLibraryName("cryptostream");
+    // The hash is written by the native build.
+    Assume.assumeNotNull(NativeCodeLoader.class.getResource(
+        folder + "/" + name + ".sha256"));
+
+    File dir = File.createTempFile("cryptostream", ".lib");
+    Assert.assertTrue(dir.delete() && dir.mkdir());
+    try {
+      File extracted = NativeCodeLoader.extractLibraryFile(folder, name,
+          dir.getPath());
+      Assert.assertTrue(extracted.isFile());
+      Assert.assertTrue(extracted.getName().endsWith(name));
+      // In a folder of the user, not directly in the shared one.
+      File userDir = extracted.getParentFile();
+      Assert.assertEquals(dir.getCanonicalFile(),
+          userDir.getParentFile().getCanonicalFile());
+      Assert.assertTrue(extracted.setLastModified(1000L));
+
+      // Another start finds the library without extracting it again.
+      File cached = NativeCodeLoader.extractLibraryFile(folder, name,
+          dir.getPath());
+      Assert.assertEquals(extracted, cached);
+      Assert.assertEquals(1000L, cached.lastModified());
+      Assert.assertEquals(1, userDir.listFiles().length);
+
+      // A modified file is not loaded, but extracted again.
+      byte[] library = read(NativeCodeLoader.class.getResourceAsStream(
+          folder + "/" + name));
+      FileOutputStream out = new FileOutputStream(cached);
+      out.write(new byte[library.length]);
+      out.close();
+      cached = NativeCodeLoader.extractLibraryFile(folder, name,
+          dir.getPath());
+      Assert.assertEquals(extracted, cached);
+      Assert.assertArrayEquals(library, read(new FileInputStream(cached)));
+      Assert.assertEquals(1, userDir.listFiles().length);
+    } finally {
+      delete(dir);
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        delete(f);
+      }
+    }
+    file.delete();
+  }
+}